@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.sqlite;
+
+/** Measures the cost of single calls through the JNI layer.
+ *
+ * <p>Prints nanoseconds per call of <tt>step</tt>, <tt>column_long</tt>,
+ * <tt>bind_long</tt>, <tt>changes</tt>, and of <tt>column_text</tt> and
+ * <tt>bind_text</tt> with ASCII and non-ASCII strings, on an in-memory
+ * database. The calls are made through the DB interface used by the rest
+ * of the driver, so running this against two builds of the native library
+ * compares them. Run with <tt>make bench</tt>.</p>
+ */
+public class NativeBench
+{
+    static final int WARMUP = 200000;
+    static final int CALLS = 2000000;
+
+    static final String ASCII = "the quick brown fox jumps over it";
+    static final String WIDE = "Gr\u00f6\u00dfe \u00e4ndern f\u00fcr "
+        + "Zeichenketten \u20ac";
+    static String text;
+
+    public static void main(String[] args) throws Exception {
+        if (!NativeDB.load()) throw new Exception("no native library");
+        DB db = new NativeDB();
+        db.open(null, ":memory:", Codes.SQLITE_OPEN_READWRITE
+            | Codes.SQLITE_OPEN_CREATE | Codes.SQLITE_OPEN_NOMUTEX);
+
+        db.exec("create table t (c);");
+        db.exec("begin;");
+        long insert = db.prepare("insert into t values (?);");
+        for (int i=0; i < 1000; i++) {
+            db.bind_long(insert, 1, i);
+            db.step(insert);
+            db.reset(insert);
+        }
+        db.finalize(insert);
+        db.exec("commit;");
+
+        long stmt = db.prepare("select c from t;");
+        time("step", db, stmt, 0);
+        db.reset(stmt);
+        db.step(stmt);
+        time("column_long", db, stmt, 1);
+        db.finalize(stmt);
+
+        stmt = db.prepare("select ?;");
+        time("bind_long", db, stmt, 2);
+        db.finalize(stmt);
+
+        time("changes", db, 0, 3);
+
+        stmt = db.prepare("select ?;");
+        text = ASCII;
+        time("bind_text ascii", db, stmt, 4);
+        text = WIDE;
+        time("bind_text wide", db, stmt, 4);
+        db.finalize(stmt);
+
+        stmt = db.prepare("select '" + ASCII + "';");
+        db.step(stmt);
+        time("column_text ascii", db, stmt, 5);
+        db.finalize(stmt);
+        stmt = db.prepare("select '" + WIDE + "';");
+        db.step(stmt);
+        time("column_text wide", db, stmt, 5);
+        db.finalize(stmt);
+
+        db.close();
+    }
+
+    static void time(String name, DB db, long stmt, int op)
+            throws Exception {
+        run(db, stmt, op, WARMUP);
+        long start = System.currentTimeMillis();
+        long sum = run(db, stmt, op, CALLS);
+        long ms = System.currentTimeMillis() - start;
+        System.out.println(name + ": " + (ms * 1000000L / CALLS)
+            + " ns/call (" + sum + ")");
+    }
+
+    static long run(DB db, long stmt, int op, int calls) throws Exception {
+        long sum = 0;
+        for (int i=0; i < calls; i++) {
+            switch (op) {
+                case 0:
+                    if (db.step(stmt) != Codes.SQLITE_ROW) db.reset(stmt);
+                    break;
+                case 1:
+                    sum += db.column_long(stmt, 0);
+                    break;
+                case 2:
+                    sum += db.bind_long(stmt, 1, i);
+                    break;
+                case 3:
+                    sum += db.changes();
+                    break;
+                case 4:
+                    sum += db.bind_text(stmt, 1, text);
+                    break;
+                case 5:
+                    sum += db.column_text(stmt, 0).length();
+                    break;
+            }
+        }
+        return sum;
+    }
+}
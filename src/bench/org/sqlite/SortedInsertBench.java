@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.sqlite;
+
+import java.io.*;
+import java.sql.*;
+
+/** Measures inserting rows in random key order against presorted.
+ *
+ * <p>Loads the same CSV rows, keyed by a permutation of 0 to N-1, into a
+ * new database file with a table keyed by text and then one keyed by
+ * integer, three ways each: in input order, with
+ * <tt>BulkLoader.setSortColumn()</tt> sorting runs of rows, and from
+ * input that is already in key order. Prints the rows per second of
+ * each. N is 10000000 unless given as the first argument, and the run
+ * length 1000000 unless given as the second. Run with
+ * <tt>make bench-insert</tt>.</p>
+ */
+public class SortedInsertBench
+{
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int run = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        Class.forName("org.sqlite.JDBC");
+
+        String[] tables = {
+            "create table t (k text primary key, v integer);",
+            "create table t (k integer primary key, v integer);" };
+        for (int i=0; i < tables.length; i++) {
+            System.out.println(tables[i]);
+            time("  random order", tables[i], rows, false, 0);
+            time("  sorted runs ", tables[i], rows, false, run);
+            time("  presorted   ", tables[i], rows, true, 0);
+        }
+    }
+
+    static void time(String name, String table, int rows, boolean ordered,
+                     int run) throws Exception {
+        File file = File.createTempFile("bench", ".db");
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+        try {
+            conn.createStatement().executeUpdate(table);
+            BulkLoader loader = new BulkLoader(conn, "t");
+            loader.setPragma("synchronous", "OFF");
+            loader.setPragma("journal_mode", "MEMORY");
+            loader.setPragma("cache_size", "20000");
+            loader.setBatchRows(10000);
+            loader.setCommitRows(Integer.MAX_VALUE);
+            if (run > 0) {
+                loader.setSortColumn("k", run);
+                loader.setQueueSize(2);
+            }
+
+            long start = System.currentTimeMillis();
+            long n = loader.load(new Rows(rows, ordered));
+            long ms = System.currentTimeMillis() - start;
+            System.out.println(name + ": " + (n * 1000 / Math.max(ms, 1))
+                + " rows/s (" + ms + " ms)");
+        } finally {
+            conn.close();
+            file.delete();
+        }
+    }
+
+    /** Generates lines of <tt>key,value</tt>, for keys that are 0 to N-1
+     *  in order or permuted by a multiplicative hash. */
+    static class Rows extends InputStream {
+        private static final long PRIME = 2654435761L; // not a factor of N
+
+        private final int rows;
+        private final boolean ordered;
+        private int row = 0;
+        private byte[] line = new byte[0];
+        private int pos = 0;
+
+        Rows(int rows, boolean ordered) {
+            this.rows = rows;
+            this.ordered = ordered;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                if (pos == line.length) {
+                    if (row == rows) break;
+                    long key = ordered ? row : row * PRIME % rows;
+                    line = (pad(key) + "," + row + "\n").getBytes("US-ASCII");
+                    pos = 0;
+                    row++;
+                }
+                int c = Math.min(len - n, line.length - pos);
+                System.arraycopy(line, pos, b, off + n, c);
+                pos += c;
+                n += c;
+            }
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        // zero padded, so text keys sort as the numbers do
+        private static String pad(long key) {
+            String s = "000000000000" + key;
+            return s.substring(s.length() - 12);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Runs the statements of one connection on a thread of its own, so
+ *  callers do not wait for them.
+ *
+ * <p>Every call here queues work for the connection's thread and returns
+ * a Result at once. Statements run one at a time in the order they were
+ * queued, and only that thread ever steps them or waits on a busy
+ * database. A Result is a Future, and also calls any Callbacks given to
+ * <tt>whenDone()</tt> once it completes, so a caller can carry on
+ * without blocking in <tt>get()</tt>.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      AsyncConnection async = new AsyncConnection(conn);
+ *      async.executeQueryAsync("select * from users where id = ?;",
+ *                              new Object[] { id })
+ *          .whenDone(new AsyncConnection.Callback() {
+ *              public void completed(Object rows) { ... }
+ *              public void failed(Throwable error) { ... }
+ *          });
+ *  </pre>
+ *
+ * <p>Callbacks run on the connection's thread, or on the caller's if the
+ * Result is already done, and should not block. Once the connection is
+ * given to an AsyncConnection it should only be used by the work queued
+ * here. A connection opened with <tt>check_thread</tt> cannot be used, as
+ * the work runs on another thread.</p>
+ */
+public final class AsyncConnection
+{
+    /** Work run with the connection on its thread. */
+    public interface Task {
+        /** Returns the value of the task's Result. */
+        Object run(Connection conn) throws SQLException;
+    }
+
+    /** Reads the results of a query on the connection's thread. */
+    public interface ResultHandler {
+        /** Returns the value of the query's Result. The ResultSet is
+         *  closed afterwards. */
+        Object handle(ResultSet rs) throws SQLException;
+    }
+
+    /** Told the outcome of a Result. */
+    public interface Callback {
+        void completed(Object value);
+        void failed(Throwable error);
+    }
+
+    private final Conn conn;
+    private final ExecutorService executor;
+    private Result closing = null;
+
+    /** Starts a thread for running statements on a connection. */
+    public AsyncConnection(Connection conn) throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        this.conn = (Conn)conn;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sqlite async");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Queues a task to run with the connection. */
+    public Result submit(final Task task) {
+        Result r = new Result(new Callable() {
+            public Object call() throws SQLException {
+                return task.run(conn);
+            }
+        });
+        try {
+            executor.execute(r);
+        } catch (RejectedExecutionException e) {
+            r.fail(new SQLException("async connection closed"));
+        }
+        return r;
+    }
+
+    /** Queues a query and has the handler read its results. */
+    public Result executeQueryAsync(final String sql, final Object[] params,
+                                    final ResultHandler handler) {
+        return submit(new Task() {
+            public Object run(Connection conn) throws SQLException {
+                PreparedStatement prep = prepare(conn, sql, params);
+                try {
+                    ResultSet rs = prep.executeQuery();
+                    try {
+                        return handler.handle(rs);
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    prep.close();
+                }
+            }
+        });
+    }
+
+    /** Queues a query. Its Result is a List of the rows, each an Object[]
+     *  of the column values given by <tt>getObject()</tt>. */
+    public Result executeQueryAsync(String sql, Object[] params) {
+        return executeQueryAsync(sql, params, new ResultHandler() {
+            public Object handle(ResultSet rs) throws SQLException {
+                int cols = rs.getMetaData().getColumnCount();
+                List rows = new ArrayList();
+                while (rs.next()) {
+                    Object[] row = new Object[cols];
+                    for (int i=0; i < cols; i++)
+                        row[i] = rs.getObject(i + 1);
+                    rows.add(row);
+                }
+                return rows;
+            }
+        });
+    }
+
+    /** Queues an update. Its Result is the update count as an Integer. */
+    public Result executeUpdateAsync(final String sql, final Object[] params) {
+        return submit(new Task() {
+            public Object run(Connection conn) throws SQLException {
+                PreparedStatement prep = prepare(conn, sql, params);
+                try {
+                    return new Integer(prep.executeUpdate());
+                } finally {
+                    prep.close();
+                }
+            }
+        });
+    }
+
+    private static PreparedStatement prepare(
+            Connection conn, String sql, Object[] params)
+            throws SQLException {
+        PreparedStatement prep = conn.prepareStatement(sql);
+        try {
+            if (params != null)
+                for (int i=0; i < params.length; i++)
+                    prep.setObject(i + 1, params[i]);
+        } catch (SQLException e) {
+            prep.close();
+            throw e;
+        }
+        return prep;
+    }
+
+    /** Queues closing the connection after the work already queued, and
+     *  stops its thread. Work queued afterwards fails. Closing again
+     *  returns the same Result. */
+    public synchronized Result close() {
+        if (closing == null) {
+            closing = submit(new Task() {
+                public Object run(Connection conn) throws SQLException {
+                    conn.close();
+                    return null;
+                }
+            });
+            executor.shutdown();
+        }
+        return closing;
+    }
+
+
+    // RESULT ///////////////////////////////////////////////////////
+
+    /** The Future of work queued on an AsyncConnection. Cancelling it
+     *  stops the work only if it has not started. */
+    public static final class Result extends FutureTask {
+        private final List callbacks = new ArrayList();
+        private boolean fired = false;
+
+        Result(Callable work) { super(work); }
+
+        /** Calls the callback when the work completes, or now if it has
+         *  already. Returns this Result. */
+        public Result whenDone(Callback callback) {
+            if (callback == null) throw new NullPointerException();
+            synchronized (callbacks) {
+                if (!fired) {
+                    callbacks.add(callback);
+                    return this;
+                }
+            }
+            fire(callback);
+            return this;
+        }
+
+        public boolean cancel(boolean mayInterrupt) {
+            // interrupting the thread would not stop sqlite3_step()
+            return super.cancel(false);
+        }
+
+        void fail(Throwable t) { setException(t); }
+
+        protected void done() {
+            Object[] l;
+            synchronized (callbacks) {
+                fired = true;
+                l = callbacks.toArray();
+                callbacks.clear();
+            }
+            for (int i=0; i < l.length; i++) {
+                // a callback that throws must not stop the others
+                try { fire((Callback)l[i]); } catch (RuntimeException e) {}
+            }
+        }
+
+        private void fire(Callback callback) {
+            Object value;
+            try {
+                value = get();
+            } catch (ExecutionException e) {
+                callback.failed(e.getCause());
+                return;
+            } catch (CancellationException e) {
+                callback.failed(e);
+                return;
+            } catch (InterruptedException e) {
+                callback.failed(e); // not reached, the work is done
+                return;
+            }
+            callback.completed(value);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.*;
+import java.sql.*;
+
+/** Reads and writes a BLOB stored in a table a piece at a time, with
+ *  SQLite's incremental blob I/O, so the whole value never has to be in
+ *  memory.
+ *
+ * <p>A channel is opened on the value of a column in the row with a given
+ * rowid. It has a position, which can be moved, and a size fixed when the
+ * value was written: a blob cannot grow this way, so a large value is
+ * inserted as <tt>zeroblob(n)</tt> and then filled in. The channel stops
+ * working with an IOException if its row is changed or deleted by other
+ * means. <tt>newInputStream()</tt> and <tt>newOutputStream()</tt> give
+ * stream views that share the position.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      PreparedStatement prep = conn.prepareStatement(
+ *          "insert into files (name, data) values (?, zeroblob(?));");
+ *      prep.setString(1, name);
+ *      prep.setLong(2, file.length());
+ *      prep.executeUpdate();
+ *      ResultSet rs = stat.executeQuery("select last_insert_rowid();");
+ *      rs.next();
+ *      BlobChannel blob = BlobChannel.open(
+ *          conn, "files", "data", rs.getLong(1), true);
+ *      FileChannel in = new FileInputStream(file).getChannel();
+ *      in.transferTo(0, in.size(), blob);
+ *      blob.close();
+ *  </pre>
+ *
+ * <p>Open channels are closed when their Connection is. This requires the
+ * native library.</p>
+ */
+public final class BlobChannel implements ByteChannel
+{
+    private final DB db;
+    long pointer = 0; // sqlite3_blob*, 0 once closed
+    private int size;
+    private long position = 0;
+
+    private BlobChannel(DB db) { this.db = db; }
+
+    /** Opens the value of a column in the "main" database. */
+    public static BlobChannel open(Connection conn, String table,
+            String column, long rowid, boolean write) throws SQLException {
+        return open(conn, "main", table, column, rowid, write);
+    }
+
+    /** Opens the value of a column in the row of table with the given
+     *  rowid, for writing as well as reading if write is true. database
+     *  is "main", "temp" or the name of an attached database. */
+    public static BlobChannel open(Connection conn, String database,
+            String table, String column, long rowid, boolean write)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        DB db = ((Conn)conn).db();
+        BlobChannel blob = new BlobChannel(db);
+        db.openBlob(blob, database, table, column, rowid, write);
+        blob.size = db.blob_bytes(blob.pointer);
+        return blob;
+    }
+
+    /** Returns the size of the blob in bytes. */
+    public long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    /** Returns the offset of the next byte read or written. */
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    /** Moves the position. Reading past the end returns -1. */
+    public BlobChannel position(long position) throws IOException {
+        checkOpen();
+        if (position < 0) throw new IllegalArgumentException();
+        this.position = position;
+        return this;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (dst.isReadOnly()) throw new ReadOnlyBufferException();
+        if (position >= size) return -1;
+        int n = (int)Math.min(dst.remaining(), size - position);
+        transfer(false, dst, n);
+        return n;
+    }
+
+    /** Writes all the remaining bytes of src. Throws an IOException if
+     *  they do not fit before the end of the blob. */
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        int n = src.remaining();
+        if (n > size - position) throw new IOException(
+            "write of " + n + " bytes at " + position
+            + " past the end of a " + size + " byte blob");
+        transfer(true, src, n);
+        return n;
+    }
+
+    /** Returns an InputStream reading from the current position. */
+    public InputStream newInputStream() {
+        return Channels.newInputStream(this); }
+
+    /** Returns an OutputStream writing at the current position. */
+    public OutputStream newOutputStream() {
+        return Channels.newOutputStream(this); }
+
+    public boolean isOpen() { return pointer != 0; }
+
+    public void close() throws IOException {
+        try { db.closeBlob(this); }
+        catch (SQLException e) { throw ioex(e); }
+    }
+
+    private void checkOpen() throws IOException {
+        if (pointer == 0) throw new ClosedChannelException();
+    }
+
+    /** Copies n bytes between buf and the blob at the position, moving
+     *  both on. The connection is locked so the blob cannot be closed
+     *  while it is in use. */
+    private void transfer(boolean write, ByteBuffer buf, int n)
+            throws IOException {
+        db.lock();
+        try {
+            if (pointer == 0) throw new ClosedChannelException();
+            int rc = write ? db.blob_write(pointer, (int)position, buf, n)
+                           : db.blob_read(pointer, (int)position, buf, n);
+            if (rc == Codes.SQLITE_ABORT)
+                throw new IOException("blob row changed or deleted");
+            if (rc != Codes.SQLITE_OK) throw new IOException(db.errmsg());
+        } catch (SQLException e) {
+            throw ioex(e);
+        } finally {
+            db.unlock();
+        }
+        buf.position(buf.position() + n);
+        position += n;
+    }
+
+    private static IOException ioex(SQLException e) {
+        IOException ex = new IOException(e.getMessage());
+        ex.initCause(e);
+        return ex;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+import java.util.*;
+
+/** Loads many rows into an existing table with its indexes dropped and
+ *  the journal relaxed, rebuilding the indexes once at the end.
+ *
+ * <p>Updating every secondary index for each row inserted is the slowest
+ * part of a large load. <tt>begin()</tt> records the CREATE INDEX
+ * statements of the table from <tt>sqlite_master</tt>, sets the session
+ * pragmas and drops the indexes inside a new transaction. Rows are then
+ * inserted with a <tt>BulkLoader</tt> from <tt>newLoader()</tt>, or a
+ * PreparedStatement batch. <tt>commit()</tt> recreates the indexes, each
+ * in one sorted pass, commits and restores the pragmas.
+ * <tt>rollback()</tt>, also called by <tt>commit()</tt> if creating an
+ * index fails, returns the table, its indexes and the pragmas to how they
+ * were before <tt>begin()</tt>.</p>
+ *
+ * <p>The default pragmas are <tt>synchronous=OFF</tt>,
+ * <tt>journal_mode=MEMORY</tt> and a <tt>cache_size</tt> of 100000 pages.
+ * <tt>journal_mode=OFF</tt> is refused, whether set here or already set
+ * on the database, as SQLite leaves the database undefined if the
+ * session's transaction is rolled back without a journal. Indexes SQLite
+ * makes for UNIQUE and PRIMARY KEY constraints cannot be dropped and stay
+ * in place.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      BulkLoadSession session = new BulkLoadSession(conn, "orders");
+ *      session.begin();
+ *      try {
+ *          session.newLoader().load(new FileInputStream(file));
+ *          session.commit();
+ *      } finally {
+ *          session.rollback(); // does nothing after a commit
+ *      }
+ *  </pre>
+ *
+ * <p>The connection must be in auto-commit mode when the session begins.
+ * It is out of auto-commit mode until the session ends, and should not
+ * be committed or rolled back directly in between.</p>
+ */
+public final class BulkLoadSession
+{
+    private final Conn conn;
+    private final String table;
+    private final LinkedHashMap pragmas = new LinkedHashMap();
+
+    private boolean active = false;
+    private Map sessionPragmas;   // pragmas set by begin()
+    private String[] restore;     // their values before begin()
+    private String[] indexNames;  // indexes dropped by begin()
+    private String[] indexSql;    // and the statements that create them
+
+    /** Creates a session for loading into a table. */
+    public BulkLoadSession(Connection conn, String table)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        this.conn = (Conn)conn;
+        this.table = table;
+        pragmas.put("synchronous", "OFF");
+        pragmas.put("journal_mode", "MEMORY");
+        pragmas.put("cache_size", "100000");
+    }
+
+    /** Sets a pragma for the duration of the session, replacing its
+     *  default if it has one. A null value leaves the pragma as it is.
+     *  Throws an IllegalArgumentException for <tt>journal_mode=OFF</tt>,
+     *  which the session cannot roll back. */
+    public void setPragma(String name, String value) {
+        if (value != null && journalOff(name, value))
+            throw new IllegalArgumentException(
+                "bulk load session cannot roll back with journal_mode=OFF");
+        if (value == null) pragmas.remove(name);
+        else pragmas.put(name, value);
+    }
+
+    /** Returns true between begin() and the end of the session. */
+    public boolean isActive() { return active; }
+
+    /** Returns the names of the indexes dropped for the session. */
+    public String[] getDroppedIndexes() throws SQLException {
+        if (!active) throw new SQLException("bulk load session not active");
+        return (String[])indexNames.clone();
+    }
+
+    /** Sets the session pragmas, begins a transaction and drops the
+     *  secondary indexes of the table. */
+    public void begin() throws SQLException {
+        if (active) throw new SQLException("bulk load session active");
+        if (!conn.getAutoCommit())
+            throw new SQLException("bulk load needs auto-commit mode");
+
+        List names = new ArrayList(), sql = new ArrayList();
+        PreparedStatement prep = conn.prepareStatement(
+            "select type, name, sql from sqlite_master"
+            + " where lower(tbl_name) = lower(?) order by type desc;");
+        try {
+            prep.setString(1, table);
+            ResultSet rs = prep.executeQuery();
+            boolean found = false;
+            while (rs.next()) {
+                if ("table".equals(rs.getString(1))) found = true;
+                else if ("index".equals(rs.getString(1))
+                         && rs.getString(3) != null) {
+                    names.add(rs.getString(2));
+                    sql.add(rs.getString(3));
+                }
+            }
+            rs.close();
+            if (!found) throw new SQLException("no such table: " + table);
+        } finally {
+            prep.close();
+        }
+        indexNames = (String[])names.toArray(new String[names.size()]);
+        indexSql = (String[])sql.toArray(new String[sql.size()]);
+
+        sessionPragmas = new LinkedHashMap(pragmas);
+        restore = BulkLoader.setPragmas(conn, sessionPragmas);
+        Statement stat = conn.createStatement();
+        String mode;
+        try {
+            ResultSet rs = stat.executeQuery("pragma journal_mode;");
+            mode = rs.next() ? rs.getString(1) : null;
+            rs.close();
+        } finally {
+            stat.close();
+        }
+        if (mode != null && journalOff("journal_mode", mode)) {
+            BulkLoader.restorePragmas(conn, sessionPragmas, restore);
+            throw new SQLException(
+                "bulk load session cannot roll back with journal_mode=OFF");
+        }
+        active = true;
+        try {
+            conn.setAutoCommit(false);
+            stat = conn.createStatement();
+            try {
+                for (int i=0; i < indexNames.length; i++)
+                    stat.executeUpdate("drop index "
+                        + BulkLoader.quote(indexNames[i]) + ";");
+            } finally {
+                stat.close();
+            }
+        } catch (SQLException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    /** Returns a loader into all the columns of the table, which inserts
+     *  in the session's transaction. */
+    public BulkLoader newLoader() throws SQLException {
+        return newLoader(null);
+    }
+
+    /** Returns a loader into the named columns of the table, which inserts
+     *  in the session's transaction. */
+    public BulkLoader newLoader(String[] columns) throws SQLException {
+        if (!active) throw new SQLException("bulk load session not active");
+        return new BulkLoader(conn, table, columns);
+    }
+
+    /** Recreates the dropped indexes, commits the rows loaded and restores
+     *  the pragmas. If an index cannot be created, for example a UNIQUE
+     *  index over duplicate rows, the session is rolled back. */
+    public void commit() throws SQLException {
+        if (!active) throw new SQLException("bulk load session not active");
+        try {
+            createIndexes(false);
+            conn.commit();
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            rollback();
+            throw e;
+        }
+        end();
+    }
+
+    /** Ends the session, undoing the rows loaded and restoring the
+     *  indexes and pragmas. Does nothing if the session is not active. */
+    public void rollback() throws SQLException {
+        if (!active) return;
+        SQLException error = null;
+        try {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                // SQLite ended the transaction itself, eg. on SQLITE_FULL
+                conn.db().exec("begin;");
+            }
+            conn.setAutoCommit(true);
+            createIndexes(true);
+        } catch (SQLException e) {
+            error = e;
+        }
+        end();
+        if (error != null) throw error;
+    }
+
+    private static boolean journalOff(String name, String value) {
+        name = name.trim().toLowerCase();
+        return (name.equals("journal_mode") || name.endsWith(".journal_mode"))
+            && value.trim().equalsIgnoreCase("off");
+    }
+
+    private void end() {
+        active = false;
+        BulkLoader.restorePragmas(conn, sessionPragmas, restore);
+    }
+
+    /** Creates the dropped indexes, or with missing only those that no
+     *  longer exist after a rollback. */
+    private void createIndexes(boolean missing) throws SQLException {
+        PreparedStatement exists = conn.prepareStatement(
+            "select 1 from sqlite_master where type = 'index' and name = ?;");
+        Statement stat = conn.createStatement();
+        try {
+            for (int i=0; i < indexSql.length; i++) {
+                if (missing) {
+                    exists.setString(1, indexNames[i]);
+                    ResultSet rs = exists.executeQuery();
+                    boolean found = rs.next();
+                    rs.close();
+                    if (found) continue;
+                }
+                stat.executeUpdate(indexSql[i]);
+            }
+        } finally {
+            stat.close();
+            exists.close();
+        }
+    }
+}
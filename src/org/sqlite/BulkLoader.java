@@ -0,0 +1,649 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** Inserts rows read from CSV or TSV input into a table.
+ *
+ * <p>The input is parsed on a separate thread into batches of rows, which
+ * are handed through a small ring of reused batches to the thread calling
+ * <tt>load()</tt>, which inserts each batch with one native call. Fields
+ * are kept as UTF-8 bytes and bound as text without becoming Strings, and
+ * fields of columns with INTEGER affinity that hold plain integers are
+ * bound as integers. So parsing and inserting run at the same time and
+ * neither makes an object per value.</p>
+ *
+ * <p>The formats are read as <tt>RowExporter</tt> writes them, in UTF-8:
+ * a CSV field that is empty and unquoted is NULL, a TSV field of
+ * <tt>\N</tt> is NULL, and blank lines are skipped. Each line must have a
+ * field for every column loaded.</p>
+ *
+ * <p>In auto-commit mode the rows are inserted in transactions of
+ * <tt>setCommitRows()</tt> rows, so a failed load keeps the rows of
+ * the transactions already committed. Otherwise all rows are inserted in
+ * the current transaction. Pragmas set with <tt>setPragma()</tt>, such as
+ * <tt>synchronous</tt> or <tt>journal_mode</tt>, apply for the duration
+ * of the load and are then restored.</p>
+ *
+ * <p>Rows inserted in random key order split B-tree pages all over the
+ * table and its cache. With <tt>setSortColumn()</tt>, the parser collects
+ * runs of rows and sorts each one by a key column while the previous run
+ * is inserted: NULL first, then integers, then text in byte order as
+ * with BINARY collation. Runs should be large, and the queue small to
+ * bound the memory held.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      BulkLoader loader = new BulkLoader(conn, "orders");
+ *      loader.setHeader(true);
+ *      loader.setPragma("synchronous", "OFF");
+ *      long rows = loader.load(new FileInputStream(file).getChannel());
+ *  </pre>
+ */
+public final class BulkLoader
+{
+    /** Format: comma separated values. */
+    public static final int CSV = RowExporter.CSV;
+
+    /** Format: tab separated values. */
+    public static final int TSV = RowExporter.TSV;
+
+    private final Conn conn;
+    private final DB db;
+    private final String sql;
+    private final String[] columns;  // loaded, in input order
+    private final boolean[] intCols; // columns with INTEGER affinity
+    private final int params;
+
+    private int format = CSV;
+    private boolean header = false;
+    private int batchRows = 1000;
+    private int commitRows = 100000;
+    private int queueSize = 4;
+    private int sortField = -1;      // index of the key column, if sorting
+    private int sortRows;
+    private final LinkedHashMap pragmas = new LinkedHashMap();
+
+    /** Creates a loader into all the columns of a table, in order. */
+    public BulkLoader(Connection conn, String table) throws SQLException {
+        this(conn, table, null);
+    }
+
+    /** Creates a loader into the named columns of a table, in the order
+     *  their fields appear in the input. */
+    public BulkLoader(Connection conn, String table, String[] columns)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        this.conn = (Conn)conn;
+        this.db = this.conn.db();
+
+        // declared types of the table's columns, by lower case name
+        Map types = new HashMap();
+        List names = new ArrayList();
+        Statement stat = conn.createStatement();
+        try {
+            ResultSet rs = stat.executeQuery(
+                "pragma table_info(" + quote(table) + ");");
+            while (rs.next()) {
+                String type = rs.getString(3);
+                names.add(rs.getString(2));
+                types.put(rs.getString(2).toLowerCase(),
+                          type == null ? "" : type.toUpperCase());
+            }
+            rs.close();
+        } finally {
+            stat.close();
+        }
+        if (names.isEmpty())
+            throw new SQLException("no such table: " + table);
+        if (columns == null)
+            columns = (String[])names.toArray(new String[names.size()]);
+        if (columns.length == 0)
+            throw new SQLException("no columns to load");
+
+        params = columns.length;
+        this.columns = (String[])columns.clone();
+        intCols = new boolean[params];
+        StringBuffer cols = new StringBuffer();
+        StringBuffer values = new StringBuffer();
+        for (int i=0; i < params; i++) {
+            String type = (String)types.get(columns[i].toLowerCase());
+            if (type == null) throw new SQLException(
+                "no such column: " + table + "." + columns[i]);
+            intCols[i] = type.indexOf("INT") >= 0;
+            cols.append(i == 0 ? "" : ", ").append(quote(columns[i]));
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        sql = "insert into " + quote(table) + " (" + cols + ") values ("
+            + values + ");";
+    }
+
+    /** Sets the input format, CSV or TSV. The default is CSV. */
+    public void setFormat(int format) throws SQLException {
+        if (format != CSV && format != TSV)
+            throw new SQLException("unknown load format: " + format);
+        this.format = format;
+    }
+
+    /** Sets whether the first line of input is column names to skip. The
+     *  default is false. */
+    public void setHeader(boolean header) { this.header = header; }
+
+    /** Sets the number of rows parsed into each batch. The default is
+     *  1000. */
+    public void setBatchRows(int rows) {
+        if (rows < 1) throw new IllegalArgumentException();
+        batchRows = rows;
+    }
+
+    /** Sets the number of rows inserted in each transaction in auto-commit
+     *  mode. The default is 100000. */
+    public void setCommitRows(int rows) {
+        if (rows < 1) throw new IllegalArgumentException();
+        commitRows = rows;
+    }
+
+    /** Sets the number of batches in the ring between the parsing and
+     *  inserting threads. The default is 4. */
+    public void setQueueSize(int batches) {
+        if (batches < 2) throw new IllegalArgumentException();
+        queueSize = batches;
+    }
+
+    /** Sets the loaded column to sort rows by before inserting them, in
+     *  runs of the given number of rows. A null column turns sorting
+     *  off. */
+    public void setSortColumn(String column, int rows) throws SQLException {
+        if (rows < 1) throw new IllegalArgumentException();
+        if (column == null) { sortField = -1; return; }
+        for (int i=0; i < params; i++) {
+            if (columns[i].equalsIgnoreCase(column)) {
+                sortField = i;
+                sortRows = rows;
+                return;
+            }
+        }
+        throw new SQLException("column not loaded: " + column);
+    }
+
+    /** Sets a pragma for the duration of a load, eg. <tt>synchronous</tt>
+     *  to <tt>OFF</tt>. Its value is restored afterwards. */
+    public void setPragma(String name, String value) {
+        pragmas.put(name, value);
+    }
+
+    /** Loads the rows of a stream. Returns the number of rows inserted. */
+    public long load(InputStream in) throws SQLException, IOException {
+        return load(Channels.newChannel(in));
+    }
+
+    /** Loads the rows of a channel, such as a FileChannel. Returns the
+     *  number of rows inserted. The channel is not closed. */
+    public long load(ReadableByteChannel in)
+            throws SQLException, IOException {
+        db.lock();
+        try {
+            db.checkThread();
+            if (conn.isClosed()) throw new SQLException("connection closed");
+            boolean autoCommit = conn.getAutoCommit();
+            String[] restore = setPragmas(conn, pragmas);
+            try {
+                return load(in, autoCommit);
+            } finally {
+                restorePragmas(conn, pragmas, restore);
+            }
+        } finally {
+            db.unlock();
+        }
+    }
+
+    private long load(ReadableByteChannel in, boolean autoCommit)
+            throws SQLException, IOException {
+        ArrayBlockingQueue free = new ArrayBlockingQueue(queueSize);
+        ArrayBlockingQueue full = new ArrayBlockingQueue(queueSize);
+        int rows = sortField < 0 ? batchRows : sortRows;
+        for (int i=0; i < queueSize; i++) free.add(new Batch(rows));
+        Parser parser = new Parser(in, free, full);
+
+        long stmt = db.prepare(sql);
+        boolean begun = false;
+        Batch batch = null;
+        try {
+            Thread thread = new Thread(parser, "SQLite bulk load parser");
+            thread.setDaemon(true);
+            thread.start();
+
+            int[] changes = new int[rows];
+            int[] status = new int[1];
+            long total = 0, uncommitted = 0;
+            while (true) {
+                try { batch = (Batch)full.take(); }
+                catch (InterruptedException e) {
+                    throw new SQLException("bulk load interrupted"); }
+                if (batch.error != null) rethrow(batch.error);
+
+                if (batch.rows > 0 && autoCommit && !begun) {
+                    db.exec("begin immediate;");
+                    begun = true;
+                }
+                int done = batch.rows == 0 ? 0 : db.execute_batch(stmt,
+                    batch.rows, batch.types, batch.longs, batch.doubles,
+                    null, batch.text, changes, status);
+                if (done < batch.rows) {
+                    String msg = status[0] == Codes.SQLITE_ROW
+                        ? "query returns results" : db.errmsg();
+                    db.reset(stmt);
+                    throw new SQLException(
+                        "line " + batch.records[done] + ": " + msg);
+                }
+                total += done;
+                uncommitted += done;
+                if (batch.last) break;
+                free.add(batch);
+                batch = null;
+
+                if (begun && uncommitted >= commitRows) {
+                    db.exec("commit;");
+                    begun = false;
+                    uncommitted = 0;
+                }
+            }
+            if (begun) db.exec("commit;");
+            begun = false;
+            return total;
+        } finally {
+            parser.stopped = true;
+            if (batch != null) free.offer(batch);
+            full.drainTo(free); // wakes the parser if it waits for a batch
+            if (begun) db.rollbackBatch();
+            db.finalize(stmt);
+        }
+    }
+
+    private static void rethrow(Throwable t)
+            throws SQLException, IOException {
+        if (t instanceof SQLException) throw (SQLException)t;
+        if (t instanceof IOException) throw (IOException)t;
+        if (t instanceof RuntimeException) throw (RuntimeException)t;
+        throw (Error)t;
+    }
+
+    /** Sets each pragma of a map of names to values. Returns their
+     *  previous values, for restorePragmas(). */
+    static String[] setPragmas(Conn conn, Map pragmas) throws SQLException {
+        String[] restore = new String[pragmas.size()];
+        Statement stat = conn.createStatement();
+        try {
+            Iterator i = pragmas.entrySet().iterator();
+            for (int n=0; i.hasNext(); n++) {
+                Map.Entry e = (Map.Entry)i.next();
+                ResultSet rs = stat.executeQuery("pragma " + e.getKey() + ";");
+                restore[n] = rs.next() ? rs.getString(1) : null;
+                rs.close();
+                stat.execute("pragma " + e.getKey() + " = " + e.getValue()
+                             + ";");
+            }
+        } catch (SQLException e) {
+            restorePragmas(conn, pragmas, restore);
+            throw e;
+        } finally {
+            stat.close();
+        }
+        return restore;
+    }
+
+    /** Restores the pragmas that were read, in reverse order. Errors are
+     *  ignored, so they do not hide the result of the load. */
+    static void restorePragmas(Conn conn, Map pragmas, String[] restore) {
+        Object[] names = pragmas.keySet().toArray();
+        for (int n = restore.length - 1; n >= 0; n--) {
+            if (restore[n] == null) continue;
+            try {
+                Statement stat = conn.createStatement();
+                try {
+                    stat.execute("pragma " + names[n] + " = "
+                                 + restore[n] + ";");
+                } finally {
+                    stat.close();
+                }
+            } catch (SQLException e) {}
+        }
+    }
+
+    static String quote(String name) {
+        StringBuffer sb = new StringBuffer("\"");
+        for (int i=0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+
+    // PARSING //////////////////////////////////////////////////////
+
+    /** Rows of parameters in the form DB.execute_batch() binds, with text
+     *  stored as UTF-8 in one array. */
+    private final class Batch {
+        int[] types;
+        long[] longs;
+        final double[] doubles = new double[1];
+        long[] records;  // input line numbers
+        byte[] text;
+        int used;        // bytes of text used
+        int rows;
+        boolean last;    // no rows follow this batch
+        Throwable error; // from the parser, ends the load
+
+        Batch(int size) {
+            types = new int[size * params];
+            longs = new long[size * params];
+            records = new long[size];
+            text = new byte[Math.min(size * params * 16, 1 << 20)];
+        }
+    }
+
+    private final class Parser implements Runnable {
+        private final ReadableByteChannel in;
+        private final ArrayBlockingQueue free, full;
+        volatile boolean stopped = false;
+
+        private Batch batch;
+        private long record = 1;      // number of the line being read
+        private boolean skip = header; // record is the header
+        private int field;            // index of the field being read
+        private int fieldStart;       // where its bytes start in text
+        private boolean quoted;       // CSV field started with a quote
+        private boolean inQuotes;     // CSV inside quotes
+        private boolean quoteEnd;     // CSV quote seen inside quotes
+        private boolean escape;       // TSV backslash seen
+        private boolean isNull;       // TSV field is \N so far
+        private boolean blank = true; // nothing read of the record yet
+
+        Parser(ReadableByteChannel in, ArrayBlockingQueue free,
+               ArrayBlockingQueue full) {
+            this.in = in;
+            this.free = free;
+            this.full = full;
+        }
+
+        public void run() {
+            try {
+                parse();
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (Throwable e) {
+                try {
+                    if (batch == null) batch = (Batch)free.take();
+                    batch.error = e;
+                    batch.last = true;
+                    full.put(batch);
+                } catch (InterruptedException ie) {}
+            }
+        }
+
+        private void parse() throws Exception {
+            next();
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            byte[] b = buf.array();
+            boolean csv = format == CSV;
+            while (!stopped) {
+                buf.clear();
+                int n = in.read(buf);
+                if (n < 0) break;
+                for (int i=0; i < n; i++) {
+                    if (csv) csv(b[i]); else tsv(b[i]);
+                }
+            }
+            if (stopped) return;
+
+            if (inQuotes && !quoteEnd)
+                throw new SQLException("line " + record
+                                       + ": unterminated quote");
+            endRecord();
+            if (sortField >= 0) sort(batch);
+            batch.last = true;
+            full.put(batch);
+            batch = null;
+        }
+
+        private void csv(byte c) throws Exception {
+            if (inQuotes) {
+                if (quoteEnd) {
+                    quoteEnd = false;
+                    if (c == '"') { append(c); return; }
+                    inQuotes = false; // and c is read as unquoted
+                } else {
+                    if (c == '"') quoteEnd = true; else append(c);
+                    return;
+                }
+            }
+            switch (c) {
+                case ',': blank = false; endField(); break;
+                case '\n': endRecord(); break;
+                case '\r': break;
+                case '"':
+                    if (fieldStart == batch.used && !quoted) {
+                        quoted = inQuotes = true;
+                        blank = false;
+                        break;
+                    }
+                    // fall through
+                default: append(c);
+            }
+        }
+
+        private void tsv(byte c) throws Exception {
+            if (escape) {
+                escape = false;
+                switch (c) {
+                    case 't': append((byte)'\t'); break;
+                    case 'n': append((byte)'\n'); break;
+                    case 'r': append((byte)'\r'); break;
+                    case 'N':
+                        blank = false;
+                        isNull = fieldStart == batch.used;
+                        break;
+                    default: append(c);
+                }
+                return;
+            }
+            switch (c) {
+                case '\t': blank = false; endField(); break;
+                case '\n': endRecord(); break;
+                case '\r': break;
+                case '\\': escape = true; break;
+                default: append(c);
+            }
+        }
+
+        private void append(byte c) {
+            if (batch.used == batch.text.length) {
+                byte[] t = new byte[batch.text.length * 2];
+                System.arraycopy(batch.text, 0, t, 0, batch.used);
+                batch.text = t;
+            }
+            batch.text[batch.used++] = c;
+            blank = false;
+            isNull = false;
+        }
+
+        private void endField() throws SQLException {
+            if (skip) {
+                batch.used = fieldStart;
+                quoted = isNull = false;
+                return;
+            }
+            if (field == params) throw new SQLException("line " + record
+                + ": more than " + params + " fields");
+            int i = batch.rows * params + field;
+            int len = batch.used - fieldStart;
+            if (len == 0 && (format == CSV ? !quoted : isNull)) {
+                batch.types[i] = Codes.SQLITE_NULL;
+            } else if (intCols[field] && !quoted && integer(len)) {
+                batch.types[i] = Codes.SQLITE_INTEGER;
+            } else {
+                batch.types[i] = Codes.SQLITE_TEXT;
+                batch.longs[i] = (long)fieldStart << 32 | len;
+            }
+            field++;
+            fieldStart = batch.used;
+            quoted = isNull = false;
+        }
+
+        // parses a field of up to 18 digits into longs, dropping its text
+        private boolean integer(int len) {
+            byte[] t = batch.text;
+            int i = fieldStart, end = fieldStart + len;
+            boolean neg = len > 1 && t[i] == '-';
+            if (neg) i++;
+            if (end - i < 1 || end - i > 18) return false;
+            long v = 0;
+            for (; i < end; i++) {
+                if (t[i] < '0' || t[i] > '9') return false;
+                v = v * 10 + (t[i] - '0');
+            }
+            batch.longs[batch.rows * params + field] = neg ? -v : v;
+            batch.used = fieldStart;
+            return true;
+        }
+
+        private void endRecord() throws Exception {
+            if (blank) { record++; return; }
+            endField();
+            if (skip) {
+                skip = false;
+            } else {
+                if (field != params) throw new SQLException("line " + record
+                    + ": " + field + " fields, expected " + params);
+                batch.records[batch.rows++] = record;
+            }
+            record++;
+            field = 0;
+            fieldStart = batch.used;
+            blank = true;
+            if (batch.rows == batch.records.length) {
+                if (sortField >= 0) sort(batch);
+                full.put(batch);
+                next();
+            }
+        }
+
+        // takes the next free batch to fill
+        private void next() throws InterruptedException {
+            batch = (Batch)free.take();
+            if (stopped) throw new InterruptedException();
+            batch.rows = batch.used = 0;
+            batch.error = null;
+            batch.last = false;
+            fieldStart = 0;
+        }
+
+        // SORTING //////////////////////////////////////////////////
+
+        private int[] order, merge;   // row numbers, in sorted order
+        private int[] sortedTypes;    // arrays swapped with those of a
+        private long[] sortedLongs;   //   batch once its rows are sorted
+        private long[] sortedRecords;
+
+        /** Puts the rows of a batch in order of the sort column. */
+        private void sort(Batch b) {
+            if (order == null) {
+                order = new int[b.records.length];
+                merge = new int[b.records.length];
+                sortedTypes = new int[b.types.length];
+                sortedLongs = new long[b.longs.length];
+                sortedRecords = new long[b.records.length];
+            }
+            for (int i=0; i < b.rows; i++) order[i] = i;
+            sort(b, 0, b.rows);
+
+            for (int i=0; i < b.rows; i++) {
+                int from = order[i] * params, to = i * params;
+                System.arraycopy(b.types, from, sortedTypes, to, params);
+                System.arraycopy(b.longs, from, sortedLongs, to, params);
+                sortedRecords[i] = b.records[order[i]];
+            }
+            int[] t = b.types; b.types = sortedTypes; sortedTypes = t;
+            long[] l = b.longs; b.longs = sortedLongs; sortedLongs = l;
+            l = b.records; b.records = sortedRecords; sortedRecords = l;
+        }
+
+        // merge sorts order[lo, hi), keeping equal keys in input order
+        private void sort(Batch b, int lo, int hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i < hi; i++) {
+                    int row = order[i], j = i;
+                    for (; j > lo && compare(b, order[j - 1], row) > 0; j--)
+                        order[j] = order[j - 1];
+                    order[j] = row;
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            sort(b, lo, mid);
+            sort(b, mid, hi);
+            if (compare(b, order[mid - 1], order[mid]) <= 0) return;
+
+            System.arraycopy(order, lo, merge, lo, hi - lo);
+            for (int i = lo, j = mid, k = lo; k < hi; k++) {
+                if (j == hi || (i < mid && compare(b, merge[i], merge[j]) <= 0))
+                    order[k] = merge[i++];
+                else
+                    order[k] = merge[j++];
+            }
+        }
+
+        // compares the keys of two rows: NULL first, then integers, then
+        // text by its bytes as in the BINARY collation
+        private int compare(Batch b, int x, int y) {
+            int i = x * params + sortField, j = y * params + sortField;
+            int rx = rank(b.types[i]), ry = rank(b.types[j]);
+            if (rx != ry) return rx < ry ? -1 : 1;
+            long u = b.longs[i], v = b.longs[j];
+            if (rx == 1) return u < v ? -1 : u == v ? 0 : 1;
+            if (rx == 0) return 0;
+
+            byte[] t = b.text;
+            int p = (int)(u >>> 32), plen = (int)u;
+            int q = (int)(v >>> 32), qlen = (int)v;
+            for (int k=0, n = Math.min(plen, qlen); k < n; k++) {
+                int c = (t[p + k] & 0xff) - (t[q + k] & 0xff);
+                if (c != 0) return c;
+            }
+            return plen - qlen;
+        }
+
+        private int rank(int type) {
+            switch (type) {
+                case Codes.SQLITE_NULL: return 0;
+                case Codes.SQLITE_INTEGER: return 1;
+                default: return 2;
+            }
+        }
+    }
+}
@@ -103,4 +103,13 @@ interface Codes
     public static final int SQLITE_TEXT       =  3;
     public static final int SQLITE_BLOB       =  4;
     public static final int SQLITE_NULL       =  5;
+
+
+    // flags for sqlite3_open_v2()
+
+    public static final int SQLITE_OPEN_READONLY  = 0x00000001;
+    public static final int SQLITE_OPEN_READWRITE = 0x00000002;
+    public static final int SQLITE_OPEN_CREATE    = 0x00000004;
+    public static final int SQLITE_OPEN_NOMUTEX   = 0x00008000;
+    public static final int SQLITE_OPEN_FULLMUTEX = 0x00010000;
 }
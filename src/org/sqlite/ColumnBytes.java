@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.sql.*;
+
+/** Reads a column of the current row of an SQLite ResultSet into a
+ *  caller-supplied buffer, as <tt>getBytes()</tt> would return it but
+ *  without allocating an array per value.
+ *
+ * <p>The bytes are copied straight from SQLite into the buffer. A direct
+ * ByteBuffer is written by the native library with no Java array in
+ * between. Reading a value that is larger than the room in the buffer
+ * throws an SQLException and leaves the buffer unchanged, so
+ * <tt>length()</tt> can be used first to size it. NULL is reported as
+ * -1, and by <tt>wasNull()</tt>.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      byte[] buf = new byte[64 * 1024];
+ *      ResultSet rs = stat.executeQuery("select data from thumbnails;");
+ *      while (rs.next()) {
+ *          int len = ColumnBytes.length(rs, 1);
+ *          if (len &gt; buf.length) buf = new byte[len];
+ *          ColumnBytes.read(rs, 1, buf, 0);
+ *          out.write(buf, 0, len);
+ *      }
+ *  </pre>
+ *
+ * <p>The <tt>utf8</tt> methods do the same with the UTF-8 bytes of a
+ * column read as text, as SQLite stores it, for passing text on to
+ * something that wants UTF-8 without decoding it to a String and
+ * encoding it again.</p>
+ */
+public final class ColumnBytes
+{
+    private ColumnBytes() {}
+
+    /** Returns the length in bytes of a column of the current row, or -1
+     *  if it is NULL. */
+    public static int length(ResultSet rs, int col) throws SQLException {
+        return rs(rs).bytesLength(col, false);
+    }
+
+    /** Copies a column of the current row into b, starting at off.
+     *  Returns the number of bytes copied, or -1 if the value is NULL. */
+    public static int read(ResultSet rs, int col, byte[] b, int off)
+            throws SQLException {
+        if (off < 0 || off > b.length)
+            throw new IndexOutOfBoundsException();
+        return rs(rs).readBytes(col, false, b, off, b.length - off);
+    }
+
+    /** Copies a column of the current row to the position of buf, and
+     *  advances the position past it. Returns the number of bytes
+     *  copied, or -1 if the value is NULL. */
+    public static int read(ResultSet rs, int col, ByteBuffer buf)
+            throws SQLException {
+        if (buf.isReadOnly()) throw new ReadOnlyBufferException();
+        return rs(rs).readBytes(col, false, buf);
+    }
+
+    /** Returns the length in bytes of a column of the current row as
+     *  UTF-8 text, or -1 if it is NULL. */
+    public static int utf8Length(ResultSet rs, int col) throws SQLException {
+        return rs(rs).bytesLength(col, true);
+    }
+
+    /** Copies a column of the current row as UTF-8 text into b, starting
+     *  at off. Returns the number of bytes copied, or -1 if the value is
+     *  NULL. */
+    public static int readUtf8(ResultSet rs, int col, byte[] b, int off)
+            throws SQLException {
+        if (off < 0 || off > b.length)
+            throw new IndexOutOfBoundsException();
+        return rs(rs).readBytes(col, true, b, off, b.length - off);
+    }
+
+    /** Copies a column of the current row as UTF-8 text to the position
+     *  of buf, and advances the position past it. Returns the number of
+     *  bytes copied, or -1 if the value is NULL. */
+    public static int readUtf8(ResultSet rs, int col, ByteBuffer buf)
+            throws SQLException {
+        if (buf.isReadOnly()) throw new ReadOnlyBufferException();
+        return rs(rs).readBytes(col, true, buf);
+    }
+
+    private static RS rs(ResultSet rs) throws SQLException {
+        if (rs == null || !(rs instanceof RS))
+            throw new SQLException("ResultSet must be from an SQLite db");
+        return (RS)rs;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.*;
+
+/** Reads the rows of an SQLite ResultSet a column at a time into
+ *  caller-supplied buffers.
+ *
+ * <p>Each column of interest is given a kind and buffers with
+ * <tt>bind()</tt>. Every call to <tt>read()</tt> then fills the buffers
+ * with the next batch of rows, without creating an object per value:</p>
+ *
+ * <ul>
+ *  <li><tt>LONG</tt> and <tt>DOUBLE</tt> columns write 8 bytes per row
+ *  into <tt>values</tt>.</li>
+ *  <li><tt>BYTES</tt> columns write the raw bytes of each TEXT (as UTF-8)
+ *  or BLOB value one after another into <tt>data</tt>, and an int offset
+ *  per row into <tt>values</tt>, with a final offset marking the end of
+ *  the last value. Row <tt>i</tt> covers <tt>data</tt> from
+ *  <tt>values.getInt(4*i)</tt> to <tt>values.getInt(4*i + 4)</tt>.</li>
+ *  <li><tt>nulls</tt> has a bit for each row, bit <tt>i % 8</tt> of byte
+ *  <tt>i / 8</tt>, set if the value is NULL. NULL values are written as 0
+ *  or an empty value.</li>
+ * </ul>
+ *
+ * <p>Buffers are switched to native byte order, and after each
+ * <tt>read()</tt> have position 0 and a limit at the end of the bytes
+ * written. The native library requires direct buffers. A batch is cut
+ * short if the next row's value does not fit in a <tt>data</tt> buffer,
+ * and that row starts the next batch.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      ResultSet rs = stat.executeQuery("select id, price from items;");
+ *      ColumnarReader reader = new ColumnarReader(rs);
+ *      ByteBuffer prices = ByteBuffer.allocateDirect(8 * 1024);
+ *      ByteBuffer nulls = ByteBuffer.allocateDirect(1024 / 8);
+ *      reader.bind(2, ColumnarReader.DOUBLE, prices, nulls, null);
+ *
+ *      double total = 0;
+ *      for (int rows; (rows = reader.read(1024)) != 0;)
+ *          for (int i=0; i &lt; rows; i++)
+ *              total += prices.getDouble(8 * i);
+ *  </pre>
+ *
+ * <p>Rows read here are consumed from the ResultSet, which is closed once
+ * they run out. Reading is not possible while the ResultSet has rows
+ * fetched ahead for a fetch size that it has not yet returned.</p>
+ */
+public final class ColumnarReader
+{
+    /** Column kind: 64-bit integers. */
+    public static final int LONG = 1;
+
+    /** Column kind: 64-bit floating point numbers. */
+    public static final int DOUBLE = 2;
+
+    /** Column kind: UTF-8 text or blob bytes with int offsets. */
+    public static final int BYTES = 3;
+
+    private final RS rs;
+    private final int[] kinds;
+    private final ByteBuffer[] values, nulls, data;
+
+    /** Creates a reader over the remaining rows of an SQLite ResultSet. */
+    public ColumnarReader(ResultSet rs) throws SQLException {
+        if (rs == null || !(rs instanceof RS))
+            throw new SQLException("ResultSet must be from an SQLite db");
+        this.rs = (RS)rs;
+
+        int cols = rs.getMetaData().getColumnCount();
+        kinds  = new int[cols];
+        values = new ByteBuffer[cols];
+        nulls  = new ByteBuffer[cols];
+        data   = new ByteBuffer[cols];
+    }
+
+    /** Sets the kind and buffers used to read a column, numbered from 1.
+     *  <tt>data</tt> is only used by <tt>BYTES</tt> columns. */
+    public void bind(int col, int kind, ByteBuffer values, ByteBuffer nulls,
+                     ByteBuffer data) throws SQLException {
+        if (col < 1 || col > kinds.length) throw new SQLException(
+            "column " + col + " out of bounds [1," + kinds.length + "]");
+        if (kind != LONG && kind != DOUBLE && kind != BYTES)
+            throw new SQLException("unknown column kind: " + kind);
+        if (values == null || nulls == null || (kind == BYTES && data == null))
+            throw new SQLException("missing buffer for column " + col);
+
+        col--;
+        kinds[col] = kind;
+        this.values[col] = values.order(ByteOrder.nativeOrder());
+        this.nulls[col] = nulls;
+        this.data[col] = data;
+    }
+
+    /** Removes a column from those read. */
+    public void unbind(int col) throws SQLException {
+        if (col < 1 || col > kinds.length) throw new SQLException(
+            "column " + col + " out of bounds [1," + kinds.length + "]");
+        col--;
+        kinds[col] = 0;
+        values[col] = nulls[col] = data[col] = null;
+    }
+
+    /** Reads up to max rows into the bound buffers, fewer if the buffers
+     *  cannot hold max rows. Returns the number of rows read, or 0 when
+     *  there are no more. */
+    public int read(int max) throws SQLException {
+        for (int col=0; col < kinds.length; col++) {
+            if (kinds[col] == 0) continue;
+            int width = kinds[col] == BYTES ? 4 : 8;
+            int extra = kinds[col] == BYTES ? 1 : 0;
+            max = Math.min(max, values[col].capacity() / width - extra);
+            max = Math.min(max, nulls[col].capacity() * 8);
+        }
+        if (max < 1) throw new SQLException("column buffers too small");
+
+        int rows = rs.readColumns(max, kinds, values, nulls, data);
+
+        for (int col=0; col < kinds.length; col++) {
+            if (kinds[col] == 0) continue;
+            values[col].clear();
+            nulls[col].clear();
+            nulls[col].limit((rows + 7) / 8);
+            if (kinds[col] == BYTES) {
+                data[col].clear();
+                data[col].limit(rows == 0 ? 0 : values[col].getInt(4 * rows));
+                values[col].limit(rows == 0 ? 0 : 4 * rows + 4);
+            } else {
+                values[col].limit(8 * rows);
+            }
+        }
+        return rows;
+    }
+}
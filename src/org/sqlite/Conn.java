@@ -28,13 +28,13 @@ class Conn implements Connection
     private MetaData meta = null;
     private boolean autoCommit = true;
     private int timeout = 0;
+    private PooledConn pool = null; // returned to on close, if a handle
 
-    public Conn(String url, String filename, boolean sharedCache)
-            throws SQLException {
-        this(url, filename);
-        db.shared_cache(sharedCache);
-    }
     public Conn(String url, String filename) throws SQLException {
+        this(url, filename, new Properties());
+    }
+    public Conn(String url, String filename, Properties info)
+            throws SQLException {
         boolean ro = false;
 
         // check the path to the file exists
@@ -64,7 +64,7 @@ class Conn implements Connection
                 ro = !file.canWrite();
         }
 
-        readOnly = ro;
+        readOnly = ro || Boolean.parseBoolean(info.getProperty("read_only"));
 
         // TODO: library variable to explicitly control load type
         // attempt to use the Native library first
@@ -85,8 +85,63 @@ class Conn implements Connection
         }
 
         this.url = url;
-        db.open(this, filename);
+
+        // a connection confined to one thread does not need SQLite to
+        // serialize calls with its own mutex, nor the driver's lock
+        boolean confined =
+            Boolean.parseBoolean(info.getProperty("thread_confined"));
+        db.confined = confined;
+
+        // shared-cache mode is a process-wide setting read when a database
+        // is opened, so it is on only while this one opens
+        boolean shared =
+            Boolean.parseBoolean(info.getProperty("shared_cache"));
+        synchronized (Conn.class) {
+            if (shared) db.shared_cache(true);
+            try {
+                db.open(this, filename, (readOnly ?
+                    Codes.SQLITE_OPEN_READONLY : Codes.SQLITE_OPEN_READWRITE
+                        | Codes.SQLITE_OPEN_CREATE) | (confined ?
+                    Codes.SQLITE_OPEN_NOMUTEX : Codes.SQLITE_OPEN_FULLMUTEX));
+            } finally {
+                if (shared) db.shared_cache(false);
+            }
+        }
+        if (readOnly && shared) db.deny_writes();
+        if (Boolean.parseBoolean(info.getProperty("check_thread")))
+            db.owner = Thread.currentThread();
         setTimeout(3000);
+
+        int cacheSize = StatementCache.DEFAULT_SIZE;
+        String size = info.getProperty("statement_cache_size");
+        if (size != null) {
+            try {
+                cacheSize = Integer.parseInt(size.trim());
+            } catch (NumberFormatException e) { cacheSize = -1; }
+            if (cacheSize < 0) {
+                db.close();
+                throw new SQLException(
+                    "invalid statement_cache_size: '" + size + "'");
+            }
+        }
+        if (cacheSize > 0)
+            db.cache = new StatementCache(db, cacheSize);
+
+        String batchTransaction = info.getProperty("batch_transaction");
+        if (batchTransaction != null)
+            db.batchTransaction = Boolean.parseBoolean(batchTransaction);
+    }
+
+    /** Creates a handle on the open database of a pooled connection,
+     *  which returns it to the pool on close. */
+    Conn(Conn physical, PooledConn pool) {
+        this.url = physical.url;
+        this.readOnly = physical.readOnly;
+        this.db = physical.db;
+        this.timeout = physical.timeout;
+        this.pool = pool;
+        db.conn = this;
+        if (db.owner != null) db.owner = Thread.currentThread();
     }
 
     int getTimeout() { return timeout; }
@@ -116,6 +171,11 @@ class Conn implements Connection
         if (db == null) return;
         if (meta != null) meta.close();
 
+        if (pool != null) {
+            db = null;
+            pool.closed(this);
+            return;
+        }
         db.close();
         db = null;
     }
@@ -16,9 +16,13 @@
 package org.sqlite;
 
 import java.lang.ref.*;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * This class is the interface to SQLite. It provides some helper functions
@@ -45,6 +49,35 @@ abstract class DB implements Codes
     /** Tracer for statements to avoid unfinalized statements on db close. */
     private Map stmts = new Hashtable();
 
+    /** Open BlobChannels, closed before the db is. */
+    private Map blobs = new Hashtable();
+
+    /** Idle statement handles kept for reuse, null if disabled. */
+    StatementCache cache = null;
+
+    /** Counts statements prepared on this connection that may change the
+     *  schema, so handles prepared before one are not reused. */
+    int schema = 0;
+
+    /** Whether batches in auto-commit mode run in one transaction. */
+    boolean batchTransaction = true;
+
+    /** The only thread allowed to use the connection, null if any. */
+    Thread owner = null;
+
+    /** Whether the connection is used by one thread at a time, so needs
+     *  no lock. */
+    boolean confined = false;
+
+    /** Held while a sequence of SQLite calls must not be interleaved with
+     *  calls from another thread. A ReentrantLock rather than a monitor,
+     *  so a virtual thread waiting for a connection that is busy in step()
+     *  parks instead of pinning its carrier thread. */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    final void lock() { if (!confined) mutex.lock(); }
+    final void unlock() { if (!confined) mutex.unlock(); }
+
     // WRAPPER FUNCTIONS ////////////////////////////////////////////
 
     abstract void interrupt() throws SQLException;
@@ -52,34 +85,64 @@ abstract class DB implements Codes
     abstract String errmsg() throws SQLException;
     abstract String libversion() throws SQLException;
     abstract int changes() throws SQLException;
+    abstract boolean get_autocommit() throws SQLException;
     abstract int shared_cache(boolean enable) throws SQLException;
 
-    final synchronized void exec(String sql) throws SQLException {
-        long pointer = 0;
+    /** Makes statements that would write fail to prepare. A database
+     *  opened read-only needs this only if it shares a cache with one
+     *  that can write, which is never the case for NestedDB. */
+    void deny_writes() throws SQLException {}
+
+    final void exec(String sql) throws SQLException {
+        lock();
         try {
-            pointer = prepare(sql);
-            switch (step(pointer)) {
-                case SQLITE_DONE:
-                    ensureAutoCommit();
-                    return;
-                case SQLITE_ROW:
-                    return;
-                default:
-                    throwex();
+            long pointer = 0;
+            try {
+                if (changesSchema(sql)) schema++;
+                pointer = prepare(sql);
+                switch (step(pointer)) {
+                    case SQLITE_DONE:
+                        ensureAutoCommit();
+                        return;
+                    case SQLITE_ROW:
+                        return;
+                    default:
+                        throwex();
+                }
+            } finally {
+                finalize(pointer);
             }
         } finally {
-            finalize(pointer);
+            unlock();
         }
     }
 
-    final synchronized void open(Conn conn, String file) throws SQLException {
-        this.conn = conn;
-        _open(file);
+    /** Opens the database with the given sqlite3_open_v2() flags. */
+    final void open(Conn conn, String file, int flags)
+            throws SQLException {
+        lock();
+        try {
+            this.conn = conn;
+            _open(file, flags);
+        } finally {
+            unlock();
+        }
     }
 
-    final synchronized void close() throws SQLException {
-        // finalize any remaining statements before closing db
-        synchronized (stmts) {
+    /** Throws an exception if the connection is confined to another
+     *  thread. */
+    final void checkThread() throws SQLException {
+        if (owner != null && owner != Thread.currentThread())
+            throw new SQLException(
+                "connection is confined to thread " + owner.getName());
+    }
+
+    final void close() throws SQLException {
+        lock();
+        try {
+            // finalize any remaining statements before closing db
+            if (cache != null)
+                cache.clear();
             Iterator i = stmts.entrySet().iterator();
             while (i.hasNext()) {
                 Map.Entry entry = (Map.Entry)i.next();
@@ -90,44 +153,127 @@ abstract class DB implements Codes
                 }
                 i.remove();
             }
-        }
 
-        // remove memory used by user-defined functions
-        free_functions();
+            i = blobs.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry entry = (Map.Entry)i.next();
+                blob_close(((Long)entry.getKey()).longValue());
+                ((BlobChannel)entry.getValue()).pointer = 0;
+                i.remove();
+            }
+
+            // remove memory used by user-defined functions
+            free_functions();
+
+            // clean up commit object
+            if (begin != 0) {
+                finalize(begin);
+                begin = 0;
+            }
+            if (commit != 0) {
+                finalize(commit);
+                commit = 0;
+            }
 
-        // clean up commit object
-        if (begin != 0) {
-            finalize(begin);
-            begin = 0;
+            _close();
+        } finally {
+            unlock();
         }
-        if (commit != 0) {
-            finalize(commit);
-            commit = 0;
+    }
+
+    /** Closes the statements and blobs left open by a pooled connection
+     *  being returned, so their handles go back to the statement cache
+     *  rather than staying in use by the closed connection. */
+    final void closeAll() {
+        lock();
+        try {
+            Object[] open = stmts.values().toArray();
+            for (int i=0; i < open.length; i++) {
+                try { ((Stmt)open[i]).close(); } catch (SQLException e) {
+                    try { finalize((Stmt)open[i]); }
+                    catch (SQLException e2) {}
+                }
+            }
+            open = blobs.values().toArray();
+            for (int i=0; i < open.length; i++) {
+                try { ((BlobChannel)open[i]).close(); }
+                catch (IOException e) {}
+            }
+        } finally {
+            unlock();
         }
+    }
 
-        _close();
+    final void prepare(Stmt stmt) throws SQLException {
+        lock();
+        try {
+            checkThread();
+            if (stmt.conn != conn)
+                throw new SQLException("database connection closed");
+            if (stmt.pointer != 0)
+                release(stmt);
+            if (changesSchema(stmt.sql)) schema++;
+            // only PreparedStatements are cached, so ad-hoc SQL does not
+            // evict their handles
+            long pointer = cache == null || !(stmt instanceof PrepStmt) ?
+                0 : cache.take(stmt.sql);
+            stmt.pointer = pointer != 0 ? pointer : prepare(stmt.sql);
+            stmt.schema = schema;
+            stmts.put(new Long(stmt.pointer), stmt);
+        } finally {
+            unlock();
+        }
     }
 
-    final synchronized void prepare(Stmt stmt) throws SQLException {
-        if (stmt.pointer != 0)
-            finalize(stmt);
-        stmt.pointer = prepare(stmt.sql);
-        stmts.put(new Long(stmt.pointer), stmt);
+    /** Returns true if the SQL may create, alter or drop part of the
+     *  schema, changing the columns of statements prepared before it. */
+    static boolean changesSchema(String sql) {
+        if (sql == null) return false;
+        int i = 0, len = sql.length();
+        while (i < len && Character.isWhitespace(sql.charAt(i))) i++;
+        return sql.regionMatches(true, i, "create", 0, 6)
+            || sql.regionMatches(true, i, "drop", 0, 4)
+            || sql.regionMatches(true, i, "alter", 0, 5)
+            || sql.regionMatches(true, i, "attach", 0, 6)
+            || sql.regionMatches(true, i, "detach", 0, 6);
     }
 
-    final synchronized int finalize(Stmt stmt) throws SQLException {
-        if (stmt.pointer == 0) return 0;
-        int rc = SQLITE_ERROR;
+    /** Returns the statement handle to the cache if there is room for it,
+     *  otherwise finalizes it. */
+    final int release(Stmt stmt) throws SQLException {
+        lock();
         try {
-            rc = finalize(stmt.pointer);
-        } finally {
+            if (stmt.pointer == 0) return 0;
+            if (cache == null || !(stmt instanceof PrepStmt)
+                    || !cache.give(stmt.sql, stmt.pointer, stmt.schema))
+                return finalize(stmt);
             stmts.remove(new Long(stmt.pointer));
             stmt.pointer = 0;
+            return SQLITE_OK;
+        } finally {
+            unlock();
         }
-        return rc;
     }
 
-    protected abstract void _open(String filename) throws SQLException;
+    final int finalize(Stmt stmt) throws SQLException {
+        lock();
+        try {
+            if (stmt.pointer == 0) return 0;
+            int rc = SQLITE_ERROR;
+            try {
+                rc = finalize(stmt.pointer);
+            } finally {
+                stmts.remove(new Long(stmt.pointer));
+                stmt.pointer = 0;
+            }
+            return rc;
+        } finally {
+            unlock();
+        }
+    }
+
+    protected abstract void _open(String filename, int flags)
+        throws SQLException;
     protected abstract void _close() throws SQLException;
     protected abstract long prepare(String sql) throws SQLException;
     protected abstract int finalize(long stmt) throws SQLException;
@@ -144,6 +290,7 @@ abstract class DB implements Codes
     abstract String column_name       (long stmt, int col) throws SQLException;
     abstract String column_text       (long stmt, int col) throws SQLException;
     abstract byte[] column_blob       (long stmt, int col) throws SQLException;
+    abstract int    column_bytes      (long stmt, int col) throws SQLException;
     abstract double column_double     (long stmt, int col) throws SQLException;
     abstract long   column_long       (long stmt, int col) throws SQLException;
     abstract int    column_int        (long stmt, int col) throws SQLException;
@@ -155,6 +302,15 @@ abstract class DB implements Codes
     abstract int bind_text  (long stmt, int pos, String v) throws SQLException;
     abstract int bind_blob  (long stmt, int pos, byte[] v) throws SQLException;
 
+    /** Binds the bytes of a direct buffer from 0 to its capacity. The
+     *  native library does not copy them, so the buffer must not change
+     *  until the statement has run. */
+    int bind_blob(long stmt, int pos, ByteBuffer v) throws SQLException {
+        byte[] b = new byte[v.capacity()];
+        ((ByteBuffer)v.duplicate().clear()).get(b);
+        return bind_blob(stmt, pos, b);
+    }
+
     abstract void result_null  (long context) throws SQLException;
     abstract void result_text  (long context, String val) throws SQLException;
     abstract void result_blob  (long context, byte[] val) throws SQLException;
@@ -182,106 +338,569 @@ abstract class DB implements Codes
      */
     abstract boolean[][] column_metadata(long stmt) throws SQLException;
 
+    /** Copies up to len bytes of a blob column, starting from byte from,
+     *  into b at off. Returns the number of bytes copied. */
+    int column_blob(long stmt, int col, int from, byte[] b, int off, int len)
+            throws SQLException {
+        byte[] v = column_blob(stmt, col);
+        if (v == null || from >= v.length) return 0;
+        len = Math.min(len, v.length - from);
+        System.arraycopy(v, from, b, off, len);
+        return len;
+    }
 
-    // COMPOUND FUNCTIONS ////////////////////////////////////////////
+    /** Stores the type of each of the first cols columns of the current
+     *  row in types. INTEGER and FLOAT values are stored with their long
+     *  and double conversions, other columns get 0. */
+    void read_row(long stmt, int cols, int[] types, long[] longs,
+            double[] doubles) throws SQLException {
+        for (int col=0; col < cols; col++) {
+            types[col] = column_type(stmt, col);
+            boolean number = types[col] == SQLITE_INTEGER
+                || types[col] == SQLITE_FLOAT;
+            longs[col] = number ? column_long(stmt, col) : 0;
+            doubles[col] = number ? column_double(stmt, col) : 0;
+        }
+    }
 
-    final synchronized String[] column_names(long stmt) throws SQLException {
-        String[] names = new String[column_count(stmt)];
-        for (int i=0; i < names.length; i++)
-            names[i] = column_name(stmt, i);
-        return names;
+    /** Opens an sqlite3_blob handle on the value of a column in a row. */
+    abstract long blob_open(String db, String table, String column,
+            long rowid, boolean write) throws SQLException;
+    abstract int blob_bytes(long blob) throws SQLException;
+    abstract int blob_read(long blob, int offset, byte[] b, int off, int len)
+        throws SQLException;
+    abstract int blob_write(long blob, int offset, byte[] b, int off, int len)
+        throws SQLException;
+    abstract int blob_close(long blob) throws SQLException;
+
+    /** Reads len bytes of a blob at offset into buf at its position,
+     *  without moving it. */
+    int blob_read(long blob, int offset, ByteBuffer buf, int len)
+            throws SQLException {
+        if (buf.hasArray()) return blob_read(blob, offset, buf.array(),
+            buf.arrayOffset() + buf.position(), len);
+        ByteBuffer dst = buf.duplicate();
+        byte[] b = new byte[Math.min(len, 8192)];
+        int rc = SQLITE_OK;
+        for (int n; len > 0 && rc == SQLITE_OK; offset += n, len -= n) {
+            n = Math.min(len, b.length);
+            rc = blob_read(blob, offset, b, 0, n);
+            if (rc == SQLITE_OK) dst.put(b, 0, n);
+        }
+        return rc;
     }
 
-    final synchronized int sqlbind(long stmt, int pos, Object v)
+    /** Writes len bytes of buf from its position to a blob at offset,
+     *  without moving it. */
+    int blob_write(long blob, int offset, ByteBuffer buf, int len)
             throws SQLException {
-        pos++;
-        if (v == null) {
-            return bind_null(stmt, pos);
-        } else if (v instanceof Integer) {
-            return bind_int(stmt, pos, ((Integer)v).intValue());
-        } else if (v instanceof Long) {
-            return bind_long(stmt, pos, ((Long)v).longValue());
-        } else if (v instanceof Double) {
-            return bind_double(stmt, pos, ((Double)v).doubleValue());
-        } else if (v instanceof String) {
-            return bind_text(stmt, pos, (String)v);
-        } else if (v instanceof byte[]) {
-            return bind_blob(stmt, pos, (byte[])v);
-        } else {
-            throw new SQLException("unexpected param type: "+v.getClass());
+        if (buf.hasArray()) return blob_write(blob, offset, buf.array(),
+            buf.arrayOffset() + buf.position(), len);
+        ByteBuffer src = buf.duplicate();
+        byte[] b = new byte[Math.min(len, 8192)];
+        int rc = SQLITE_OK;
+        for (int n; len > 0 && rc == SQLITE_OK; offset += n, len -= n) {
+            n = Math.min(len, b.length);
+            src.get(b, 0, n);
+            rc = blob_write(blob, offset, b, 0, n);
         }
+        return rc;
     }
 
-    final synchronized int[] executeBatch(long stmt, int count, Object[] vals)
+
+    // COMPOUND FUNCTIONS ////////////////////////////////////////////
+
+    final void openBlob(BlobChannel blob, String db, String table,
+            String column, long rowid, boolean write) throws SQLException {
+        lock();
+        try {
+            blob.pointer = blob_open(db, table, column, rowid, write);
+            blobs.put(new Long(blob.pointer), blob);
+        } finally {
+            unlock();
+        }
+    }
+
+    final void closeBlob(BlobChannel blob) throws SQLException {
+        lock();
+        try {
+            if (blob.pointer == 0) return;
+            blobs.remove(new Long(blob.pointer));
+            int rc = blob_close(blob.pointer);
+            blob.pointer = 0;
+            if (rc != SQLITE_OK) throwex();
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Copies a column as a blob into b at off if it fits in len bytes.
+     *  Returns the length of the value. */
+    int column_blob(long stmt, int col, byte[] b, int off, int len)
+            throws SQLException {
+        byte[] v = column_blob(stmt, col);
+        if (v == null) return 0;
+        if (v.length <= len) System.arraycopy(v, 0, b, off, v.length);
+        return v.length;
+    }
+
+    /** Copies a column as a blob to the position of buf if it fits,
+     *  leaving the position unchanged. Returns the length of the value. */
+    int column_blob(long stmt, int col, ByteBuffer buf) throws SQLException {
+        byte[] v = column_blob(stmt, col);
+        if (v == null) return 0;
+        if (v.length <= buf.remaining())
+            buf.duplicate().put(v);
+        return v.length;
+    }
+
+    /** Returns the length in bytes of a column as UTF-8 text. */
+    int column_text_bytes(long stmt, int col) throws SQLException {
+        byte[] v = column_utf8(stmt, col);
+        return v == null ? 0 : v.length;
+    }
+
+    /** Copies a column as UTF-8 text into b at off if it fits in len
+     *  bytes. Returns the length of the value. */
+    int column_text(long stmt, int col, byte[] b, int off, int len)
             throws SQLException {
-        if (count < 1) throw new SQLException("count (" + count + ") < 1");
+        byte[] v = column_utf8(stmt, col);
+        if (v == null) return 0;
+        if (v.length <= len) System.arraycopy(v, 0, b, off, v.length);
+        return v.length;
+    }
 
-        final int params = bind_parameter_count(stmt);
+    /** Copies a column as UTF-8 text to the position of buf if it fits,
+     *  leaving the position unchanged. Returns the length of the value. */
+    int column_text(long stmt, int col, ByteBuffer buf) throws SQLException {
+        byte[] v = column_utf8(stmt, col);
+        if (v == null) return 0;
+        if (v.length <= buf.remaining())
+            buf.duplicate().put(v);
+        return v.length;
+    }
 
-        int rc;
-        int[] changes = new int[count];
+    private byte[] column_utf8(long stmt, int col) throws SQLException {
+        String s = column_text(stmt, col);
+        if (s == null) return null;
+        try { return s.getBytes("UTF-8"); }
+        catch (java.io.UnsupportedEncodingException e) {
+            throw new SQLException(e.getMessage()); }
+    }
 
+    final String[] column_names(long stmt) throws SQLException {
+        lock();
         try {
-        for (int i=0; i < count; i++) {
-            reset(stmt);
-            for (int j=0; j < params; j++)
-                if (sqlbind(stmt, j, vals[(i * params) + j]) != SQLITE_OK)
-                    throwex();
-
-            rc = step(stmt);
-            if (rc != SQLITE_DONE) {
-                reset(stmt);
-                if (rc == SQLITE_ROW) throw new BatchUpdateException(
-                    "batch entry "+i+": query returns results", changes);
-                throwex();
+            String[] names = new String[column_count(stmt)];
+            for (int i=0; i < names.length; i++)
+                names[i] = column_name(stmt, i);
+            return names;
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Reads up to max rows of the statement into the given arrays, laid
+     *  out row-major with column_count() cells to a row. If first is true
+     *  the current row is read before stepping, otherwise the statement
+     *  is stepped before each row is read. Returns the number of rows
+     *  read, fewer than max only if the statement has finished.
+     *
+     *  Every cell has its SQLite type. Cells that are not NULL also have
+     *  their long and double conversions, TEXT and FLOAT cells a String
+     *  of their column_text() and BLOB cells their column_blob() in
+     *  objs, so the values match those read from the row.
+     *
+     *  NativeDB does this in one JNI call. */
+    int fetch(long stmt, boolean first, int max, int[] types,
+                           long[] longs, double[] doubles, Object[] objs)
+            throws SQLException {
+        lock();
+        try {
+            final int cols = column_count(stmt);
+
+            int rows = 0;
+            for (; rows < max; rows++) {
+                if (rows > 0 || !first) {
+                    switch (step(stmt)) {
+                        case SQLITE_ROW: break;
+                        case SQLITE_DONE: return rows;
+                        case SQLITE_BUSY:
+                        case SQLITE_LOCKED:
+                            throw new SQLException("database locked");
+                        default:
+                            throwex();
+                    }
+                }
+
+                for (int col=0, i=rows * cols; col < cols; col++, i++) {
+                    objs[i] = null;
+                    longs[i] = 0;
+                    doubles[i] = 0;
+                    switch (types[i] = column_type(stmt, col)) {
+                        case SQLITE_NULL: continue;
+                        case SQLITE_BLOB:
+                            objs[i] = column_blob(stmt, col); break;
+                        case SQLITE_TEXT:
+                        case SQLITE_FLOAT:
+                            objs[i] = column_text(stmt, col); break;
+                    }
+                    longs[i] = column_long(stmt, col);
+                    doubles[i] = column_double(stmt, col);
+                }
             }
+            return rows;
+        } finally {
+            unlock();
+        }
+    }
 
-            changes[i] = changes();
+    /** Reads up to max rows of the statement into per-column buffers for
+     *  ColumnarReader, stepping as fetch() does. For column col of a kind
+     *  other than 0, values[col] holds a long or double per row, or for
+     *  ColumnarReader.BYTES an int offset into data[col] per row plus one
+     *  for the end, and nulls[col] holds a bit per row set if NULL. All
+     *  are written from index 0 in native byte order.
+     *
+     *  Returns the number of rows read. status[0] is set to SQLITE_DONE
+     *  if the statement finished, SQLITE_ROW if its current row did not
+     *  fit in a data buffer and has not been read, otherwise SQLITE_OK.
+     *
+     *  NativeDB requires direct buffers. */
+    int fetch_columns(long stmt, boolean first, int max,
+            int[] kinds, ByteBuffer[] values, ByteBuffer[] nulls,
+            ByteBuffer[] data, int[] status) throws SQLException {
+        lock();
+        try {
+            status[0] = SQLITE_OK;
+            for (int col=0; col < kinds.length; col++) {
+                if (kinds[col] == 0) continue;
+                for (int i=0; i < (max + 7) / 8; i++)
+                    nulls[col].put(i, (byte)0);
+                if (kinds[col] == ColumnarReader.BYTES)
+                    values[col].putInt(0, 0);
+            }
+
+            int rows = 0;
+            for (; rows < max; rows++) {
+                if (rows > 0 || !first) {
+                    switch (step(stmt)) {
+                        case SQLITE_ROW: break;
+                        case SQLITE_DONE:
+                            status[0] = SQLITE_DONE;
+                            return rows;
+                        case SQLITE_BUSY:
+                        case SQLITE_LOCKED:
+                            throw new SQLException("database locked");
+                        default:
+                            throwex();
+                    }
+                }
+
+                for (int col=0; col < kinds.length; col++) {
+                    if (kinds[col] == 0) continue;
+                    boolean isNull = column_type(stmt, col) == SQLITE_NULL;
+                    if (isNull) {
+                        int i = rows / 8;
+                        nulls[col].put(i,
+                            (byte)(nulls[col].get(i) | 1 << rows % 8));
+                    }
+
+                    switch (kinds[col]) {
+                        case ColumnarReader.LONG:
+                            values[col].putLong(rows * 8,
+                                isNull ? 0 : column_long(stmt, col));
+                            break;
+                        case ColumnarReader.DOUBLE:
+                            values[col].putDouble(rows * 8,
+                                isNull ? 0 : column_double(stmt, col));
+                            break;
+                        case ColumnarReader.BYTES:
+                            byte[] b = isNull ? null : column_blob(stmt, col);
+                            int off = values[col].getInt(rows * 4);
+                            int len = b == null ? 0 : b.length;
+                            if (off + len > data[col].capacity()) {
+                                if (rows == 0) throw new SQLException(
+                                    "column " + (col + 1)
+                                    + " value too large for buffer");
+                                status[0] = SQLITE_ROW;
+                                return rows;
+                            }
+                            for (int i=0; i < len; i++)
+                                data[col].put(off + i, b[i]);
+                            values[col].putInt(rows * 4 + 4, off + len);
+                            break;
+                    }
+                }
+            }
+            return rows;
+        } finally {
+            unlock();
         }
+    }
+
+    /** Writes rows of the statement in a RowExporter format to the
+     *  position of buf, advancing it, stepping as fetch() does. For
+     *  JSON_LINES, keys holds the text written before each column,
+     *  column col ending at keyEnds[col]. A row that does not fit in the
+     *  rest of buf is not written.
+     *
+     *  Returns the number of rows written. status[0] is set to
+     *  SQLITE_DONE if the statement finished, SQLITE_ROW if its current
+     *  row did not fit and has not been written, otherwise SQLITE_OK. */
+    int export_rows(long stmt, boolean first, int max, int format,
+            byte[] keys, int[] keyEnds, ByteBuffer buf, int[] status)
+            throws SQLException {
+        lock();
+        try {
+            status[0] = SQLITE_OK;
+            int cols = column_count(stmt);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            int rows = 0;
+            for (; rows < max; rows++) {
+                if (rows > 0 || !first) {
+                    switch (step(stmt)) {
+                        case SQLITE_ROW: break;
+                        case SQLITE_DONE:
+                            status[0] = SQLITE_DONE;
+                            return rows;
+                        case SQLITE_BUSY:
+                        case SQLITE_LOCKED:
+                            throw new SQLException("database locked");
+                        default:
+                            throwex();
+                    }
+                }
+
+                out.reset();
+                RowExporter.row(out, format, this, stmt, cols, keys, keyEnds);
+                if (out.size() > buf.remaining()) {
+                    status[0] = SQLITE_ROW;
+                    return rows;
+                }
+                buf.put(out.toByteArray());
+            }
+            return rows;
         } finally {
-            ensureAutoCommit();
+            unlock();
         }
+    }
 
-        reset(stmt);
-        return changes;
+    /** Binds params parameters of a statement from the typed parameter
+     *  arrays of a PrepStmt, starting at offset. types holds the SQLite
+     *  type of each value, with integers in longs, floats in doubles and
+     *  String, byte[] or ByteBuffer values in objs. A type of 0 binds
+     *  NULL. */
+    final void bind(long stmt, int params, int offset,
+            int[] types, long[] longs, double[] doubles, Object[] objs)
+            throws SQLException {
+        bind(stmt, params, offset, types, longs, doubles, objs, null);
+    }
+
+    /** Binds as above, except that if text is not null each TEXT value is
+     *  the UTF-8 bytes in text at the offset held in the high 32 bits of
+     *  its long, with the length in the low 32 bits. */
+    final void bind(long stmt, int params, int offset, int[] types,
+            long[] longs, double[] doubles, Object[] objs, byte[] text)
+            throws SQLException {
+        lock();
+        try {
+            for (int i=0, j=offset; i < params; i++, j++) {
+                int rc, pos = i + 1;
+                switch (types[j]) {
+                    case SQLITE_INTEGER:
+                        long v = longs[j];
+                        rc = (int)v == v ? bind_int(stmt, pos, (int)v)
+                                         : bind_long(stmt, pos, v);
+                        break;
+                    case SQLITE_FLOAT:
+                        rc = bind_double(stmt, pos, doubles[j]); break;
+                    case SQLITE_TEXT:
+                        rc = bind_text(stmt, pos, text == null
+                            ? (String)objs[j] : utf8(text, longs[j]));
+                        break;
+                    case SQLITE_BLOB:
+                        rc = objs[j] instanceof ByteBuffer
+                            ? bind_blob(stmt, pos, (ByteBuffer)objs[j])
+                            : bind_blob(stmt, pos, (byte[])objs[j]);
+                        break;
+                    default:
+                        rc = bind_null(stmt, pos);
+                }
+                if (rc != SQLITE_OK) throwex();
+            }
+        } finally {
+            unlock();
+        }
     }
 
-    final synchronized boolean execute(Stmt stmt, Object[] vals)
+    private static String utf8(byte[] text, long slice)
             throws SQLException {
-        if (vals != null) {
-            final int params = bind_parameter_count(stmt.pointer);
-            if (params != vals.length)
-                throw new SQLException("assertion failure: param count ("
-                        + params + ") != value count (" + vals.length + ")");
-
-            for (int i=0; i < params; i++)
-                if (sqlbind(stmt.pointer, i, vals[i]) != SQLITE_OK) throwex();
+        try {
+            return new String(text, (int)(slice >>> 32), (int)slice, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new SQLException(e.getMessage());
         }
+    }
+
+    /** Runs the statement once for each of count rows of typed parameters
+     *  (see bind(), text may be null), storing the changes() of each row.
+     *  Returns the number of rows run. If that is fewer than count,
+     *  status[0] is set to the result code of the row that failed and the
+     *  statement is left unreset so errmsg() describes the failure.
+     *
+     *  NativeDB does this in one JNI call. */
+    int execute_batch(long stmt, int count, int[] types,
+            long[] longs, double[] doubles, Object[] objs, byte[] text,
+            int[] changes, int[] status) throws SQLException {
+        lock();
+        try {
+            final int params = bind_parameter_count(stmt);
+
+            for (int i=0; i < count; i++) {
+                reset(stmt);
+                try {
+                    bind(stmt, params, i * params, types, longs, doubles,
+                         objs, text);
+                } catch (SQLException e) {
+                    status[0] = SQLITE_ERROR;
+                    return i;
+                }
+
+                int rc = step(stmt);
+                if (rc != SQLITE_DONE) {
+                    status[0] = rc;
+                    return i;
+                }
+                changes[i] = changes();
+            }
 
-        switch (step(stmt.pointer)) {
-            case SQLITE_DONE:
-                reset(stmt.pointer);
-                ensureAutoCommit();
-                return false;
-            case SQLITE_ROW:
-                return true;
-            case SQLITE_BUSY:
-            case SQLITE_LOCKED:
-                throw new SQLException("database locked");
-            case SQLITE_MISUSE:
-                throw new SQLException(errmsg());
-            default:
-                finalize(stmt);
-                throw new SQLException(errmsg());
+            status[0] = SQLITE_DONE;
+            return count;
+        } finally {
+            unlock();
         }
     }
 
-    final synchronized int executeUpdate(Stmt stmt, Object[] vals)
+    final int[] executeBatch(long stmt, int count, int[] types,
+            long[] longs, double[] doubles, Object[] objs)
             throws SQLException {
-        if (execute(stmt, vals))
-            throw new SQLException("query returns results");
-        reset(stmt.pointer);
-        return changes();
+        lock();
+        try {
+            if (count < 1) throw new SQLException("count (" + count + ") < 1");
+            checkThread();
+
+            int[] changes = new int[count];
+            int[] status = new int[1];
+            int done;
+            boolean begun = beginBatch();
+
+            try {
+                try {
+                    done = execute_batch(stmt, count, types, longs, doubles,
+                                         objs, null, changes, status);
+                } finally {
+                    ensureAutoCommit();
+                }
+
+                if (done < count) {
+                    String msg = status[0] == SQLITE_ROW ?
+                        "query returns results" : errmsg();
+                    reset(stmt);
+                    // entries run in a transaction of the batch's own are
+                    // rolled back, so none of them succeeded
+                    int[] ran = new int[begun ? 0 : done];
+                    System.arraycopy(changes, 0, ran, 0, ran.length);
+                    throw new BatchUpdateException(
+                        "batch entry " + done + ": " + msg, ran);
+                }
+
+                reset(stmt);
+                endBatch(begun);
+                begun = false;
+            } finally {
+                if (begun) rollbackBatch();
+            }
+            return changes;
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Begins a write transaction for a batch if SQLite is in auto-commit
+     *  mode, so the batch costs one journal sync rather than one per
+     *  entry. A transaction begun through SQL, or a savepoint, leaves
+     *  the batch to run inside it. Returns true if a transaction was
+     *  begun. */
+    final boolean beginBatch() throws SQLException {
+        lock();
+        try {
+            if (!batchTransaction || !get_autocommit()) return false;
+            exec("begin immediate;");
+            return true;
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Commits the transaction of a batch if beginBatch() started one. */
+    final void endBatch(boolean begun) throws SQLException {
+        lock();
+        try {
+            if (begun) exec("commit;");
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Rolls back the transaction of a failed batch. Errors are ignored,
+     *  as the batch failure is reported instead. */
+    final void rollbackBatch() {
+        lock();
+        try {
+            try { exec("rollback;"); } catch (SQLException e) {}
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Steps a statement whose parameters, if any, have been bound. */
+    final boolean execute(Stmt stmt) throws SQLException {
+        lock();
+        try {
+            checkThread();
+            switch (step(stmt.pointer)) {
+                case SQLITE_DONE:
+                    reset(stmt.pointer);
+                    ensureAutoCommit();
+                    return false;
+                case SQLITE_ROW:
+                    return true;
+                case SQLITE_BUSY:
+                case SQLITE_LOCKED:
+                    throw new SQLException("database locked");
+                case SQLITE_MISUSE:
+                    throw new SQLException(errmsg());
+                default:
+                    finalize(stmt);
+                    throw new SQLException(errmsg());
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    final int executeUpdate(Stmt stmt) throws SQLException {
+        lock();
+        try {
+            if (execute(stmt))
+                throw new SQLException("query returns results");
+            reset(stmt.pointer);
+            return changes();
+        } finally {
+            unlock();
+        }
     }
 
     final void throwex() throws SQLException {
@@ -46,10 +46,50 @@ public class JDBC implements Driver
             "shared_cache", "false");
         sharedCache.choices = new String[] { "true", "false" };
         sharedCache.description =
-            "Enable SQLite Shared-Cache mode, native driver only.";
+            "Open the database in SQLite Shared-Cache mode, sharing pages "
+            + "with others opened so, native driver only.";
         sharedCache.required = false;
 
-        return new DriverPropertyInfo[] { sharedCache };
+        DriverPropertyInfo cacheSize = new DriverPropertyInfo(
+            "statement_cache_size",
+            Integer.toString(StatementCache.DEFAULT_SIZE));
+        cacheSize.description =
+            "Number of SQL strings whose prepared statements are kept for "
+            + "reuse after close, 0 to disable.";
+        cacheSize.required = false;
+
+        DriverPropertyInfo batchTransaction = new DriverPropertyInfo(
+            "batch_transaction", "true");
+        batchTransaction.choices = new String[] { "true", "false" };
+        batchTransaction.description =
+            "Run executeBatch() in auto-commit mode as one transaction.";
+        batchTransaction.required = false;
+
+        DriverPropertyInfo confined = new DriverPropertyInfo(
+            "thread_confined", "false");
+        confined.choices = new String[] { "true", "false" };
+        confined.description =
+            "Open without SQLite's connection mutex, for a connection only "
+            + "ever used by one thread at a time. Native driver only.";
+        confined.required = false;
+
+        DriverPropertyInfo checkThread = new DriverPropertyInfo(
+            "check_thread", "false");
+        checkThread.choices = new String[] { "true", "false" };
+        checkThread.description =
+            "Throw an SQLException if a thread other than the one that "
+            + "opened the connection prepares or runs a statement.";
+        checkThread.required = false;
+
+        DriverPropertyInfo readOnly = new DriverPropertyInfo(
+            "read_only", "false");
+        readOnly.choices = new String[] { "true", "false" };
+        readOnly.description =
+            "Open the database read-only. It must already exist.";
+        readOnly.required = false;
+
+        return new DriverPropertyInfo[] { sharedCache, cacheSize,
+            batchTransaction, confined, checkThread, readOnly };
     }
 
     public Connection connect(String url, Properties info) throws SQLException {
@@ -60,10 +100,6 @@ public class JDBC implements Driver
         String file = PREFIX.equalsIgnoreCase(url) ?
             ":memory:" : url.substring(PREFIX.length());
 
-        if (info.getProperty("shared_cache") == null)
-            return new Conn(url, file);
-        else
-            return new Conn(url, file,
-                Boolean.parseBoolean(info.getProperty("shared_cache")));
+        return new Conn(url, file, info);
     }
 }
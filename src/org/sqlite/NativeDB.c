@@ -17,6 +17,7 @@
 #include <stdlib.h>
 #include <string.h>
 #include <assert.h>
+#include <ctype.h>
 #include "NativeDB.h"
 #include "sqlite3.h"
 
@@ -24,6 +25,17 @@ static jclass dbclass = 0;
 static jclass  fclass = 0;
 static jclass  aclass = 0;
 
+// resolved once in JNI_OnLoad
+static jmethodID mth_throwexmsg = 0;
+static jmethodID mth_tostring = 0;
+static jmethodID mth_xfunc = 0;
+static jmethodID mth_xstep = 0;
+static jmethodID mth_xfinal = 0;
+static jmethodID mth_clone = 0;
+static jfieldID fld_context = 0;
+static jfieldID fld_value = 0;
+static jfieldID fld_args = 0;
+
 static void * toref(jlong value)
 {
     jvalue ret;
@@ -38,49 +50,179 @@ static jlong fromref(void * value)
     return ret.j;
 }
 
-static void throwex(JNIEnv *env, jobject this)
+static void throwexmsg(JNIEnv *env, const char *str)
 {
-    static jmethodID mth_throwex = 0;
-
-    if (!mth_throwex)
-        mth_throwex = (*env)->GetMethodID(env, dbclass, "throwex", "()V");
+    (*env)->CallStaticVoidMethod(env, dbclass, mth_throwexmsg,
+                                (*env)->NewStringUTF(env, str));
+}
 
-    (*env)->CallVoidMethod(env, this, mth_throwex);
+/* throws the current error message of db */
+static void throwex(JNIEnv *env, sqlite3 *db)
+{
+    throwexmsg(env, sqlite3_errmsg(db));
 }
 
-static void throwexmsg(JNIEnv *env, const char *str)
+/* Returns number of 16-bit blocks in UTF-16 string, not including null. */
+static jsize jstrlen(const jchar *str)
 {
-    static jmethodID mth_throwexmsg = 0;
+    const jchar *s;
+    for (s = str; *s; s++);
+    return (jsize)(s - str);
+}
 
-    if (!mth_throwexmsg) mth_throwexmsg = (*env)->GetStaticMethodID(
-            env, dbclass, "throwex", "(Ljava/lang/String;)V");
 
-    (*env)->CallStaticVoidMethod(env, dbclass, mth_throwexmsg,
-                                (*env)->NewStringUTF(env, str));
+/* Strings up to this many chars are converted on the stack. */
+#define TEXTBUF 256
+
+/* Encodes UTF-16 as UTF-8, returns the number of bytes written to out,
+ * which must hold 3 bytes per char. An unpaired surrogate is written as
+ * U+FFFD. */
+static int toutf8(const jchar *in, jsize len, unsigned char *out)
+{
+    unsigned char *o = out;
+    jsize i;
+    unsigned int c;
+
+    for (i=0; i < len; i++) {
+        c = in[i];
+        if (c < 0x80) { *o++ = (unsigned char)c; continue; }
+        if (c >= 0xd800 && c < 0xe000) {
+            if (c < 0xdc00 && i + 1 < len
+                    && in[i+1] >= 0xdc00 && in[i+1] < 0xe000) {
+                c = 0x10000 + ((c - 0xd800) << 10) + (in[++i] - 0xdc00);
+                *o++ = 0xf0 | (c >> 18);
+                *o++ = 0x80 | ((c >> 12) & 0x3f);
+                *o++ = 0x80 | ((c >> 6) & 0x3f);
+                *o++ = 0x80 | (c & 0x3f);
+                continue;
+            }
+            c = 0xfffd;
+        }
+        if (c < 0x800) {
+            *o++ = 0xc0 | (c >> 6);
+        } else {
+            *o++ = 0xe0 | (c >> 12);
+            *o++ = 0x80 | ((c >> 6) & 0x3f);
+        }
+        *o++ = 0x80 | (c & 0x3f);
+    }
+    return (int)(o - out);
 }
 
-static sqlite3 * gethandle(JNIEnv *env, jobject this)
+/* Decodes UTF-8 as UTF-16, returns the number of chars written to out,
+ * which must hold one char per byte. Malformed bytes become U+FFFD. */
+static jsize toutf16(const unsigned char *in, int len, jchar *out)
 {
-    static jfieldID pointer = 0;
-    if (!pointer) pointer = (*env)->GetFieldID(env, dbclass, "pointer", "J");
+    jchar *o = out;
+    int i = 0, n, k;
+    unsigned int c;
+
+    while (i < len) {
+        c = in[i++];
+        if (c < 0x80) { *o++ = (jchar)c; continue; }
+        if (c >= 0xc2 && c < 0xe0)      { n = 1; c &= 0x1f; }
+        else if (c >= 0xe0 && c < 0xf0) { n = 2; c &= 0x0f; }
+        else if (c >= 0xf0 && c < 0xf5) { n = 3; c &= 0x07; }
+        else { *o++ = 0xfffd; continue; }
+        for (k=0; k < n && i + k < len && (in[i+k] & 0xc0) == 0x80; k++)
+            c = (c << 6) | (in[i+k] & 0x3f);
+        i += k;
+        if (k < n || c < (n == 2 ? 0x800 : n == 3 ? 0x10000 : 0)
+                || c > 0x10ffff || (c >= 0xd800 && c < 0xe000)) {
+            *o++ = 0xfffd;
+        } else if (c >= 0x10000) {
+            c -= 0x10000;
+            *o++ = (jchar)(0xd800 + (c >> 10));
+            *o++ = (jchar)(0xdc00 + (c & 0x3ff));
+        } else {
+            *o++ = (jchar)c;
+        }
+    }
+    return (jsize)(o - out);
+}
 
-    return (sqlite3 *)toref((*env)->GetLongField(env, this, pointer));
+/* Returns a NUL-terminated UTF-8 copy of a string, to be freed by the
+ * caller, or 0 if out of memory. */
+static char *newutf8(JNIEnv *env, jstring v)
+{
+    jchar wide[TEXTBUF];
+    jchar *chars = wide;
+    jsize len = (*env)->GetStringLength(env, v);
+    unsigned char *bytes = malloc(len * 3 + 1);
+
+    if (!bytes) return 0;
+    if (len > TEXTBUF && !(chars = malloc(len * sizeof(jchar)))) {
+        free(bytes);
+        return 0;
+    }
+    (*env)->GetStringRegion(env, v, 0, len, chars);
+    bytes[toutf8(chars, len, bytes)] = 0;
+    if (chars != wide) free(chars);
+    return (char*)bytes;
 }
 
-static void sethandle(JNIEnv *env, jobject this, sqlite3 * ref)
+/* Binds a string as UTF-8 without going through JNI's modified UTF-8,
+ * which mangles supplementary characters and NUL. Short strings are
+ * converted on the stack. */
+static int bindtext(JNIEnv *env, sqlite3_stmt *stmt, int pos, jstring v)
 {
-    static jfieldID pointer = 0;
-    if (!pointer) pointer = (*env)->GetFieldID(env, dbclass, "pointer", "J");
+    jchar wide[TEXTBUF];
+    unsigned char narrow[TEXTBUF * 3];
+    jchar *chars = wide;
+    unsigned char *bytes = narrow;
+    jsize len = (*env)->GetStringLength(env, v);
+    int rc;
+
+    if (len > TEXTBUF) {
+        chars = malloc(len * (sizeof(jchar) + 3));
+        if (!chars) return SQLITE_NOMEM;
+        bytes = (unsigned char*)(chars + len);
+    }
+    (*env)->GetStringRegion(env, v, 0, len, chars);
+    rc = sqlite3_bind_text(stmt, pos, (const char*)bytes,
+                           toutf8(chars, len, bytes), SQLITE_TRANSIENT);
+    if (chars != wide) free(chars);
+    return rc;
+}
 
-    (*env)->SetLongField(env, this, pointer, fromref(ref));
+/* Returns a text column as a string, decoded from SQLite's UTF-8 on the
+ * stack when short. ASCII takes the first branch of the decoder. */
+static jstring columntext(JNIEnv *env, sqlite3_stmt *stmt, int col)
+{
+    jchar wide[TEXTBUF];
+    jchar *chars = wide;
+    const unsigned char *str = sqlite3_column_text(stmt, col);
+    int len = sqlite3_column_bytes(stmt, col);
+    jstring ret;
+
+    if (!str) return NULL;
+    if (len > TEXTBUF) {
+        chars = malloc(len * sizeof(jchar));
+        if (!chars) return NULL;
+    }
+    ret = (*env)->NewString(env, chars, toutf16(str, len, chars));
+    if (chars != wide) free(chars);
+    return ret;
 }
 
-/* Returns number of 16-bit blocks in UTF-16 string, not including null. */
-static jsize jstrlen(const jchar *str)
+/* Binds a byte[], or a direct ByteBuffer from 0 to its capacity. The
+ * buffer is not copied, the caller keeps it alive and unchanged until
+ * the statement is run. */
+static int bindblob(JNIEnv *env, sqlite3_stmt *stmt, int pos, jobject v)
 {
-    const jchar *s;
-    for (s = str; *s; s++);
-    return (jsize)(s - str);
+    jint rc;
+    void *a = (*env)->GetDirectBufferAddress(env, v);
+    jsize size;
+
+    if (a) return sqlite3_bind_blob(stmt, pos, a,
+        (int)(*env)->GetDirectBufferCapacity(env, v), SQLITE_STATIC);
+
+    size = (*env)->GetArrayLength(env, v);
+    a = (*env)->GetPrimitiveArrayCritical(env, v, 0);
+    assert(a); // out-of-memory
+    rc = sqlite3_bind_blob(stmt, pos, a, size, SQLITE_TRANSIENT);
+    (*env)->ReleasePrimitiveArrayCritical(env, v, a, JNI_ABORT);
+    return rc;
 }
 
 
@@ -98,20 +240,13 @@ static sqlite3_value * tovalue(JNIEnv *env, jobject function, jint arg)
 {
     jlong value_pntr = 0;
     jint numArgs = 0;
-    static jfieldID func_value = 0,
-                    func_args = 0;
-
-    if (!func_value || !func_args) {
-        func_value = (*env)->GetFieldID(env, fclass, "value", "J");
-        func_args  = (*env)->GetFieldID(env, fclass, "args", "I");
-    }
 
     // check we have any business being here
     if (arg  < 0) { throwexmsg(env, "negative arg out of range"); return 0; }
     if (!function) { throwexmsg(env, "inconstent function"); return 0; }
 
-    value_pntr = (*env)->GetLongField(env, function, func_value);
-    numArgs = (*env)->GetIntField(env, function, func_args);
+    value_pntr = (*env)->GetLongField(env, function, fld_value);
+    numArgs = (*env)->GetIntField(env, function, fld_args);
 
     if (value_pntr == 0) { throwexmsg(env, "no current value"); return 0; }
     if (arg >= numArgs) { throwexmsg(env, "arg out of range"); return 0; }
@@ -125,20 +260,11 @@ static void xFunc_error(sqlite3_context *context, JNIEnv *env)
     const char *strmsg = 0;
     jstring msg = 0;
     jint msgsize = 0;
-
-    jclass exclass = 0;
-    static jmethodID exp_msg = 0;
     jthrowable ex = (*env)->ExceptionOccurred(env);
 
     (*env)->ExceptionClear(env);
 
-    if (!exp_msg) {
-        exclass = (*env)->FindClass(env, "java/lang/Throwable");
-        exp_msg = (*env)->GetMethodID(
-                env, exclass, "toString", "()Ljava/lang/String;");
-    }
-
-    msg = (jstring)(*env)->CallObjectMethod(env, ex, exp_msg);
+    msg = (jstring)(*env)->CallObjectMethod(env, ex, mth_tostring);
     if (!msg) { sqlite3_result_error(context, "unknown error", 13); return; }
 
     msgsize = (*env)->GetStringUTFLength(env, msg);
@@ -158,9 +284,6 @@ static xCall(
     jobject func,
     jmethodID method)
 {
-    static jfieldID fld_context = 0,
-                     fld_value = 0,
-                     fld_args = 0;
     JNIEnv *env = 0;
     struct UDFData *udf = 0;
 
@@ -169,12 +292,6 @@ static xCall(
     (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
     if (!func) func = udf->func;
 
-    if (!fld_context || !fld_value || !fld_args) {
-        fld_context = (*env)->GetFieldID(env, fclass, "context", "J");
-        fld_value   = (*env)->GetFieldID(env, fclass, "value", "J");
-        fld_args    = (*env)->GetFieldID(env, fclass, "args", "I");
-    }
-
     (*env)->SetLongField(env, func, fld_context, fromref(context));
     (*env)->SetLongField(env, func, fld_value, value ? fromref(value) : 0);
     (*env)->SetIntField(env, func, fld_args, args);
@@ -192,14 +309,7 @@ static xCall(
 
 void xFunc(sqlite3_context *context, int args, sqlite3_value** value)
 {
-    static jmethodID mth = 0;
-    if (!mth) {
-        JNIEnv *env;
-        struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
-        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
-        mth = (*env)->GetMethodID(env, fclass, "xFunc", "()V");
-    }
-    xCall(context, args, value, 0, mth);
+    xCall(context, args, value, 0, mth_xfunc);
 }
 
 void xStep(sqlite3_context *context, int args, sqlite3_value** value)
@@ -207,17 +317,6 @@ void xStep(sqlite3_context *context, int args, sqlite3_value** value)
     JNIEnv *env;
     struct UDFData *udf;
     jobject *func = 0;
-    static jmethodID mth = 0;
-    static jmethodID clone = 0;
-
-    if (!mth || !clone) {
-        udf = (struct UDFData*)sqlite3_user_data(context);
-        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
-
-        mth = (*env)->GetMethodID(env, aclass, "xStep", "()V");
-        clone = (*env)->GetMethodID(env, aclass, "clone",
-            "()Ljava/lang/Object;");
-    }
 
     // clone the Function.Aggregate instance and store a pointer
     // in SQLite's aggregate_context (clean up in xFinal)
@@ -226,11 +325,11 @@ void xStep(sqlite3_context *context, int args, sqlite3_value** value)
         udf = (struct UDFData*)sqlite3_user_data(context);
         (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
 
-        *func = (*env)->CallObjectMethod(env, udf->func, clone);
+        *func = (*env)->CallObjectMethod(env, udf->func, mth_clone);
         *func = (*env)->NewGlobalRef(env, *func);
     }
 
-    xCall(context, args, value, *func, mth);
+    xCall(context, args, value, *func, mth_xstep);
 }
 
 void xFinal(sqlite3_context *context)
@@ -238,17 +337,14 @@ void xFinal(sqlite3_context *context)
     JNIEnv *env = 0;
     struct UDFData *udf = 0;
     jobject *func = 0;
-    static jmethodID mth = 0;
 
     udf = (struct UDFData*)sqlite3_user_data(context);
     (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
 
-    if (!mth) mth = (*env)->GetMethodID(env, aclass, "xFinal", "()V");
-
     func = sqlite3_aggregate_context(context, sizeof(jobject));
     assert(*func); // disaster
 
-    xCall(context, 0, 0, *func, mth);
+    xCall(context, 0, 0, *func, mth_xfinal);
 
     // clean up Function.Aggregate instance
     (*env)->DeleteGlobalRef(env, *func);
@@ -260,6 +356,7 @@ void xFinal(sqlite3_context *context)
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
 {
     JNIEnv* env = 0;
+    jclass exclass = 0;
 
     if (JNI_OK != (*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_2))
         return JNI_ERR;
@@ -276,117 +373,199 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
     if (!aclass) return JNI_ERR;
     aclass = (*env)->NewGlobalRef(env, aclass);
 
+    exclass = (*env)->FindClass(env, "java/lang/Throwable");
+    if (!exclass) return JNI_ERR;
+
+    mth_throwexmsg = (*env)->GetStaticMethodID(
+        env, dbclass, "throwex", "(Ljava/lang/String;)V");
+    mth_tostring = (*env)->GetMethodID(
+        env, exclass, "toString", "()Ljava/lang/String;");
+    mth_xfunc  = (*env)->GetMethodID(env, fclass, "xFunc", "()V");
+    mth_xstep  = (*env)->GetMethodID(env, aclass, "xStep", "()V");
+    mth_xfinal = (*env)->GetMethodID(env, aclass, "xFinal", "()V");
+    mth_clone  = (*env)->GetMethodID(
+        env, aclass, "clone", "()Ljava/lang/Object;");
+    fld_context = (*env)->GetFieldID(env, fclass, "context", "J");
+    fld_value   = (*env)->GetFieldID(env, fclass, "value", "J");
+    fld_args    = (*env)->GetFieldID(env, fclass, "args", "I");
+
+    if (!mth_throwexmsg || !mth_tostring || !mth_xfunc || !mth_xstep
+            || !mth_xfinal || !mth_clone || !fld_context || !fld_value
+            || !fld_args)
+        return JNI_ERR;
+
     return JNI_VERSION_1_2;
 }
 
 
 // WRAPPERS for sqlite_* functions //////////////////////////////////
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_shared_1cache(
-        JNIEnv *env, jobject this, jboolean enable)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1shared_1cache(
+        JNIEnv *env, jclass cls, jboolean enable)
 {
     return sqlite3_enable_shared_cache(enable ? 1 : 0);
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1open(
-        JNIEnv *env, jobject this, jstring file)
+// pragmas a read-only connection may run with an argument: those that
+// take the name of what they describe, and read_uncommitted, which only
+// changes the connection's own locking
+static const char *const readpragmas[] = {
+    "read_uncommitted", "table_info", "table_xinfo", "index_list",
+    "index_info", "index_xinfo", "foreign_key_list", "foreign_key_check",
+    "integrity_check", "quick_check", 0
+};
+
+// pragmas that write even without an argument
+static const char *const writepragmas[] = {
+    "incremental_vacuum", "optimize", 0
+};
+
+static int inlist(const char *name, const char *const *list)
 {
-    int ret;
-    sqlite3 *db = gethandle(env, this);
-    const char *str;
+    int i, j;
+    for (i=0; list[i]; i++) {
+        for (j=0; name[j] && tolower((unsigned char)name[j]) == list[i][j];
+                j++);
+        if (!name[j] && !list[i][j]) return 1;
+    }
+    return 0;
+}
 
-    if (db) {
-        throwexmsg(env, "DB already open");
-        sqlite3_close(db);
-        return;
+// allows only statements that read, for a connection that must not write
+// to a cache it shares with connections that do. A pragma given a value
+// would change a setting, often one of the shared database, so only
+// those listed in readpragmas may have one.
+static int readonly(void *arg, int action, const char *a, const char *b,
+                    const char *c, const char *d)
+{
+    switch (action) {
+        case SQLITE_PRAGMA:
+            if (inlist(a, writepragmas)) return SQLITE_DENY;
+            return !b || inlist(a, readpragmas) ? SQLITE_OK : SQLITE_DENY;
+        case SQLITE_SELECT:
+        case SQLITE_READ:
+        case SQLITE_FUNCTION:
+        case SQLITE_TRANSACTION:
+        case SQLITE_SAVEPOINT:
+#ifdef SQLITE_RECURSIVE
+        case SQLITE_RECURSIVE:
+#endif
+            return SQLITE_OK;
+        default:
+            return SQLITE_DENY;
     }
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1deny_1writes(
+        JNIEnv *env, jclass cls, jlong db)
+{
+    return sqlite3_set_authorizer(toref(db), &readonly, 0);
+}
+
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB__1open_1v2(
+        JNIEnv *env, jclass cls, jstring file, jint flags)
+{
+    sqlite3 *db = 0;
+    char *str;
+    int rc;
 
     sqlite3_initialize();
 
-    str = (*env)->GetStringUTFChars(env, file, 0); 
-    if (sqlite3_open(str, &db)) {
-        throwex(env, this);
+    str = newutf8(env, file);
+    if (!str) { throwexmsg(env, "out of memory"); return 0; }
+    rc = sqlite3_open_v2(str, &db, flags, 0);
+    free(str);
+
+    if (rc) {
+        throwex(env, db);
         sqlite3_close(db);
-        return;
+        return 0;
     }
-    (*env)->ReleaseStringUTFChars(env, file, str);
-
-    sethandle(env, this, db);
+    return fromref(db);
 }
 
 JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1close(
-        JNIEnv *env, jobject this)
+        JNIEnv *env, jclass cls, jlong db)
 {
-    if (sqlite3_close(gethandle(env, this)) != SQLITE_OK)
-        throwex(env, this);
-    sethandle(env, this, 0);
+    if (sqlite3_close(toref(db)) != SQLITE_OK)
+        throwex(env, toref(db));
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_interrupt(JNIEnv *env, jobject this)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1interrupt(
+        JNIEnv *env, jclass cls, jlong db)
 {
-    sqlite3_interrupt(gethandle(env, this));
+    sqlite3_interrupt(toref(db));
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_busy_1timeout(
-    JNIEnv *env, jobject this, jint ms)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1busy_1timeout(
+        JNIEnv *env, jclass cls, jlong db, jint ms)
 {
-    sqlite3_busy_timeout(gethandle(env, this), ms);
+    sqlite3_busy_timeout(toref(db), ms);
 }
 
-JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB_prepare(
-        JNIEnv *env, jobject this, jstring sql)
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB__1prepare(
+        JNIEnv *env, jclass cls, jlong db, jstring sql)
 {
-    sqlite3* db = gethandle(env, this);
     sqlite3_stmt* stmt;
 
-    const char *strsql = (*env)->GetStringUTFChars(env, sql, 0);
-    int status = sqlite3_prepare_v2(db, strsql, -1, &stmt, 0);
-    (*env)->ReleaseStringUTFChars(env, sql, strsql);
+    int status;
+    char *strsql = newutf8(env, sql);
+
+    if (!strsql) { throwexmsg(env, "out of memory"); return fromref(0); }
+    status = sqlite3_prepare_v2(toref(db), strsql, -1, &stmt, 0);
+    free(strsql);
 
     if (status != SQLITE_OK) {
-        throwex(env, this);
+        throwex(env, toref(db));
         return fromref(0);
     }
     return fromref(stmt);
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_errmsg(JNIEnv *env, jobject this)
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1errmsg(
+        JNIEnv *env, jclass cls, jlong db)
 {
-    return (*env)->NewStringUTF(env, sqlite3_errmsg(gethandle(env, this)));
+    return (*env)->NewStringUTF(env, sqlite3_errmsg(toref(db)));
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_libversion(
-        JNIEnv *env, jobject this)
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1libversion(
+        JNIEnv *env, jclass cls)
 {
     return (*env)->NewStringUTF(env, sqlite3_libversion());
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_changes(
-        JNIEnv *env, jobject this)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1changes(
+        JNIEnv *env, jclass cls, jlong db)
 {
-    return sqlite3_changes(gethandle(env, this));
+    return sqlite3_changes(toref(db));
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_finalize(
-        JNIEnv *env, jobject this, jlong stmt)
+JNIEXPORT jboolean JNICALL Java_org_sqlite_NativeDB__1get_1autocommit(
+        JNIEnv *env, jclass cls, jlong db)
+{
+    return sqlite3_get_autocommit(toref(db)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1finalize(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     return sqlite3_finalize(toref(stmt));
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_step(
-        JNIEnv *env, jobject this, jlong stmt)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1step(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     return sqlite3_step(toref(stmt));
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_reset(
-        JNIEnv *env, jobject this, jlong stmt)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1reset(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     return sqlite3_reset(toref(stmt));
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_clear_1bindings(
-        JNIEnv *env, jobject this, jlong stmt)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1clear_1bindings(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     int i;
     int count = sqlite3_bind_parameter_count(toref(stmt));
@@ -397,58 +576,56 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_clear_1bindings(
     return rc;
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1parameter_1count(
-        JNIEnv *env, jobject this, jlong stmt)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1parameter_1count(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     return sqlite3_bind_parameter_count(toref(stmt));
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_column_1count(
-        JNIEnv *env, jobject this, jlong stmt)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1count(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     return sqlite3_column_count(toref(stmt));
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_column_1type(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1type(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     return sqlite3_column_type(toref(stmt), col);
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_column_1decltype(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1column_1decltype(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     const char *str = sqlite3_column_decltype(toref(stmt), col);
     return (*env)->NewStringUTF(env, str);
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_column_1table_1name(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1column_1table_1name(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     const void *str = sqlite3_column_table_name16(toref(stmt), col);
     return str ? (*env)->NewString(env, str, jstrlen(str)) : NULL;
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_column_1name(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1column_1name(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     const void *str = sqlite3_column_name16(toref(stmt), col);
     return str ? (*env)->NewString(env, str, jstrlen(str)) : NULL;
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_column_1text(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1column_1text(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
-    return (*env)->NewStringUTF(
-        env, (const char*)sqlite3_column_text(toref(stmt), col));
+    return columntext(env, toref(stmt), col);
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB_column_1blob(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB__1column_1blob(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     jsize length;
     jbyteArray jBlob;
-    jbyte *a;
     const void *blob = sqlite3_column_blob(toref(stmt), col);
     if (!blob) return NULL;
 
@@ -456,84 +633,148 @@ JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB_column_1blob(
     jBlob = (*env)->NewByteArray(env, length);
     assert(jBlob); // out-of-memory
 
-    a = (*env)->GetPrimitiveArrayCritical(env, jBlob, 0);
-    memcpy(a, blob, length);
-    (*env)->ReleasePrimitiveArrayCritical(env, jBlob, a, 0);
-
+    (*env)->SetByteArrayRegion(env, jBlob, 0, length, blob);
     return jBlob;
 }
 
-JNIEXPORT jdouble JNICALL Java_org_sqlite_NativeDB_column_1double(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1bytes(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
+{
+    return sqlite3_column_bytes(toref(stmt), col);
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1blob_1into(
+        JNIEnv *env, jclass cls, jlong stmt, jint col, jbyteArray b,
+        jint off, jint len)
+{
+    const void *blob = sqlite3_column_blob(toref(stmt), col);
+    jint length = sqlite3_column_bytes(toref(stmt), col);
+
+    if (blob && length <= len)
+        (*env)->SetByteArrayRegion(env, b, off, length, blob);
+    return length;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1blob_1direct(
+        JNIEnv *env, jclass cls, jlong stmt, jint col, jobject buf,
+        jint pos, jint len)
+{
+    jbyte *a = (*env)->GetDirectBufferAddress(env, buf);
+    const void *blob = sqlite3_column_blob(toref(stmt), col);
+    jint length = sqlite3_column_bytes(toref(stmt), col);
+
+    if (a && blob && length <= len)
+        memcpy(a + pos, blob, length);
+    return length;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1text_1bytes(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
+{
+    sqlite3_column_text(toref(stmt), col);
+    return sqlite3_column_bytes(toref(stmt), col);
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1text_1into(
+        JNIEnv *env, jclass cls, jlong stmt, jint col, jbyteArray b,
+        jint off, jint len)
+{
+    const unsigned char *text = sqlite3_column_text(toref(stmt), col);
+    jint length = sqlite3_column_bytes(toref(stmt), col);
+
+    if (text && length <= len)
+        (*env)->SetByteArrayRegion(env, b, off, length, (const jbyte*)text);
+    return length;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1text_1direct(
+        JNIEnv *env, jclass cls, jlong stmt, jint col, jobject buf,
+        jint pos, jint len)
+{
+    jbyte *a = (*env)->GetDirectBufferAddress(env, buf);
+    const unsigned char *text = sqlite3_column_text(toref(stmt), col);
+    jint length = sqlite3_column_bytes(toref(stmt), col);
+
+    if (a && text && length <= len)
+        memcpy(a + pos, text, length);
+    return length;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1blob_1read(
+        JNIEnv *env, jclass cls, jlong stmt, jint col, jint from,
+        jbyteArray b, jint off, jint len)
+{
+    const jbyte *blob = sqlite3_column_blob(toref(stmt), col);
+    jint length = sqlite3_column_bytes(toref(stmt), col);
+
+    if (!blob || from >= length) return 0;
+    if (len > length - from) len = length - from;
+    (*env)->SetByteArrayRegion(env, b, off, len, blob + from);
+    return len;
+}
+
+JNIEXPORT jdouble JNICALL Java_org_sqlite_NativeDB__1column_1double(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     return sqlite3_column_double(toref(stmt), col);
 }
 
-JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB_column_1long(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB__1column_1long(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     return sqlite3_column_int64(toref(stmt), col);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_column_1int(
-        JNIEnv *env, jobject this, jlong stmt, jint col)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1column_1int(
+        JNIEnv *env, jclass cls, jlong stmt, jint col)
 {
     return sqlite3_column_int(toref(stmt), col);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1null(
-        JNIEnv *env, jobject this, jlong stmt, jint pos)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1null(
+        JNIEnv *env, jclass cls, jlong stmt, jint pos)
 {
     return sqlite3_bind_null(toref(stmt), pos);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1int(
-        JNIEnv *env, jobject this, jlong stmt, jint pos, jint v)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1int(
+        JNIEnv *env, jclass cls, jlong stmt, jint pos, jint v)
 {
     return sqlite3_bind_int(toref(stmt), pos, v);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1long(
-        JNIEnv *env, jobject this, jlong stmt, jint pos, jlong v)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1long(
+        JNIEnv *env, jclass cls, jlong stmt, jint pos, jlong v)
 {
     return sqlite3_bind_int64(toref(stmt), pos, v);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1double(
-        JNIEnv *env, jobject this, jlong stmt, jint pos, jdouble v)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1double(
+        JNIEnv *env, jclass cls, jlong stmt, jint pos, jdouble v)
 {
     return sqlite3_bind_double(toref(stmt), pos, v);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1text(
-        JNIEnv *env, jobject this, jlong stmt, jint pos, jstring v)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1text(
+        JNIEnv *env, jclass cls, jlong stmt, jint pos, jstring v)
 {
-    const char *chars = (*env)->GetStringUTFChars(env, v, 0);
-    int rc = sqlite3_bind_text(toref(stmt), pos, chars, -1, SQLITE_TRANSIENT);
-    (*env)->ReleaseStringUTFChars(env, v, chars);
-    return rc;
+    return bindtext(env, toref(stmt), pos, v);
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1blob(
-        JNIEnv *env, jobject this, jlong stmt, jint pos, jbyteArray v)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1bind_1blob(
+        JNIEnv *env, jclass cls, jlong stmt, jint pos, jobject v)
 {
-    jint rc;
-    void *a;
-    jsize size = (*env)->GetArrayLength(env, v);
-    assert(a = (*env)->GetPrimitiveArrayCritical(env, v, 0));
-    rc = sqlite3_bind_blob(toref(stmt), pos, a, size, SQLITE_TRANSIENT);
-    (*env)->ReleasePrimitiveArrayCritical(env, v, a, JNI_ABORT);
-    return rc;
+    return bindblob(env, toref(stmt), pos, v);
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1null(
-        JNIEnv *env, jobject this, jlong context)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1null(
+        JNIEnv *env, jclass cls, jlong context)
 {
     sqlite3_result_null(toref(context));
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1text(
-        JNIEnv *env, jobject this, jlong context, jstring value)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1text(
+        JNIEnv *env, jclass cls, jlong context, jstring value)
 {
     const jchar *str;
     jsize size;
@@ -547,8 +788,8 @@ JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1text(
     (*env)->ReleaseStringCritical(env, value, str);
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1blob(
-        JNIEnv *env, jobject this, jlong context, jobject value)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1blob(
+        JNIEnv *env, jclass cls, jlong context, jobject value)
 {
     jbyte *bytes;
     jsize size;
@@ -563,29 +804,54 @@ JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1blob(
     (*env)->ReleasePrimitiveArrayCritical(env, value, bytes, JNI_ABORT);
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1double(
-        JNIEnv *env, jobject this, jlong context, jdouble value)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1double(
+        JNIEnv *env, jclass cls, jlong context, jdouble value)
 {
     sqlite3_result_double(toref(context), value);
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1long(
-        JNIEnv *env, jobject this, jlong context, jlong value)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1long(
+        JNIEnv *env, jclass cls, jlong context, jlong value)
 {
     sqlite3_result_int64(toref(context), value);
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1int(
-        JNIEnv *env, jobject this, jlong context, jint value)
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1int(
+        JNIEnv *env, jclass cls, jlong context, jint value)
 {
     sqlite3_result_int(toref(context), value);
 }
 
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1result_1error(
+        JNIEnv *env, jclass cls, jlong context, jstring err)
+{
+    const jchar *str;
+    jsize size;
 
+    if (err == NULL) {
+        sqlite3_result_error(toref(context), "unknown error", -1);
+        return;
+    }
+    size = (*env)->GetStringLength(env, err) * 2;
 
+    str = (*env)->GetStringCritical(env, err, 0);
+    assert(str); // out-of-memory
+    sqlite3_result_error16(toref(context), str, size);
+    (*env)->ReleaseStringCritical(env, err, str);
+}
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_value_1text(
-        JNIEnv *env, jobject this, jobject f, jint arg)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1value_1bytes(
+        JNIEnv *env, jclass cls, jobject f, jint arg)
+{
+    sqlite3_value *value = tovalue(env, f, arg);
+    return value ? sqlite3_value_bytes(value) : 0;
+}
+
+
+
+
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB__1value_1text(
+        JNIEnv *env, jclass cls, jobject f, jint arg)
 {
     jint length = 0;
     const void *str = 0;
@@ -597,8 +863,8 @@ JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_value_1text(
     return str ? (*env)->NewString(env, str, length) : NULL;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB_value_1blob(
-        JNIEnv *env, jobject this, jobject f, jint arg)
+JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB__1value_1blob(
+        JNIEnv *env, jclass cls, jobject f, jint arg)
 {
     jsize length;
     jbyteArray jBlob;
@@ -621,66 +887,75 @@ JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB_value_1blob(
     return jBlob;
 }
 
-JNIEXPORT jdouble JNICALL Java_org_sqlite_NativeDB_value_1double(
-        JNIEnv *env, jobject this, jobject f, jint arg)
+JNIEXPORT jdouble JNICALL Java_org_sqlite_NativeDB__1value_1double(
+        JNIEnv *env, jclass cls, jobject f, jint arg)
 {
     sqlite3_value *value = tovalue(env, f, arg);
     return value ? sqlite3_value_double(value) : 0;
 }
 
-JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB_value_1long(
-        JNIEnv *env, jobject this, jobject f, jint arg)
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB__1value_1long(
+        JNIEnv *env, jclass cls, jobject f, jint arg)
 {
     sqlite3_value *value = tovalue(env, f, arg);
     return value ? sqlite3_value_int64(value) : 0;
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_value_1int(
-        JNIEnv *env, jobject this, jobject f, jint arg)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1value_1int(
+        JNIEnv *env, jclass cls, jobject f, jint arg)
 {
     sqlite3_value *value = tovalue(env, f, arg);
     return value ? sqlite3_value_int(value) : 0;
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_value_1type(
-        JNIEnv *env, jobject this, jobject func, jint arg)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1value_1type(
+        JNIEnv *env, jclass cls, jobject func, jint arg)
 {
     return sqlite3_value_type(tovalue(env, func, arg));
 }
 
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1function(
-        JNIEnv *env, jobject this, jstring name, jobject func)
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB__1new_1udf(
+        JNIEnv *env, jclass cls, jobject func, jlong next)
 {
-    jint ret = 0;
-    const char *strname = 0;
-    int isAgg = 0;
-
-    static jfieldID udfdatalist = 0;
     struct UDFData *udf = malloc(sizeof(struct UDFData));
-
     assert(udf); // out-of-memory
 
-    if (!udfdatalist)
-        udfdatalist = (*env)->GetFieldID(env, dbclass, "udfdatalist", "J");
-
-    isAgg = (*env)->IsInstanceOf(env, func, aclass);
     udf->func = (*env)->NewGlobalRef(env, func);
     (*env)->GetJavaVM(env, &udf->vm);
+    udf->next = toref(next);
+    return fromref(udf);
+}
 
-    // add new function def to linked list
-    udf->next = toref((*env)->GetLongField(env, this, udfdatalist));
-    (*env)->SetLongField(env, this, udfdatalist, fromref(udf));
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1free_1udfs(
+        JNIEnv *env, jclass cls, jlong list)
+{
+    // clean up all the malloc()ed UDFData instances using the
+    // linked list stored in NativeDB.udfdatalist
+    struct UDFData *udf = toref(list), *udfpass;
+
+    while (udf) {
+        udfpass = udf->next;
+        (*env)->DeleteGlobalRef(env, udf->func);
+        free(udf);
+        udf = udfpass;
+    }
+}
 
-    strname = (*env)->GetStringUTFChars(env, name, 0);
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1create_1function(
+        JNIEnv *env, jclass cls, jlong db, jstring name, jlong udf,
+        jboolean isAgg)
+{
+    jint ret = 0;
+    const char *strname = (*env)->GetStringUTFChars(env, name, 0);
     assert(strname); // out-of-memory
 
     ret = sqlite3_create_function(
-            gethandle(env, this),
+            toref(db),
             strname,       // function name
             -1,            // number of args
             SQLITE_UTF16,  // preferred chars
-            udf,
+            toref(udf),
             isAgg ? 0 :&xFunc,
             isAgg ? &xStep : 0,
             isAgg ? &xFinal : 0
@@ -691,41 +966,158 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1function(
     return ret;
 }
 
-JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_destroy_1function(
-        JNIEnv *env, jobject this, jstring name)
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1destroy_1function(
+        JNIEnv *env, jclass cls, jlong db, jstring name)
 {
+    jint ret = 0;
     const char* strname = (*env)->GetStringUTFChars(env, name, 0);
-    sqlite3_create_function(
-        gethandle(env, this), strname, -1, SQLITE_UTF16, 0, 0, 0, 0
+    ret = sqlite3_create_function(
+        toref(db), strname, -1, SQLITE_UTF16, 0, 0, 0, 0
     );
     (*env)->ReleaseStringUTFChars(env, name, strname);
+    return ret;
 }
 
-JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_free_1functions(
-        JNIEnv *env, jobject this)
+
+// INCREMENTAL BLOB I/O /////////////////////////////////////////////
+// Blob bytes are copied through a stack buffer rather than a pinned
+// array, as sqlite3_blob_read() and write() can block on disk I/O. A
+// direct buffer is read and written in place.
+
+#define BLOBCHUNK 8192
+
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB__1blob_1open(
+        JNIEnv *env, jclass cls, jlong db, jstring dbname, jstring table,
+        jstring column, jlong rowid, jboolean write)
 {
-    // clean up all the malloc()ed UDFData instances using the
-    // linked list stored in DB.udfdatalist
-    jfieldID udfdatalist;
-    struct UDFData *udf, *udfpass;
+    sqlite3_blob *blob = 0;
+    char *strdb = newutf8(env, dbname);
+    char *strtable = newutf8(env, table);
+    char *strcol = newutf8(env, column);
+    int rc = -1;
+
+    if (strdb && strtable && strcol)
+        rc = sqlite3_blob_open(toref(db), strdb, strtable, strcol, rowid,
+                               write ? 1 : 0, &blob);
+    free(strdb);
+    free(strtable);
+    free(strcol);
+
+    if (rc == -1) throwexmsg(env, "out of memory");
+    else if (rc != SQLITE_OK) throwex(env, toref(db));
+    return fromref(rc == SQLITE_OK ? blob : 0);
+}
 
-    udfdatalist = (*env)->GetFieldID(env, dbclass, "udfdatalist", "J");
-    udf = toref((*env)->GetLongField(env, this, udfdatalist));
-    (*env)->SetLongField(env, this, udfdatalist, 0);
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1blob_1bytes(
+        JNIEnv *env, jclass cls, jlong blob)
+{
+    return sqlite3_blob_bytes(toref(blob));
+}
 
-    while (udf) {
-        udfpass = udf->next;
-        (*env)->DeleteGlobalRef(env, udf->func);
-        free(udf);
-        udf = udfpass;
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1blob_1read(
+        JNIEnv *env, jclass cls, jlong blob, jint offset, jbyteArray b,
+        jint off, jint len)
+{
+    jbyte buf[BLOBCHUNK];
+    int n, rc = SQLITE_OK;
+
+    for (; len > 0 && rc == SQLITE_OK; off += n, offset += n, len -= n) {
+        n = len < BLOBCHUNK ? len : BLOBCHUNK;
+        rc = sqlite3_blob_read(toref(blob), buf, n, offset);
+        if (rc == SQLITE_OK) (*env)->SetByteArrayRegion(env, b, off, n, buf);
+    }
+    return rc;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1blob_1write(
+        JNIEnv *env, jclass cls, jlong blob, jint offset, jbyteArray b,
+        jint off, jint len)
+{
+    jbyte buf[BLOBCHUNK];
+    int n, rc = SQLITE_OK;
+
+    for (; len > 0 && rc == SQLITE_OK; off += n, offset += n, len -= n) {
+        n = len < BLOBCHUNK ? len : BLOBCHUNK;
+        (*env)->GetByteArrayRegion(env, b, off, n, buf);
+        rc = sqlite3_blob_write(toref(blob), buf, n, offset);
     }
+    return rc;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1blob_1read_1direct(
+        JNIEnv *env, jclass cls, jlong blob, jint offset, jobject buf,
+        jint pos, jint len)
+{
+    jbyte *a = (*env)->GetDirectBufferAddress(env, buf);
+    if (!a) return SQLITE_MISUSE;
+    return sqlite3_blob_read(toref(blob), a + pos, len, offset);
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1blob_1write_1direct(
+        JNIEnv *env, jclass cls, jlong blob, jint offset, jobject buf,
+        jint pos, jint len)
+{
+    jbyte *a = (*env)->GetDirectBufferAddress(env, buf);
+    if (!a) return SQLITE_MISUSE;
+    return sqlite3_blob_write(toref(blob), a + pos, len, offset);
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1blob_1close(
+        JNIEnv *env, jclass cls, jlong blob)
+{
+    return sqlite3_blob_close(toref(blob));
 }
 
 
 // COMPOUND FUNCTIONS ///////////////////////////////////////////////
 
-JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_column_1metadata(
-        JNIEnv *env, jobject this, jlong stmt)
+#define ROWCHUNK 32
+
+/* Reads the type of each column of the current row, and the long and
+ * double values of INTEGER and FLOAT columns. Gathered on the stack and
+ * copied out in chunks, as the sqlite3_column calls can take a mutex. */
+JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1read_1row(
+        JNIEnv *env, jclass cls, jlong stmt, jint cols, jintArray types,
+        jlongArray longs, jdoubleArray doubles)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    sqlite3_mutex *mutex = sqlite3_db_mutex(sqlite3_db_handle(dbstmt));
+    sqlite3_value *v;
+    jint t[ROWCHUNK];
+    jlong l[ROWCHUNK];
+    jdouble d[ROWCHUNK];
+    int start, i, n;
+
+    // holding the mutex once makes the column values protected, and the
+    // sqlite3_value_*() calls below take no lock of their own
+    sqlite3_mutex_enter(mutex);
+    for (start=0; start < cols; start += n) {
+        n = cols - start < ROWCHUNK ? cols - start : ROWCHUNK;
+        for (i=0; i < n; i++) {
+            v = sqlite3_column_value(dbstmt, start + i);
+            switch (t[i] = sqlite3_value_type(v)) {
+                case SQLITE_INTEGER:
+                    l[i] = sqlite3_value_int64(v);
+                    d[i] = (jdouble)l[i];
+                    break;
+                case SQLITE_FLOAT:
+                    d[i] = sqlite3_value_double(v);
+                    l[i] = sqlite3_value_int64(v);
+                    break;
+                default:
+                    l[i] = 0;
+                    d[i] = 0;
+            }
+        }
+        (*env)->SetIntArrayRegion(env, types, start, n, t);
+        (*env)->SetLongArrayRegion(env, longs, start, n, l);
+        (*env)->SetDoubleArrayRegion(env, doubles, start, n, d);
+    }
+    sqlite3_mutex_leave(mutex);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB__1column_1metadata(
+        JNIEnv *env, jclass cls, jlong stmt)
 {
     const char *zTableName, *zColumnName;
     int pNotNull, pPrimaryKey, pAutoinc, i, colCount;
@@ -735,8 +1127,8 @@ JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_column_1metadata(
     sqlite3 *db;
     sqlite3_stmt *dbstmt;
 
-    db = gethandle(env, this);
     dbstmt = toref(stmt);
+    db = sqlite3_db_handle(dbstmt);
 
     colCount = sqlite3_column_count(dbstmt);
     array = (*env)->NewObjectArray(
@@ -780,3 +1172,537 @@ JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_column_1metadata(
     return array;
 }
 
+
+#define FETCHCHUNK 256
+
+/* Cells of a block being fetched, gathered on the stack and copied out
+ * to the caller's arrays FETCHCHUNK at a time, so a fetch neither
+ * allocates nor holds an array pinned while the statement steps. */
+struct FetchBuffer {
+    jintArray jtypes;
+    jlongArray jlongs;
+    jdoubleArray jdoubles;
+    int start;          // cell of the caller's arrays held at index 0
+    int n;              // cells held
+    jint types[FETCHCHUNK];
+    jlong longs[FETCHCHUNK];
+    jdouble doubles[FETCHCHUNK];
+};
+
+static void flushcells(JNIEnv *env, struct FetchBuffer *b)
+{
+    if (b->n == 0) return;
+    (*env)->SetIntArrayRegion(env, b->jtypes, b->start, b->n, b->types);
+    (*env)->SetLongArrayRegion(env, b->jlongs, b->start, b->n, b->longs);
+    (*env)->SetDoubleArrayRegion(env, b->jdoubles, b->start, b->n,
+                                 b->doubles);
+    b->start += b->n;
+    b->n = 0;
+}
+
+/* Reads the current row of stmt into the next cols cells. A FLOAT cell
+ * also gets its text as sqlite3_column_text() gives it, and a zero-length
+ * BLOB is NULL as from sqlite3_column_blob(), so the getters return the
+ * same values from a block as from the row. Returns 0 if an exception has
+ * been thrown. */
+static int fetchrow(JNIEnv *env, sqlite3_stmt *dbstmt, int cols,
+        struct FetchBuffer *b, jobjectArray objs)
+{
+    int col, i, type, length, want;
+    const void *blob;
+    jobject obj;
+
+    for (col = 0; col < cols; col++) {
+        if (b->n == FETCHCHUNK) flushcells(env, b);
+        i = b->n++;
+        b->longs[i] = 0;
+        b->doubles[i] = 0;
+        obj = 0;
+        want = 0;
+
+        b->types[i] = type = sqlite3_column_type(dbstmt, col);
+        if (type != SQLITE_NULL) {
+            b->longs[i] = sqlite3_column_int64(dbstmt, col);
+            b->doubles[i] = sqlite3_column_double(dbstmt, col);
+        }
+
+        switch (type) {
+            case SQLITE_BLOB:
+                blob = sqlite3_column_blob(dbstmt, col);
+                length = sqlite3_column_bytes(dbstmt, col);
+                if (!blob) break;
+                want = 1;
+                obj = (*env)->NewByteArray(env, length);
+                if (obj)
+                    (*env)->SetByteArrayRegion(env, obj, 0, length, blob);
+                break;
+            case SQLITE_TEXT:
+            case SQLITE_FLOAT:
+                want = 1;
+                obj = columntext(env, dbstmt, col);
+                break;
+        }
+        if (want && !obj) {
+            if (!(*env)->ExceptionCheck(env))
+                throwexmsg(env, "out of memory");
+            return 0;
+        }
+
+        (*env)->SetObjectArrayElement(env, objs, b->start + i, obj);
+        if (obj) (*env)->DeleteLocalRef(env, obj);
+    }
+
+    return 1;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1fetch(
+        JNIEnv *env, jclass cls, jlong stmt, jboolean first, jint max,
+        jintArray jtypes, jlongArray jlongs, jdoubleArray jdoubles,
+        jobjectArray objs)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    int cols = sqlite3_column_count(dbstmt);
+    int rows = 0, rc;
+    struct FetchBuffer b;
+
+    if (max < 1 || cols < 1) return 0;
+    b.jtypes = jtypes;
+    b.jlongs = jlongs;
+    b.jdoubles = jdoubles;
+    b.start = 0;
+    b.n = 0;
+
+    for (; rows < max; rows++) {
+        if (rows > 0 || !first) {
+            rc = sqlite3_step(dbstmt);
+            if (rc == SQLITE_DONE) break;
+            if (rc != SQLITE_ROW) {
+                if (rc == SQLITE_BUSY || rc == SQLITE_LOCKED)
+                    throwexmsg(env, "database locked");
+                else
+                    throwex(env, sqlite3_db_handle(dbstmt));
+                return rows;
+            }
+        }
+        if (!fetchrow(env, dbstmt, cols, &b, objs)) return rows;
+    }
+
+    flushcells(env, &b);
+    return rows;
+}
+
+/* Returns the address of the direct buffer at pos in array and its
+ * capacity in *cap, or 0 if an exception has been thrown. */
+static void * getbuffer(JNIEnv *env, jobjectArray array, int pos, jlong *cap)
+{
+    void *addr = 0;
+    jobject buf = (*env)->GetObjectArrayElement(env, array, pos);
+
+    if (buf) addr = (*env)->GetDirectBufferAddress(env, buf);
+    if (!addr) { throwexmsg(env, "column buffer must be direct"); return 0; }
+
+    *cap = (*env)->GetDirectBufferCapacity(env, buf);
+    (*env)->DeleteLocalRef(env, buf);
+    return addr;
+}
+
+struct ColumnBuffers {
+    jint kind;
+    void *values;
+    unsigned char *nulls;
+    unsigned char *data;
+    jlong datacap;
+};
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1fetch_1columns(
+        JNIEnv *env, jclass cls, jlong stmt, jboolean first, jint max,
+        jintArray jkinds, jobjectArray values, jobjectArray nulls,
+        jobjectArray data, jintArray jstatus)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    int cols = (*env)->GetArrayLength(env, jkinds);
+    int rows = 0, col, rc, length;
+    jint status = SQLITE_OK;
+    jint *kinds, *offsets;
+    jlong cap;
+    const void *blob;
+    struct ColumnBuffers *bufs;
+
+    bufs = malloc((cols ? cols : 1) * sizeof(struct ColumnBuffers));
+    assert(bufs); // out-of-memory
+
+    kinds = (*env)->GetIntArrayElements(env, jkinds, 0);
+    for (col = 0; col < cols; col++) {
+        bufs[col].kind = kinds[col];
+        if (!kinds[col]) continue;
+
+        if (!(bufs[col].values = getbuffer(env, values, col, &cap))
+            || !(bufs[col].nulls = getbuffer(env, nulls, col, &cap))) {
+            cols = -1;
+            break;
+        }
+        memset(bufs[col].nulls, 0, (max + 7) / 8);
+
+        if (kinds[col] == 3) { // ColumnarReader.BYTES
+            bufs[col].data = getbuffer(env, data, col, &bufs[col].datacap);
+            if (!bufs[col].data) { cols = -1; break; }
+            ((jint*)bufs[col].values)[0] = 0;
+        }
+    }
+    (*env)->ReleaseIntArrayElements(env, jkinds, kinds, JNI_ABORT);
+    if (cols < 0) { free(bufs); return 0; }
+
+    for (; rows < max; rows++) {
+        if (rows > 0 || !first) {
+            rc = sqlite3_step(dbstmt);
+            if (rc == SQLITE_DONE) { status = SQLITE_DONE; break; }
+            if (rc != SQLITE_ROW) {
+                if (rc == SQLITE_BUSY || rc == SQLITE_LOCKED)
+                    throwexmsg(env, "database locked");
+                else
+                    throwex(env, sqlite3_db_handle(dbstmt));
+                break;
+            }
+        }
+
+        for (col = 0; col < cols; col++) {
+            if (!bufs[col].kind) continue;
+            if (sqlite3_column_type(dbstmt, col) == SQLITE_NULL)
+                bufs[col].nulls[rows / 8] |= 1 << (rows % 8);
+
+            switch (bufs[col].kind) {
+                case 1: // ColumnarReader.LONG
+                    ((jlong*)bufs[col].values)[rows] =
+                        sqlite3_column_int64(dbstmt, col);
+                    break;
+                case 2: // ColumnarReader.DOUBLE
+                    ((jdouble*)bufs[col].values)[rows] =
+                        sqlite3_column_double(dbstmt, col);
+                    break;
+                case 3: // ColumnarReader.BYTES
+                    offsets = (jint*)bufs[col].values;
+                    blob = sqlite3_column_blob(dbstmt, col);
+                    length = sqlite3_column_bytes(dbstmt, col);
+                    if (offsets[rows] + length > bufs[col].datacap) {
+                        if (rows == 0) throwexmsg(env,
+                            "column value too large for buffer");
+                        else
+                            status = SQLITE_ROW;
+                        goto done;
+                    }
+                    if (length)
+                        memcpy(bufs[col].data + offsets[rows], blob, length);
+                    offsets[rows + 1] = offsets[rows] + length;
+                    break;
+            }
+        }
+    }
+
+done:
+    free(bufs);
+    (*env)->SetIntArrayRegion(env, jstatus, 0, 1, &status);
+    return rows;
+}
+
+/* Where export_rows() writes in its buffer, and where the buffer ends.
+ * The put functions return 0 if the bytes do not fit. */
+struct Out {
+    unsigned char *p;
+    unsigned char *end;
+};
+
+static const char hexdigits[] = "0123456789abcdef";
+
+static int put(struct Out *o, const void *b, int n)
+{
+    if (o->end - o->p < n) return 0;
+    if (n) memcpy(o->p, b, n);
+    o->p += n;
+    return 1;
+}
+
+static int putbyte(struct Out *o, int c)
+{
+    if (o->p == o->end) return 0;
+    *o->p++ = c;
+    return 1;
+}
+
+static int puthex(struct Out *o, const unsigned char *b, int n)
+{
+    int i;
+    if (o->end - o->p < 2 * n) return 0;
+    for (i = 0; i < n; i++) {
+        *o->p++ = hexdigits[b[i] >> 4];
+        *o->p++ = hexdigits[b[i] & 15];
+    }
+    return 1;
+}
+
+// the low n bytes of v, big-endian
+static int putbig(struct Out *o, sqlite3_uint64 v, int n)
+{
+    if (o->end - o->p < n) return 0;
+    while (n--) *o->p++ = (unsigned char)(v >> (8 * n));
+    return 1;
+}
+
+// quoted with doubled quotes if it holds a comma, quote or line break
+static int putcsv(struct Out *o, const unsigned char *s, int n)
+{
+    int i, quote = n == 0;
+
+    for (i = 0; i < n && !quote; i++)
+        quote = s[i] == ',' || s[i] == '"' || s[i] == '\r' || s[i] == '\n';
+    if (!quote) return put(o, s, n);
+
+    if (!putbyte(o, '"')) return 0;
+    for (i = 0; i < n; i++)
+        if ((s[i] == '"' && !putbyte(o, '"')) || !putbyte(o, s[i]))
+            return 0;
+    return putbyte(o, '"');
+}
+
+static int puttsv(struct Out *o, const unsigned char *s, int n)
+{
+    int i, start = 0;
+    char esc[2] = { '\\', 0 };
+
+    for (i = 0; i < n; i++) {
+        switch (s[i]) {
+            case '\\': esc[1] = '\\'; break;
+            case '\t': esc[1] = 't'; break;
+            case '\n': esc[1] = 'n'; break;
+            case '\r': esc[1] = 'r'; break;
+            default: continue;
+        }
+        if (!put(o, s + start, i - start) || !put(o, esc, 2)) return 0;
+        start = i + 1;
+    }
+    return put(o, s + start, n - start);
+}
+
+static int putjson(struct Out *o, const unsigned char *s, int n)
+{
+    int i, start = 0, ok;
+
+    if (!putbyte(o, '"')) return 0;
+    for (i = 0; i < n; i++) {
+        if (s[i] >= 0x20 && s[i] != '"' && s[i] != '\\') continue;
+        if (!put(o, s + start, i - start)) return 0;
+        start = i + 1;
+        switch (s[i]) {
+            case '"':  ok = put(o, "\\\"", 2); break;
+            case '\\': ok = put(o, "\\\\", 2); break;
+            case '\n': ok = put(o, "\\n", 2); break;
+            case '\r': ok = put(o, "\\r", 2); break;
+            case '\t': ok = put(o, "\\t", 2); break;
+            default:   ok = put(o, "\\u00", 4) && puthex(o, s + i, 1);
+        }
+        if (!ok) return 0;
+    }
+    return put(o, s + start, n - start) && putbyte(o, '"');
+}
+
+// writes a column of the current row in a RowExporter format
+static int putcell(struct Out *o, sqlite3_stmt *stmt, int col, int format)
+{
+    int type = sqlite3_column_type(stmt, col);
+    const unsigned char *s;
+    sqlite3_uint64 bits;
+    double d;
+    int n;
+
+    if (format == 4) { // RowExporter.BINARY
+        if (!putbyte(o, type)) return 0;
+        switch (type) {
+            case SQLITE_INTEGER:
+                return putbig(o, sqlite3_column_int64(stmt, col), 8);
+            case SQLITE_FLOAT:
+                d = sqlite3_column_double(stmt, col);
+                memcpy(&bits, &d, 8);
+                return putbig(o, bits, 8);
+            case SQLITE_TEXT:
+                s = sqlite3_column_text(stmt, col);
+                n = sqlite3_column_bytes(stmt, col);
+                return putbig(o, n, 4) && put(o, s, n);
+            case SQLITE_BLOB:
+                s = sqlite3_column_blob(stmt, col);
+                n = sqlite3_column_bytes(stmt, col);
+                return putbig(o, n, 4) && put(o, s, n);
+        }
+        return 1;
+    }
+
+    switch (type) {
+        case SQLITE_NULL:
+            if (format == 2) return put(o, "\\N", 2);
+            if (format == 3) return put(o, "null", 4);
+            return 1;
+        case SQLITE_BLOB:
+            s = sqlite3_column_blob(stmt, col);
+            n = sqlite3_column_bytes(stmt, col);
+            if (format != 3) return puthex(o, s, n);
+            return putbyte(o, '"') && puthex(o, s, n) && putbyte(o, '"');
+        case SQLITE_FLOAT:
+            d = sqlite3_column_double(stmt, col);
+            if (format == 3 && d - d != 0) // NaN or infinite
+                return put(o, "null", 4);
+            // fall through
+        case SQLITE_INTEGER:
+            s = sqlite3_column_text(stmt, col);
+            return put(o, s, sqlite3_column_bytes(stmt, col));
+    }
+
+    s = sqlite3_column_text(stmt, col);
+    n = sqlite3_column_bytes(stmt, col);
+    switch (format) {
+        case 1:  return putcsv(o, s, n);
+        case 2:  return puttsv(o, s, n);
+        default: return putjson(o, s, n);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1export_1rows(
+        JNIEnv *env, jclass cls, jlong stmt, jboolean first, jint max,
+        jint format, jbyteArray jkeys, jintArray jkeyends, jobject buf,
+        jint pos, jint limit, jintArray jstatus)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    int cols = sqlite3_column_count(dbstmt);
+    int rows = 0, col, rc, ok, from;
+    jint status[2] = { SQLITE_OK, pos };
+    jbyte *keys = 0;
+    jint *keyends = 0;
+    unsigned char *base, *row;
+    struct Out o;
+
+    base = (*env)->GetDirectBufferAddress(env, buf);
+    if (!base) { throwexmsg(env, "export buffer must be direct"); return 0; }
+    o.p = base + pos;
+    o.end = base + limit;
+
+    if (jkeys) { // RowExporter.JSON_LINES
+        keys = (*env)->GetByteArrayElements(env, jkeys, 0);
+        keyends = (*env)->GetIntArrayElements(env, jkeyends, 0);
+        assert(keys && keyends); // out-of-memory
+    }
+
+    for (; rows < max; rows++) {
+        if (rows > 0 || !first) {
+            rc = sqlite3_step(dbstmt);
+            if (rc == SQLITE_DONE) { status[0] = SQLITE_DONE; break; }
+            if (rc != SQLITE_ROW) {
+                if (rc == SQLITE_BUSY || rc == SQLITE_LOCKED)
+                    throwexmsg(env, "database locked");
+                else
+                    throwex(env, sqlite3_db_handle(dbstmt));
+                break;
+            }
+        }
+
+        row = o.p;
+        for (ok = 1, col = 0; ok && col < cols; col++) {
+            if (keys) {
+                from = col ? keyends[col - 1] : 0;
+                ok = put(&o, keys + from, keyends[col] - from);
+            } else if (col && format != 4) {
+                ok = putbyte(&o, format == 1 ? ',' : '\t');
+            }
+            ok = ok && putcell(&o, dbstmt, col, format);
+        }
+        switch (format) {
+            case 1: ok = ok && put(&o, "\r\n", 2); break;
+            case 2: ok = ok && putbyte(&o, '\n'); break;
+            case 3: ok = ok && put(&o, "}\n", 2); break;
+        }
+        if (!ok) {
+            o.p = row;
+            status[0] = SQLITE_ROW;
+            break;
+        }
+    }
+
+    if (keys) {
+        (*env)->ReleaseByteArrayElements(env, jkeys, keys, JNI_ABORT);
+        (*env)->ReleaseIntArrayElements(env, jkeyends, keyends, JNI_ABORT);
+    }
+    status[1] = o.p - base;
+    (*env)->SetIntArrayRegion(env, jstatus, 0, 2, status);
+    return rows;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB__1execute_1batch(
+        JNIEnv *env, jclass cls, jlong stmt, jint count,
+        jintArray jtypes, jlongArray jlongs, jdoubleArray jdoubles,
+        jobjectArray objs, jbyteArray jtext, jintArray jchanges,
+        jintArray jstatus)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    sqlite3 *db = sqlite3_db_handle(dbstmt);
+    int params = sqlite3_bind_parameter_count(dbstmt);
+    int row, pos, i, rc = SQLITE_DONE;
+    jint *types, *changes;
+    jlong *longs;
+    jdouble *doubles;
+    jbyte *text = 0;
+    jobject obj;
+
+    types = (*env)->GetIntArrayElements(env, jtypes, 0);
+    longs = (*env)->GetLongArrayElements(env, jlongs, 0);
+    doubles = (*env)->GetDoubleArrayElements(env, jdoubles, 0);
+    changes = (*env)->GetIntArrayElements(env, jchanges, 0);
+    if (jtext) text = (*env)->GetByteArrayElements(env, jtext, 0);
+    assert(types && longs && doubles && changes); // out-of-memory
+    assert(text || !jtext); // out-of-memory
+
+    for (row = 0; row < count; row++) {
+        sqlite3_reset(dbstmt);
+
+        for (pos = 1, i = row * params; pos <= params; pos++, i++) {
+            switch (types[i]) {
+                case SQLITE_INTEGER:
+                    rc = sqlite3_bind_int64(dbstmt, pos, longs[i]);
+                    break;
+                case SQLITE_FLOAT:
+                    rc = sqlite3_bind_double(dbstmt, pos, doubles[i]);
+                    break;
+                case SQLITE_TEXT:
+                    if (text) {
+                        // held until the bindings are cleared below
+                        rc = sqlite3_bind_text(dbstmt, pos,
+                            (const char*)text + (longs[i] >> 32),
+                            (int)(longs[i] & 0xffffffff), SQLITE_STATIC);
+                        break;
+                    }
+                    // fall through
+                case SQLITE_BLOB:
+                    obj = (*env)->GetObjectArrayElement(env, objs, i);
+                    rc = types[i] == SQLITE_TEXT ?
+                        bindtext(env, dbstmt, pos, obj) :
+                        bindblob(env, dbstmt, pos, obj);
+                    (*env)->DeleteLocalRef(env, obj);
+                    break;
+                default:
+                    rc = sqlite3_bind_null(dbstmt, pos);
+            }
+            if (rc != SQLITE_OK) goto done;
+        }
+
+        rc = sqlite3_step(dbstmt);
+        if (rc != SQLITE_DONE) goto done;
+        changes[row] = sqlite3_changes(db);
+    }
+
+done:
+    if (text) {
+        sqlite3_clear_bindings(dbstmt);
+        (*env)->ReleaseByteArrayElements(env, jtext, text, JNI_ABORT);
+    }
+    (*env)->ReleaseIntArrayElements(env, jtypes, types, JNI_ABORT);
+    (*env)->ReleaseLongArrayElements(env, jlongs, longs, JNI_ABORT);
+    (*env)->ReleaseDoubleArrayElements(env, jdoubles, doubles, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, jchanges, changes, 0);
+    (*env)->SetIntArrayRegion(env, jstatus, 0, 1, &rc);
+    return row;
+}
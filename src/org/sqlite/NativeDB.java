@@ -17,6 +17,7 @@
 package org.sqlite;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 
 /** This class provides a thin JNI layer over the SQLite3 C API. */
@@ -89,62 +90,187 @@ final class NativeDB extends DB
 
 
     // WRAPPER FUNCTIONS ////////////////////////////////////////////
+    // The natives are static and take the handles they use explicitly,
+    // so no call has to look up fields of this object.
+    //
+    // Calls that map to a single SQLite function are not synchronized:
+    // the connection is opened with SQLITE_OPEN_FULLMUTEX, so SQLite
+    // serializes them itself, or with SQLITE_OPEN_NOMUTEX when the
+    // connection is confined to one thread. Sequences of calls that must
+    // not interleave hold the DB lock.
+
+    protected void _open(String file, int flags) throws SQLException {
+        if (pointer != 0) throw new SQLException("DB already open");
+        pointer = _open_v2(file, flags); // DB.open() holds the lock
+    }
+    protected void _close() throws SQLException {
+        try { _close(pointer); } finally { pointer = 0; }
+    }
+    int shared_cache(boolean enable) {
+        return _shared_cache(enable); }
+    void deny_writes() throws SQLException {
+        if (_deny_writes(pointer) != SQLITE_OK) throwex(); }
+    void interrupt() { _interrupt(pointer); }
+    void busy_timeout(int ms) { _busy_timeout(pointer, ms); }
+    protected long prepare(String sql) throws SQLException {
+        return _prepare(pointer, sql); }
+    String errmsg() { return _errmsg(pointer); }
+    String libversion() { return _libversion(); }
+    int changes() { return _changes(pointer); }
+    boolean get_autocommit() { return _get_autocommit(pointer); }
+
+    protected int finalize(long stmt) { return _finalize(stmt); }
+    protected int step(long stmt) { return _step(stmt); }
+    protected int reset(long stmt) { return _reset(stmt); }
+    int clear_bindings(long stmt) {
+        return _clear_bindings(stmt); }
+
+    int bind_parameter_count(long stmt) {
+        return _bind_parameter_count(stmt); }
+
+    int column_count(long stmt) {
+        return _column_count(stmt); }
+    int column_type(long stmt, int col) {
+        return _column_type(stmt, col); }
+    String column_decltype(long stmt, int col) {
+        return _column_decltype(stmt, col); }
+    String column_table_name(long stmt, int col) {
+        return _column_table_name(stmt, col); }
+    String column_name(long stmt, int col) {
+        return _column_name(stmt, col); }
+    String column_text(long stmt, int col) {
+        return _column_text(stmt, col); }
+    byte[] column_blob(long stmt, int col) {
+        return _column_blob(stmt, col); }
+    int column_bytes(long stmt, int col) {
+        return _column_bytes(stmt, col); }
+    int column_blob(long stmt, int col, byte[] b, int off, int len) {
+        return _column_blob_into(stmt, col, b, off, len); }
+    int column_blob(long stmt, int col, ByteBuffer buf)
+            throws SQLException {
+        if (buf.isDirect())
+            return _column_blob_direct(stmt, col, buf, buf.position(),
+                                       buf.remaining());
+        if (buf.hasArray())
+            return _column_blob_into(stmt, col, buf.array(),
+                buf.arrayOffset() + buf.position(), buf.remaining());
+        return super.column_blob(stmt, col, buf);
+    }
+    int column_text_bytes(long stmt, int col) {
+        return _column_text_bytes(stmt, col); }
+    int column_text(long stmt, int col, byte[] b, int off, int len) {
+        return _column_text_into(stmt, col, b, off, len); }
+    int column_text(long stmt, int col, ByteBuffer buf)
+            throws SQLException {
+        if (buf.isDirect())
+            return _column_text_direct(stmt, col, buf, buf.position(),
+                                       buf.remaining());
+        if (buf.hasArray())
+            return _column_text_into(stmt, col, buf.array(),
+                buf.arrayOffset() + buf.position(), buf.remaining());
+        return super.column_text(stmt, col, buf);
+    }
+    double column_double(long stmt, int col) {
+        return _column_double(stmt, col); }
+    long column_long(long stmt, int col) {
+        return _column_long(stmt, col); }
+    int column_int(long stmt, int col) {
+        return _column_int(stmt, col); }
+
+    int bind_null(long stmt, int pos) {
+        return _bind_null(stmt, pos); }
+    int bind_int(long stmt, int pos, int v) {
+        return _bind_int(stmt, pos, v); }
+    int bind_long(long stmt, int pos, long v) {
+        return _bind_long(stmt, pos, v); }
+    int bind_double(long stmt, int pos, double v) {
+        return _bind_double(stmt, pos, v); }
+    int bind_text(long stmt, int pos, String v) {
+        return _bind_text(stmt, pos, v); }
+    int bind_blob(long stmt, int pos, byte[] v) {
+        return _bind_blob(stmt, pos, v); }
+    int bind_blob(long stmt, int pos, ByteBuffer v) {
+        return _bind_blob(stmt, pos, v); }
+
+    void result_null(long context) { _result_null(context); }
+    void result_text(long context, String val) {
+        _result_text(context, val); }
+    void result_blob(long context, byte[] val) {
+        _result_blob(context, val); }
+    void result_double(long context, double val) {
+        _result_double(context, val); }
+    void result_long(long context, long val) {
+        _result_long(context, val); }
+    void result_int(long context, int val) {
+        _result_int(context, val); }
+    void result_error(long context, String err) {
+        _result_error(context, err); }
+
+    int value_bytes(Function f, int arg) {
+        return _value_bytes(f, arg); }
+    String value_text(Function f, int arg) {
+        return _value_text(f, arg); }
+    byte[] value_blob(Function f, int arg) {
+        return _value_blob(f, arg); }
+    double value_double(Function f, int arg) {
+        return _value_double(f, arg); }
+    long value_long(Function f, int arg) {
+        return _value_long(f, arg); }
+    int value_int(Function f, int arg) {
+        return _value_int(f, arg); }
+    int value_type(Function f, int arg) {
+        return _value_type(f, arg); }
+
+    int create_function(String name, Function func) {
+        lock();
+        try {
+            udfdatalist = _new_udf(func, udfdatalist);
+            return _create_function(pointer, name, udfdatalist,
+                                    func instanceof Function.Aggregate);
+        } finally { unlock(); }
+    }
+    int destroy_function(String name) {
+        return _destroy_function(pointer, name); }
+    void free_functions() {
+        lock();
+        try {
+            _free_udfs(udfdatalist);
+            udfdatalist = 0;
+        } finally { unlock(); }
+    }
+
+    void read_row(long stmt, int cols, int[] types, long[] longs,
+            double[] doubles) {
+        _read_row(stmt, cols, types, longs, doubles); }
+
+    int column_blob(long stmt, int col, int from, byte[] b, int off,
+            int len) {
+        return _column_blob_read(stmt, col, from, b, off, len); }
+
+    long blob_open(String db, String table, String column, long rowid,
+            boolean write) {
+        return _blob_open(pointer, db, table, column, rowid, write); }
+    int blob_bytes(long blob) {
+        return _blob_bytes(blob); }
+    int blob_read(long blob, int offset, byte[] b, int off, int len) {
+        return _blob_read(blob, offset, b, off, len); }
+    int blob_write(long blob, int offset, byte[] b, int off, int len) {
+        return _blob_write(blob, offset, b, off, len); }
+    int blob_close(long blob) {
+        return _blob_close(blob); }
+    int blob_read(long blob, int offset, ByteBuffer buf, int len)
+            throws SQLException {
+        if (buf.isDirect())
+            return _blob_read_direct(blob, offset, buf, buf.position(), len);
+        return super.blob_read(blob, offset, buf, len);
+    }
+    int blob_write(long blob, int offset, ByteBuffer buf, int len)
+            throws SQLException {
+        if (buf.isDirect())
+            return _blob_write_direct(blob, offset, buf, buf.position(), len);
+        return super.blob_write(blob, offset, buf, len);
+    }
 
-    protected native synchronized void _open(String file) throws SQLException;
-    protected native synchronized void _close() throws SQLException;
-    native synchronized int shared_cache(boolean enable);
-    native synchronized void interrupt();
-    native synchronized void busy_timeout(int ms);
-    //native synchronized void exec(String sql) throws SQLException;
-    protected native synchronized long prepare(String sql) throws SQLException;
-    native synchronized String errmsg();
-    native synchronized String libversion();
-    native synchronized int changes();
-
-    protected native synchronized int finalize(long stmt);
-    protected native synchronized int step(long stmt);
-    protected native synchronized int reset(long stmt);
-    native synchronized int clear_bindings(long stmt);
-
-    native synchronized int bind_parameter_count(long stmt);
-
-    native synchronized int    column_count      (long stmt);
-    native synchronized int    column_type       (long stmt, int col);
-    native synchronized String column_decltype   (long stmt, int col);
-    native synchronized String column_table_name (long stmt, int col);
-    native synchronized String column_name       (long stmt, int col);
-    native synchronized String column_text       (long stmt, int col);
-    native synchronized byte[] column_blob       (long stmt, int col);
-    native synchronized double column_double     (long stmt, int col);
-    native synchronized long   column_long       (long stmt, int col);
-    native synchronized int    column_int        (long stmt, int col);
-
-    native synchronized int bind_null  (long stmt, int pos);
-    native synchronized int bind_int   (long stmt, int pos, int    v);
-    native synchronized int bind_long  (long stmt, int pos, long   v);
-    native synchronized int bind_double(long stmt, int pos, double v);
-    native synchronized int bind_text  (long stmt, int pos, String v);
-    native synchronized int bind_blob  (long stmt, int pos, byte[] v);
-
-    native synchronized void result_null  (long context);
-    native synchronized void result_text  (long context, String val);
-    native synchronized void result_blob  (long context, byte[] val);
-    native synchronized void result_double(long context, double val);
-    native synchronized void result_long  (long context, long   val);
-    native synchronized void result_int   (long context, int    val);
-    native synchronized void result_error (long context, String err);
-
-    native synchronized int    value_bytes (Function f, int arg);
-    native synchronized String value_text  (Function f, int arg);
-    native synchronized byte[] value_blob  (Function f, int arg);
-    native synchronized double value_double(Function f, int arg);
-    native synchronized long   value_long  (Function f, int arg);
-    native synchronized int    value_int   (Function f, int arg);
-    native synchronized int    value_type  (Function f, int arg);
-
-    native synchronized int create_function(String name, Function func);
-    native synchronized int destroy_function(String name);
-    native synchronized void free_functions();
 
     // COMPOUND FUNCTIONS (for optimisation) /////////////////////////
 
@@ -153,7 +279,175 @@ final class NativeDB extends DB
      *   res[col][1] = true if column is part of the primary key
      *   res[col][2] = true if column is auto-increment
      */
-    native synchronized boolean[][] column_metadata(long stmt);
+    boolean[][] column_metadata(long stmt) {
+        lock();
+        try { return _column_metadata(stmt); } finally { unlock(); }
+    }
+
+    int fetch(long stmt, boolean first, int max, int[] types, long[] longs,
+            double[] doubles, Object[] objs) {
+        lock();
+        try {
+            return _fetch(stmt, first, max, types, longs, doubles, objs);
+        } finally { unlock(); }
+    }
+
+    int execute_batch(long stmt, int count, int[] types, long[] longs,
+            double[] doubles, Object[] objs, byte[] text, int[] changes,
+            int[] status) {
+        lock();
+        try {
+            return _execute_batch(stmt, count, types, longs, doubles, objs,
+                                  text, changes, status);
+        } finally { unlock(); }
+    }
+
+    int fetch_columns(long stmt, boolean first, int max, int[] kinds,
+            ByteBuffer[] values, ByteBuffer[] nulls, ByteBuffer[] data,
+            int[] status) {
+        lock();
+        try {
+            return _fetch_columns(stmt, first, max, kinds, values, nulls,
+                                  data, status);
+        } finally { unlock(); }
+    }
+
+    int export_rows(long stmt, boolean first, int max, int format,
+            byte[] keys, int[] keyEnds, ByteBuffer buf, int[] status)
+            throws SQLException {
+        if (!buf.isDirect())
+            return super.export_rows(stmt, first, max, format, keys,
+                                     keyEnds, buf, status);
+        lock();
+        try {
+            int[] out = new int[2];
+            int rows = _export_rows(stmt, first, max, format, keys, keyEnds,
+                                    buf, buf.position(), buf.limit(), out);
+            status[0] = out[0];
+            buf.position(out[1]);
+            return rows;
+        } finally { unlock(); }
+    }
+
+
+    // NATIVE FUNCTIONS /////////////////////////////////////////////
+    // db is an sqlite3*, stmt an sqlite3_stmt*. Errors are thrown as
+    // SQLExceptions through throwex(String).
+
+    private static native long _open_v2(String file, int flags);
+    private static native void _close(long db);
+    private static native int _shared_cache(boolean enable);
+    private static native int _deny_writes(long db);
+    private static native void _interrupt(long db);
+    private static native void _busy_timeout(long db, int ms);
+    private static native long _prepare(long db, String sql);
+    private static native String _errmsg(long db);
+    private static native String _libversion();
+    private static native int _changes(long db);
+    private static native boolean _get_autocommit(long db);
+
+    private static native int _finalize(long stmt);
+    private static native int _step(long stmt);
+    private static native int _reset(long stmt);
+    private static native int _clear_bindings(long stmt);
+
+    private static native int _bind_parameter_count(long stmt);
+
+    private static native int    _column_count     (long stmt);
+    private static native int    _column_type      (long stmt, int col);
+    private static native String _column_decltype  (long stmt, int col);
+    private static native String _column_table_name(long stmt, int col);
+    private static native String _column_name      (long stmt, int col);
+    private static native String _column_text      (long stmt, int col);
+    private static native byte[] _column_blob      (long stmt, int col);
+    private static native int    _column_bytes     (long stmt, int col);
+    private static native double _column_double    (long stmt, int col);
+    private static native long   _column_long      (long stmt, int col);
+    private static native int    _column_int       (long stmt, int col);
+
+    /** Copy a blob column into b at off, or a direct buf at pos, if it
+     *  fits in len bytes. Return the length of the value. */
+    private static native int _column_blob_into(long stmt, int col,
+                                                byte[] b, int off, int len);
+    private static native int _column_blob_direct(long stmt, int col,
+                                        ByteBuffer buf, int pos, int len);
+
+    /** The same for the UTF-8 text of a column, as SQLite stores it. */
+    private static native int _column_text_bytes(long stmt, int col);
+    private static native int _column_text_into(long stmt, int col,
+                                                byte[] b, int off, int len);
+    private static native int _column_text_direct(long stmt, int col,
+                                        ByteBuffer buf, int pos, int len);
+
+    private static native int _bind_null  (long stmt, int pos);
+    private static native int _bind_int   (long stmt, int pos, int    v);
+    private static native int _bind_long  (long stmt, int pos, long   v);
+    private static native int _bind_double(long stmt, int pos, double v);
+    private static native int _bind_text  (long stmt, int pos, String v);
+    /** Binds a byte[] with a copy, or a direct ByteBuffer without. */
+    private static native int _bind_blob  (long stmt, int pos, Object v);
+
+    private static native void _result_null  (long context);
+    private static native void _result_text  (long context, String val);
+    private static native void _result_blob  (long context, byte[] val);
+    private static native void _result_double(long context, double val);
+    private static native void _result_long  (long context, long   val);
+    private static native void _result_int   (long context, int    val);
+    private static native void _result_error (long context, String err);
+
+    private static native int    _value_bytes (Function f, int arg);
+    private static native String _value_text  (Function f, int arg);
+    private static native byte[] _value_blob  (Function f, int arg);
+    private static native double _value_double(Function f, int arg);
+    private static native long   _value_long  (Function f, int arg);
+    private static native int    _value_int   (Function f, int arg);
+    private static native int    _value_type  (Function f, int arg);
+
+    /** Allocates the UDFData of a function, linked to next. */
+    private static native long _new_udf(Function func, long next);
+    private static native void _free_udfs(long udf);
+    private static native int _create_function(long db, String name,
+                                               long udf, boolean aggregate);
+    private static native int _destroy_function(long db, String name);
+
+    private static native boolean[][] _column_metadata(long stmt);
+
+    private static native void _read_row(long stmt, int cols, int[] types,
+        long[] longs, double[] doubles);
+
+    private static native int _column_blob_read(long stmt, int col,
+        int from, byte[] b, int off, int len);
+
+    private static native long _blob_open(long db, String dbname,
+        String table, String column, long rowid, boolean write);
+    private static native int _blob_bytes(long blob);
+    private static native int _blob_read(long blob, int offset, byte[] b,
+                                         int off, int len);
+    private static native int _blob_write(long blob, int offset, byte[] b,
+                                          int off, int len);
+    private static native int _blob_close(long blob);
+    /** Read or write a direct buffer at pos in place. */
+    private static native int _blob_read_direct(long blob, int offset,
+        ByteBuffer buf, int pos, int len);
+    private static native int _blob_write_direct(long blob, int offset,
+        ByteBuffer buf, int pos, int len);
+
+    private static native int _fetch(long stmt, boolean first, int max,
+        int[] types, long[] longs, double[] doubles, Object[] objs);
+
+    private static native int _execute_batch(long stmt, int count,
+        int[] types, long[] longs, double[] doubles, Object[] objs,
+        byte[] text, int[] changes, int[] status);
+
+    private static native int _fetch_columns(long stmt, boolean first,
+        int max, int[] kinds, ByteBuffer[] values, ByteBuffer[] nulls,
+        ByteBuffer[] data, int[] status);
+
+    /** Writes rows from pos up to limit in buf, setting status[0] as
+     *  DB.export_rows() does and status[1] to the new position. */
+    private static native int _export_rows(long stmt, boolean first,
+        int max, int format, byte[] keys, int[] keyEnds, ByteBuffer buf,
+        int pos, int limit, int[] status);
 
     static void throwex(String msg) throws SQLException {
         throw new SQLException(msg);
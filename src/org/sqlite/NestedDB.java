@@ -39,7 +39,10 @@ final class NestedDB extends DB implements Runtime.CallJavaCB
 
     // WRAPPER FUNCTIONS ////////////////////////////////////////////
 
-    protected synchronized void _open(String filename) throws SQLException {
+    // each connection runs in its own nestedvm process, so the open flags
+    // selecting a threading mode do not apply
+    protected synchronized void _open(String filename, int flags)
+            throws SQLException {
         if (handle != 0) throw new SQLException("DB already open");
 
         // handle silly windows drive letter mapping
@@ -126,6 +129,8 @@ final class NestedDB extends DB implements Runtime.CallJavaCB
     }
     synchronized int changes() throws SQLException {
         return call("sqlite3_changes", handle); }
+    synchronized boolean get_autocommit() throws SQLException {
+        return call("sqlite3_get_autocommit", handle) != 0; }
 
     protected synchronized int finalize(long stmt) throws SQLException {
         return call("sqlite3_finalize", (int)stmt); }
@@ -156,6 +161,8 @@ final class NestedDB extends DB implements Runtime.CallJavaCB
         copyin(addr, blob, blob.length);
         return blob;
     }
+    synchronized int column_bytes(long stmt, int col) throws SQLException {
+        return call("sqlite3_column_bytes", (int)stmt, col); }
     synchronized double column_double(long stmt, int col) throws SQLException {
         try { return Double.parseDouble(column_text(stmt, col)); }
         catch (NumberFormatException e) { return Double.NaN; } // TODO
@@ -374,6 +381,25 @@ final class NestedDB extends DB implements Runtime.CallJavaCB
     }
 
 
+    // incremental blob I/O takes a 64-bit rowid, which cannot be passed
+    // through the 32-bit nestedvm call interface
+
+    long blob_open(String db, String table, String column, long rowid,
+            boolean write) throws SQLException {
+        throw new SQLException("blob I/O requires the native library");
+    }
+    int blob_bytes(long blob) throws SQLException {
+        throw new SQLException("blob I/O requires the native library"); }
+    int blob_read(long blob, int offset, byte[] b, int off, int len)
+            throws SQLException {
+        throw new SQLException("blob I/O requires the native library"); }
+    int blob_write(long blob, int offset, byte[] b, int off, int len)
+            throws SQLException {
+        throw new SQLException("blob I/O requires the native library"); }
+    int blob_close(long blob) throws SQLException {
+        throw new SQLException("blob I/O requires the native library"); }
+
+
     // HELPER FUNCTIONS /////////////////////////////////////////////
 
     /** safe to reuse parameter arrays as all functions are syncrhonized */
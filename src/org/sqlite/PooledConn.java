@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+import java.util.*;
+import javax.sql.*;
+
+/** An open database handed out as a series of Conn handles.
+ *
+ * Each handle shares the DB of the physical connection, so its statement
+ * cache, functions and pragmas outlive the handle. When a handle is
+ * closed the statements it left open are returned to the cache and any
+ * transaction it left open is rolled back, then the listeners are told
+ * the connection is free, or that it is unusable if that failed.
+ */
+class PooledConn implements PooledConnection
+{
+    private final Conn physical;
+    private Conn handle = null;
+    private final List listeners = new Vector();
+
+    PooledConn(Conn physical) { this.physical = physical; }
+
+    public synchronized Connection getConnection() throws SQLException {
+        if (physical.isClosed())
+            throw new SQLException("pooled connection closed");
+        if (handle != null) {
+            // only the latest handle may be used. The listeners are not
+            // told, as the connection stays handed out.
+            Conn old = handle;
+            handle = null;
+            old.close();
+            SQLException error = reset();
+            if (error != null) throw error;
+        }
+        handle = new Conn(physical, this);
+        return handle;
+    }
+
+    public synchronized void close() throws SQLException {
+        if (handle != null) {
+            Conn old = handle;
+            handle = null;
+            old.close();
+        }
+        physical.close();
+    }
+
+    /** Returns true if the database is open and not in a transaction,
+     *  without running a statement. */
+    synchronized boolean isValid() {
+        try {
+            return !physical.isClosed() && handle == null
+                && physical.db().get_autocommit();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /** Called by a handle on close. Resets the database for the next
+     *  handle and tells the listeners. */
+    void closed(Conn closed) throws SQLException {
+        SQLException error = null;
+        synchronized (this) {
+            if (closed != handle) return;
+            handle = null;
+            error = reset();
+        }
+
+        ConnectionEvent event = new ConnectionEvent(this, error);
+        Object[] l = listeners.toArray();
+        for (int i=0; i < l.length; i++) {
+            if (error == null)
+                ((ConnectionEventListener)l[i]).connectionClosed(event);
+            else
+                ((ConnectionEventListener)l[i])
+                    .connectionErrorOccurred(event);
+        }
+    }
+
+    /** Closes the statements and blobs of the last handle and rolls back
+     *  its transaction. Returns the error if that failed. */
+    private SQLException reset() {
+        DB db = physical.db();
+        db.closeAll();
+        db.conn = physical;
+        try {
+            if (!db.get_autocommit()) db.exec("rollback;");
+            physical.setTimeout(physical.getTimeout());
+            if (!db.get_autocommit())
+                return new SQLException("transaction left open");
+        } catch (SQLException e) {
+            return e;
+        }
+        return null;
+    }
+
+    public void addConnectionEventListener(ConnectionEventListener l) {
+        listeners.add(l); }
+    public void removeConnectionEventListener(ConnectionEventListener l) {
+        listeners.remove(l); }
+
+    // statements are not pooled across connections
+    public void addStatementEventListener(StatementEventListener l) {}
+    public void removeStatementEventListener(StatementEventListener l) {}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.io.PrintWriter;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.sql.*;
+
+/** A DataSource that pools open connections to one SQLite database.
+ *
+ * <p>Opening a connection checks the path, loads the library and opens
+ * and reads the database. Connections returned by <tt>getConnection()</tt>
+ * here are handles on a pooled open database instead, and closing one
+ * returns the database to the pool. The database keeps its statement
+ * cache, user-defined functions and pragma settings across handles.
+ * Statements a handle left open are closed and any transaction it left
+ * open is rolled back when it is returned.</p>
+ *
+ * <p>At most <tt>setMaxConnections()</tt> databases are open at once,
+ * 4 by default. As SQLite allows one writer at a time, more connections
+ * only add readers that wait on the same lock. Threads waiting for a
+ * connection are served in order, for up to the login timeout, and the
+ * most recently returned database is reused first, as its pages are
+ * most likely cached. A database is checked before reuse with
+ * <tt>sqlite3_get_autocommit()</tt> rather than a query. An in-memory
+ * database is a separate database per connection, so it is pooled as
+ * one connection.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      PooledDataSource pool = new PooledDataSource("jdbc:sqlite:app.db");
+ *      Connection conn = pool.getConnection();
+ *      try {
+ *          ...
+ *      } finally {
+ *          conn.close(); // returns the database to the pool
+ *      }
+ *  </pre>
+ *
+ * <p>As a ConnectionPoolDataSource, it creates unpooled PooledConnections
+ * for an application server's own pool.</p>
+ */
+public class PooledDataSource implements DataSource, ConnectionPoolDataSource
+{
+    private static final String PREFIX = "jdbc:sqlite:";
+
+    private final String url;
+    private final String file;
+    private final Properties info;
+    private final LinkedList idle = new LinkedList(); // most recent last
+    private final Listener listener = new Listener();
+
+    private int maxConnections = 4;
+    private Semaphore permits = null; // one per open connection allowed
+    private int open = 0;
+    private int loginTimeout = 30;
+    private String initSql = null;
+    private PrintWriter logWriter = null;
+    private boolean closed = false;
+
+    /** Creates a pool of connections to a <tt>jdbc:sqlite:</tt> URL. */
+    public PooledDataSource(String url) throws SQLException {
+        this(url, new Properties());
+    }
+
+    /** Creates a pool of connections to a <tt>jdbc:sqlite:</tt> URL, each
+     *  opened with the given connection properties. */
+    public PooledDataSource(String url, Properties info)
+            throws SQLException {
+        if (url == null || !url.trim().toLowerCase().startsWith(PREFIX))
+            throw new SQLException("not an SQLite URL: " + url);
+        this.url = url.trim();
+        this.file = PREFIX.length() == this.url.length() ?
+            ":memory:" : this.url.substring(PREFIX.length());
+        this.info = (Properties)info.clone();
+        if (":memory:".equals(file)) maxConnections = 1;
+    }
+
+    /** Sets the most connections open at once. It cannot be changed once
+     *  a connection has been taken. */
+    public synchronized void setMaxConnections(int max) throws SQLException {
+        if (max < 1) throw new IllegalArgumentException();
+        if (permits != null)
+            throw new SQLException("pool already in use");
+        if (":memory:".equals(file) && max > 1)
+            throw new SQLException("in-memory databases cannot be shared");
+        maxConnections = max;
+    }
+
+    public synchronized int getMaxConnections() { return maxConnections; }
+
+    /** Sets SQL to run on each database when it is opened, such as a
+     *  pragma that should apply to every connection. */
+    public synchronized void setInitSql(String sql) { initSql = sql; }
+
+    public synchronized String getInitSql() { return initSql; }
+
+    /** Returns the number of databases open, in use or idle. */
+    public synchronized int getOpenConnections() { return open; }
+
+    /** Returns the number of open databases not in use. */
+    public synchronized int getIdleConnections() { return idle.size(); }
+
+    /** Takes a connection from the pool, opening one if none are idle and
+     *  fewer than the maximum are open. Waits up to the login timeout for
+     *  a connection to be returned. */
+    public Connection getConnection() throws SQLException {
+        Semaphore permits;
+        synchronized (this) {
+            if (closed) throw new SQLException("data source closed");
+            if (this.permits == null)
+                this.permits = new Semaphore(maxConnections, true);
+            permits = this.permits;
+        }
+
+        try {
+            if (loginTimeout == 0) permits.acquire();
+            else if (!permits.tryAcquire(loginTimeout, TimeUnit.SECONDS))
+                throw new SQLException("timed out after " + loginTimeout
+                                       + "s waiting for a connection");
+        } catch (InterruptedException e) {
+            throw new SQLException("interrupted waiting for a connection");
+        }
+
+        boolean taken = false;
+        try {
+            Connection conn = take().getConnection();
+            taken = true;
+            return conn;
+        } finally {
+            if (!taken) permits.release();
+        }
+    }
+
+    /** SQLite has no users, so this is getConnection(). */
+    public Connection getConnection(String user, String pass)
+            throws SQLException {
+        return getConnection();
+    }
+
+    /** Returns an idle connection that is still valid, or opens a new
+     *  one. Must hold a permit. */
+    private PooledConn take() throws SQLException {
+        while (true) {
+            PooledConn pc;
+            synchronized (this) {
+                if (closed) throw new SQLException("data source closed");
+                if (idle.isEmpty()) {
+                    open++;
+                    break;
+                }
+                pc = (PooledConn)idle.removeLast();
+            }
+            if (pc.isValid()) return pc;
+            discard(pc);
+        }
+
+        PooledConn pc = null;
+        try {
+            pc = new PooledConn(open());
+            pc.addConnectionEventListener(listener);
+            return pc;
+        } finally {
+            if (pc == null) synchronized (this) { open--; }
+        }
+    }
+
+    /** Opens a database and runs the init SQL on it. */
+    private Conn open() throws SQLException {
+        Conn conn = new Conn(url, file, info);
+        String sql = getInitSql();
+        if (sql != null) {
+            try {
+                Statement stat = conn.createStatement();
+                try { stat.execute(sql); } finally { stat.close(); }
+            } catch (SQLException e) {
+                conn.close();
+                throw e;
+            }
+        }
+        return conn;
+    }
+
+    private void discard(PooledConn pc) {
+        synchronized (this) { open--; }
+        try { pc.close(); } catch (SQLException e) {}
+    }
+
+    /** Closes the idle connections. Connections in use are closed when
+     *  they are returned, and no more can be taken. */
+    public void close() throws SQLException {
+        Object[] l;
+        synchronized (this) {
+            closed = true;
+            l = idle.toArray();
+            idle.clear();
+        }
+        for (int i=0; i < l.length; i++) discard((PooledConn)l[i]);
+    }
+
+    private final class Listener implements ConnectionEventListener {
+        public void connectionClosed(ConnectionEvent event) {
+            PooledConn pc = (PooledConn)event.getSource();
+            boolean keep;
+            synchronized (PooledDataSource.this) {
+                keep = !closed;
+                if (keep) idle.addLast(pc);
+            }
+            if (!keep) discard(pc);
+            permits.release();
+        }
+
+        public void connectionErrorOccurred(ConnectionEvent event) {
+            if (logWriter != null) logWriter.println(
+                "sqlite pool: discarding connection: "
+                + event.getSQLException().getMessage());
+            discard((PooledConn)event.getSource());
+            permits.release();
+        }
+    }
+
+
+    // CONNECTION POOL DATA SOURCE //////////////////////////////////
+
+    /** Opens a connection for an external pool. It is not counted by or
+     *  returned to this pool. */
+    public PooledConnection getPooledConnection() throws SQLException {
+        return new PooledConn(open());
+    }
+
+    public PooledConnection getPooledConnection(String user, String pass)
+            throws SQLException {
+        return getPooledConnection();
+    }
+
+
+    // COMMON DATA SOURCE ///////////////////////////////////////////
+
+    public synchronized PrintWriter getLogWriter() { return logWriter; }
+    public synchronized void setLogWriter(PrintWriter out) {
+        logWriter = out; }
+
+    /** Returns the seconds to wait for a free connection, 0 for no
+     *  limit. The default is 30. */
+    public synchronized int getLoginTimeout() { return loginTimeout; }
+    public synchronized void setLoginTimeout(int seconds) {
+        if (seconds < 0) throw new IllegalArgumentException();
+        loginTimeout = seconds;
+    }
+
+    public Logger getParentLogger() { return Logger.getLogger("org.sqlite"); }
+
+    public boolean isWrapperFor(Class iface) {
+        return iface.isInstance(this); }
+    public Object unwrap(Class iface) throws SQLException {
+        if (!iface.isInstance(this))
+            throw new SQLException("not a wrapper for " + iface.getName());
+        return this;
+    }
+}
@@ -17,8 +17,10 @@
 package org.sqlite;
 
 import java.io.Reader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.math.BigDecimal;
 import java.util.ArrayList;
@@ -27,18 +29,46 @@ import java.util.Calendar;
 final class PrepStmt extends Stmt
         implements PreparedStatement, ParameterMetaData, Codes
 {
+    /** Longest stream setBinaryStream() reads into memory. */
+    static final int MAX_STREAM = 16 * 1024 * 1024;
+
     private int columnCount;
     private int paramCount;
 
+    // Parameter values, batchPos marks the current row. Each value has its
+    // SQLite type in types, with integers stored in longs, floats in
+    // doubles and String, byte[] or direct ByteBuffer values in
+    // Stmt.batch, so setting a primitive parameter does not allocate. A
+    // type of 0 is unset (NULL). A direct ByteBuffer is bound without a
+    // copy, so the buffers of the bound row are also kept in bound until
+    // the next bind, as the handle reads their memory while it runs. A row
+    // added to the batch holds its buffers copied to byte[], as the
+    // caller may reuse them for the next row, and a direct copy of each
+    // would be slow to allocate and only freed by the collector.
+    private int[] types;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] bound = null;
+
     PrepStmt(Conn conn, String sql) throws SQLException {
         super(conn);
 
         this.sql = sql;
         db.prepare(this);
+        // column names come from the handle, as a schema change can alter
+        // them for the same SQL, while the parameters of SQL cannot change
         rs.colsMeta = db.column_names(pointer);
-        columnCount = db.column_count(pointer);
-        paramCount = db.bind_parameter_count(pointer);
+        StatementCache cache = db.cache;
+        paramCount = cache == null ? -1 : cache.params(sql);
+        if (paramCount < 0) {
+            paramCount = db.bind_parameter_count(pointer);
+            if (cache != null) cache.describe(sql, paramCount);
+        }
+        columnCount = rs.colsMeta.length;
         batch = new Object[paramCount];
+        types = new int[paramCount];
+        longs = new long[paramCount];
+        doubles = new double[paramCount];
         batchPos = 0;
     }
 
@@ -48,13 +78,20 @@ final class PrepStmt extends Stmt
         clearBatch();
     }
 
+    public void clearBatch() throws SQLException {
+        super.clearBatch();
+        if (types != null)
+            for (int i=0; i < types.length; i++)
+                types[i] = 0;
+    }
+
     protected void finalize() throws SQLException { close(); }
 
     public boolean execute() throws SQLException {
         checkOpen();
         rs.close();
-        db.reset(pointer);
-        resultsWaiting = db.execute(this, batch);
+        bind();
+        resultsWaiting = db.execute(this);
         return columnCount != 0;
     }
 
@@ -63,8 +100,8 @@ final class PrepStmt extends Stmt
         if (columnCount == 0)
             throw new SQLException("query does not return results");
         rs.close();
-        db.reset(pointer);
-        resultsWaiting = db.execute(this, batch);
+        bind();
+        resultsWaiting = db.execute(this);
         return getResultSet();
     }
 
@@ -73,19 +110,39 @@ final class PrepStmt extends Stmt
         if (columnCount != 0)
             throw new SQLException("query returns results");
         rs.close();
-        db.reset(pointer);
-        return db.executeUpdate(this, batch);
+        bind();
+        return db.executeUpdate(this);
     }
 
     public int[] executeBatch() throws SQLException {
         if (batchPos == 0) return new int[] {};
         try {
-            return db.executeBatch(pointer, batchPos / paramCount, batch);
+            return db.executeBatch(pointer, batchPos / paramCount,
+                                   types, longs, doubles, batch);
         } finally {
+            keep(batchPos - paramCount); // the last row stays bound
             clearBatch();
         }
     }
 
+    /** Resets the handle and binds the current row. */
+    private void bind() throws SQLException {
+        db.reset(pointer);
+        db.bind(pointer, paramCount, batchPos, types, longs, doubles, batch);
+        keep(batchPos);
+    }
+
+    /** Keeps the buffers of the row starting at batch[row] while they are
+     *  bound, whatever later happens to the parameters. */
+    private void keep(int row) {
+        bound = null;
+        for (int i=0; i < paramCount; i++) {
+            if (!(batch[row + i] instanceof ByteBuffer)) continue;
+            if (bound == null) bound = new Object[paramCount];
+            bound[i] = batch[row + i];
+        }
+    }
+
     public int getUpdateCount() throws SQLException {
         checkOpen();
         if (pointer == 0 || resultsWaiting) return -1;
@@ -96,12 +153,33 @@ final class PrepStmt extends Stmt
         checkOpen();
         batchPos += paramCount;
         if (batchPos + paramCount > batch.length) {
-            Object[] nb = new Object[batch.length * 2];
+            int size = batch.length * 2;
+            Object[] nb = new Object[size];
+            int[] nt = new int[size];
+            long[] nl = new long[size];
+            double[] nd = new double[size];
             System.arraycopy(batch, 0, nb, 0, batch.length);
+            System.arraycopy(types, 0, nt, 0, types.length);
+            System.arraycopy(longs, 0, nl, 0, longs.length);
+            System.arraycopy(doubles, 0, nd, 0, doubles.length);
             batch = nb;
+            types = nt;
+            longs = nl;
+            doubles = nd;
+        }
+        int last = batchPos - paramCount;
+        System.arraycopy(batch, last, batch, batchPos, paramCount);
+        System.arraycopy(types, last, types, batchPos, paramCount);
+        System.arraycopy(longs, last, longs, batchPos, paramCount);
+        System.arraycopy(doubles, last, doubles, batchPos, paramCount);
+        for (int i=last; i < batchPos; i++) {
+            // the caller may refill a buffer for the next row
+            if (!(batch[i] instanceof ByteBuffer)) continue;
+            ByteBuffer b = (ByteBuffer)batch[i];
+            byte[] v = new byte[b.capacity()];
+            ((ByteBuffer)b.duplicate().clear()).get(v);
+            batch[i] = v;
         }
-        System.arraycopy(batch, batchPos - paramCount,
-                         batch, batchPos, paramCount);
     }
 
 
@@ -125,10 +203,18 @@ final class PrepStmt extends Stmt
 
     // PARAMETER FUNCTIONS //////////////////////////////////////////
 
-    private void batch(int pos, Object value) throws SQLException {
+    // returns the index of parameter pos in the current row
+    private int param(int pos) throws SQLException {
         checkOpen();
-        if (batch == null) batch = new Object[paramCount];
-        batch[batchPos + pos - 1] = value;
+        if (pos < 1 || pos > paramCount) throw new SQLException(
+            "parameter " + pos + " out of bounds [1," + paramCount + "]");
+        return batchPos + pos - 1;
+    }
+
+    private void batch(int pos, int type, Object value) throws SQLException {
+        int i = param(pos);
+        types[i] = value == null ? SQLITE_NULL : type;
+        batch[i] = value;
     }
 
     public void setBoolean(int pos, boolean value) throws SQLException {
@@ -138,43 +224,85 @@ final class PrepStmt extends Stmt
         setInt(pos, (int)value);
     }
     public void setBytes(int pos, byte[] value) throws SQLException {
-        batch(pos, value);
+        batch(pos, SQLITE_BLOB, value);
     }
     public void setDouble(int pos, double value) throws SQLException {
-        batch(pos, new Double(value));
+        int i = param(pos);
+        types[i] = SQLITE_FLOAT;
+        doubles[i] = value;
+        batch[i] = null;
     }
     public void setFloat(int pos, float value) throws SQLException {
         setDouble(pos, value);
     }
     public void setInt(int pos, int value) throws SQLException {
-        batch(pos, new Integer(value));
+        setLong(pos, value);
     }
     public void setLong(int pos, long value) throws SQLException {
-        batch(pos, new Long(value));
+        int i = param(pos);
+        types[i] = SQLITE_INTEGER;
+        longs[i] = value;
+        batch[i] = null;
     }
     public void setNull(int pos, int u1) throws SQLException {
         setNull(pos, u1, null);
     }
     public void setNull(int pos, int u1, String u2) throws SQLException {
-        batch(pos, null);
+        batch(pos, SQLITE_NULL, null);
     }
     public void setObject(int pos, Object value) throws SQLException {
         if (value == null)
-            batch(pos, null);
+            setNull(pos, Types.NULL);
         else if (value instanceof java.util.Date)
-            batch(pos, new Long(((java.util.Date)value).getTime()));
-        else if (value instanceof Date)
-            batch(pos, new Long(((Date)value).getTime()));
-        else if (value instanceof Time)
-            batch(pos, new Long(((Time)value).getTime()));
-        else if (value instanceof Timestamp)
-            batch(pos, new Long(((Timestamp)value).getTime()));
-        else if (value instanceof Long) batch(pos, value);
-        else if (value instanceof Integer) batch(pos, value);
-        else if (value instanceof Float) batch(pos, value);
-        else if (value instanceof Double) batch(pos, value);
+            setLong(pos, ((java.util.Date)value).getTime());
+        else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte)
+            setLong(pos, ((Number)value).longValue());
+        else if (value instanceof Float || value instanceof Double)
+            setDouble(pos, ((Number)value).doubleValue());
+        else if (value instanceof byte[])
+            setBytes(pos, (byte[])value);
+        else if (value instanceof ByteBuffer)
+            setBuffer(pos, (ByteBuffer)value);
         else
-            batch(pos, value.toString());
+            setString(pos, value.toString());
+    }
+    // binds the remaining bytes of buf, a direct buffer as a view of it
+    private void setBuffer(int pos, ByteBuffer buf) throws SQLException {
+        if (buf.isDirect() && buf.hasRemaining()) {
+            batch(pos, SQLITE_BLOB, buf.slice());
+        } else {
+            byte[] b = new byte[buf.remaining()];
+            buf.duplicate().get(b);
+            setBytes(pos, b);
+        }
+    }
+    // reads the stream into a direct buffer, so the value is not held on
+    // the Java heap. The statement cannot tell which row a value lands in
+    // to write it there a piece at a time, so streams longer than
+    // MAX_STREAM are refused: insert a zeroblob() and write it with a
+    // BlobChannel, the only way to store a value in bounded memory.
+    public void setBinaryStream(int pos, InputStream in, int length)
+            throws SQLException {
+        if (in == null) { setNull(pos, Types.BLOB); return; }
+        if (length < 0) throw new SQLException("negative stream length");
+        if (length > MAX_STREAM) throw new SQLException(
+            "stream of " + length + " bytes longer than " + MAX_STREAM
+            + ", write it with a BlobChannel");
+        ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        byte[] b = new byte[Math.min(length, 8192)];
+        try {
+            while (buf.hasRemaining()) {
+                int n = in.read(b, 0, Math.min(b.length, buf.remaining()));
+                if (n < 0) throw new SQLException("stream ended after "
+                    + buf.position() + " of " + length + " bytes");
+                buf.put(b, 0, n);
+            }
+        } catch (IOException e) {
+            throw new SQLException(e.getMessage());
+        }
+        buf.flip();
+        setBuffer(pos, buf);
     }
     public void setObject(int p, Object v, int t) throws SQLException {
         setObject(p, v); }
@@ -183,7 +311,7 @@ final class PrepStmt extends Stmt
     public void setShort(int pos, short value) throws SQLException {
         setInt(pos, (int)value); }
     public void setString(int pos, String value) throws SQLException {
-        batch(pos, value);
+        batch(pos, SQLITE_TEXT, value);
     }
     public void setDate(int pos, Date x) throws SQLException {
         setObject(pos, x); }
@@ -17,10 +17,14 @@ package org.sqlite;
 
 import java.sql.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Map;
 
@@ -29,6 +33,8 @@ import java.util.Map;
  */
 final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
 {
+    private static final byte[] EMPTY = new byte[0];
+
     private final Stmt stmt;
     private final DB db;
 
@@ -38,10 +44,27 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
     String[] colsMeta = null; // same as cols, but used by Meta interface
     boolean[][] meta = null;
 
-    private int limitRows; // 0 means no limit, must check against maxRows
+    private int fetchSize; // rows read per block, 0 means step each row
     private int row = 1;   // number of current row, starts at 1
     private int lastCol;   // last column accessed, for wasNull(). -1 if none
 
+    // block of rows read ahead by DB.fetch(), see next()
+    private int[]    types;
+    private long[]   longs;
+    private double[] doubles;
+    private Object[] objs;
+    private int blockRows;     // rows in block, 0 means read from stmt
+    private int blockPos;      // index of the current row in the block
+    private boolean blockDone; // stmt finished while filling block
+    private boolean pending;   // stmt row not yet read by readColumns()
+
+    // types and numeric values of the current stmt row, read by
+    // DB.read_row() when the first column is accessed, see type()
+    private int[]    rowTypes;
+    private long[]   rowLongs;
+    private double[] rowDoubles;
+    private boolean  rowRead;  // snapshot is of the current stmt row
+
     RS(Stmt stmt) {
         this.stmt = stmt;
         this.db   = stmt.db;
@@ -76,6 +99,138 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         if (meta == null) meta = db.column_metadata(stmt.pointer);
     }
 
+    // reads the next block of rows from the statement
+    private boolean fetch() throws SQLException {
+        int max = fetchSize;
+        if (maxRows != 0 && maxRows - row + 1 < max)
+            max = maxRows - row + 1;
+
+        int size = max * colsMeta.length;
+        if (types == null || types.length < size) {
+            types   = new int[size];
+            longs   = new long[size];
+            doubles = new double[size];
+            objs    = new Object[size];
+        }
+
+        blockPos = 0;
+        blockRows = db.fetch(stmt.pointer, row == 1 || pending, max,
+                             types, longs, doubles, objs);
+        pending = false;
+        blockDone = blockRows < max;
+
+        if (blockRows == 0) {
+            close();      // agressive closing to avoid writer starvation
+            return false;
+        }
+        row++;
+        return true;
+    }
+
+    // takes col in [0,x-1] form, returns position of the col in the
+    // current block, or -1 if the current row is read from the stmt
+    private int cell(int col) {
+        return blockRows == 0 ? -1 : blockPos * colsMeta.length + col;
+    }
+
+    // snapshots the types and numbers of the current stmt row, so each
+    // getter needs no JNI call to find the type. TEXT and BLOB values are
+    // still read from the stmt, only when asked for.
+    private void readRow() throws SQLException {
+        if (rowRead) return;
+        int cols = colsMeta.length;
+        if (rowTypes == null || rowTypes.length < cols) {
+            rowTypes   = new int[cols];
+            rowLongs   = new long[cols];
+            rowDoubles = new double[cols];
+        }
+        db.read_row(stmt.pointer, cols, rowTypes, rowLongs, rowDoubles);
+        rowRead = true;
+    }
+
+    // true if the snapshot holds the numeric value of a stmt column
+    private boolean isNumber(int col) throws SQLException {
+        readRow();
+        return rowTypes[col] == SQLITE_INTEGER
+            || rowTypes[col] == SQLITE_FLOAT;
+    }
+
+    // the following take col in [0,x-1] form and return its value in the
+    // current row, from the block if there is one
+
+    private int type(int col) throws SQLException {
+        int i = cell(col);
+        if (i >= 0) return types[i];
+        readRow();
+        return rowTypes[col];
+    }
+
+    private int intValue(int col) throws SQLException {
+        int i = cell(col);
+        if (i >= 0) return (int)longs[i];
+        if (isNumber(col)) return (int)rowLongs[col];
+        return rowTypes[col] == SQLITE_NULL ? 0
+             : db.column_int(stmt.pointer, col);
+    }
+
+    private long longValue(int col) throws SQLException {
+        int i = cell(col);
+        if (i >= 0) return longs[i];
+        if (isNumber(col)) return rowLongs[col];
+        return rowTypes[col] == SQLITE_NULL ? 0
+             : db.column_long(stmt.pointer, col);
+    }
+
+    private double doubleValue(int col) throws SQLException {
+        int i = cell(col);
+        if (i >= 0) return doubles[i];
+        if (isNumber(col)) return rowDoubles[col];
+        return rowTypes[col] == SQLITE_NULL ? 0
+             : db.column_double(stmt.pointer, col);
+    }
+
+    private String textValue(int col) throws SQLException {
+        int i = cell(col);
+        if (i < 0) return type(col) == SQLITE_NULL ? null
+                        : db.column_text(stmt.pointer, col);
+        switch (types[i]) {
+            case SQLITE_NULL: return null;
+            case SQLITE_BLOB: return utf8(cellBytes(col));
+            case SQLITE_TEXT: return (String)objs[i];
+            case SQLITE_FLOAT: return (String)objs[i]; // SQLite's text
+            default: return Long.toString(longs[i]);
+        }
+    }
+
+    private byte[] blobValue(int col) throws SQLException {
+        int i = cell(col);
+        if (i < 0) return type(col) == SQLITE_NULL ? null
+                        : db.column_blob(stmt.pointer, col);
+        switch (types[i]) {
+            case SQLITE_NULL: return null;
+            case SQLITE_BLOB: return (byte[])objs[i];
+            default: return utf8(textValue(col));
+        }
+    }
+
+    // the bytes of a cell of the block that is not NULL, a zero-length
+    // BLOB being held as null as column_blob() returns it
+    private byte[] cellBytes(int col) throws SQLException {
+        byte[] v = blobValue(col);
+        return v == null ? EMPTY : v;
+    }
+
+    private static String utf8(byte[] b) throws SQLException {
+        try { return new String(b, "UTF-8"); }
+        catch (java.io.UnsupportedEncodingException e) {
+            throw new SQLException(e.getMessage()); }
+    }
+    private static byte[] utf8(String s) throws SQLException {
+        try { return s.getBytes("UTF-8"); }
+        catch (java.io.UnsupportedEncodingException e) {
+            throw new SQLException(e.getMessage()); }
+    }
+
 
     // ResultSet Functions //////////////////////////////////////////
 
@@ -88,10 +243,16 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         colsMeta = null;
         meta = null;
         open = false;
-        limitRows = 0;
         row = 1;
         lastCol = -1;
 
+        if (objs != null) Arrays.fill(objs, null);
+        rowRead = false;
+        blockRows = 0;
+        blockPos = 0;
+        blockDone = false;
+        pending = false;
+
         if (stmt == null)
             return;
         if (stmt != null && stmt.pointer != 0)
@@ -118,38 +279,182 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
             return c + 1;
     }
 
+    /*
+     * With a fetch size set, rows are read from the statement a block at
+     * a time with DB.fetch(), and the getters are served from the block.
+     * The statement is then positioned on the last row of the block, so
+     * once it is used up we can go back to stepping row by row if the
+     * fetch size is cleared.
+     */
     public boolean next() throws SQLException {
         if (!open) return false;  // finished ResultSet
         lastCol = -1;
+        rowRead = false;
 
-        // first row is loaded by execute(), so do not step() again
-        if (row == 1) { row++; return true; }
+        // serve the rest of the current block
+        if (blockPos + 1 < blockRows) { blockPos++; row++; return true; }
+        db.checkThread();
 
-        // check if we are row limited by the statement or the ResultSet
+        // check if we are row limited by the statement
         if (maxRows != 0 && row > maxRows) return false;
-        if (limitRows != 0 && row >= limitRows) return false;
-
-        // do the real work
-        switch (db.step(stmt.pointer)) {
-            case SQLITE_DONE:
-                close();      // agressive closing to avoid writer starvation
-                return false;
-            case SQLITE_ROW: row++; return true;
-            case SQLITE_BUSY:
-                throw new SQLException("database locked");
-            default:
-                 db.throwex(); return false;
+
+        if (blockDone) {
+            close();
+            return false;
         }
+        if (fetchSize > 0) return fetch();
+        blockRows = 0;
+
+        // first row is loaded by execute(), so do not step() again
+        if (row == 1 || pending) { pending = false; row++; return true; }
+
+        // do the real work, locked so no other thread uses the connection
+        // or closes the statement while it steps
+        db.lock();
+        try {
+            if (stmt.pointer == 0)
+                throw new SQLException("statement is not executing");
+            switch (db.step(stmt.pointer)) {
+                case SQLITE_DONE:
+                    close();  // agressive closing to avoid writer starvation
+                    return false;
+                case SQLITE_ROW: row++; return true;
+                case SQLITE_BUSY:
+                    throw new SQLException("database locked");
+                default:
+                     db.throwex(); return false;
+            }
+        } finally {
+            db.unlock();
+        }
+    }
+
+    /** Reads up to max rows into the column buffers of a ColumnarReader,
+     *  consuming them as next() would. Returns the number of rows read,
+     *  0 once the ResultSet is finished. */
+    int readColumns(int max, int[] kinds, ByteBuffer[] values,
+                    ByteBuffer[] nulls, ByteBuffer[] data)
+            throws SQLException {
+        if (!open) return 0;
+        if (blockPos + 1 < blockRows) throw new SQLException(
+            "rows already fetched by ResultSet, set fetch size to 0");
+        lastCol = -1;
+        rowRead = false;
+
+        if (maxRows != 0 && maxRows - row + 1 < max)
+            max = maxRows - row + 1;
+        if (max < 1) return 0;
+        if (blockDone) {
+            close();
+            return 0;
+        }
+        blockRows = 0;
+
+        int[] status = new int[1];
+        int rows = db.fetch_columns(stmt.pointer, row == 1 || pending, max,
+                                    kinds, values, nulls, data, status);
+        row += rows;
+        pending = status[0] == SQLITE_ROW;
+        if (status[0] == SQLITE_DONE)
+            close();
+        return rows;
+    }
+
+    /** Writes the remaining rows to the position of buf in a RowExporter
+     *  format, advancing it, and consumes them as next() would. Returns
+     *  the number of rows written, 0 with nothing written if the next row
+     *  does not fit in buf. The ResultSet is closed once it runs out. */
+    int exportRows(int format, byte[] keys, int[] keyEnds, ByteBuffer buf)
+            throws SQLException {
+        if (!open) return 0;
+        if (blockPos + 1 < blockRows) throw new SQLException(
+            "rows already fetched by ResultSet, set fetch size to 0");
+        lastCol = -1;
+        rowRead = false;
+
+        int max = Integer.MAX_VALUE;
+        if (maxRows != 0) max = maxRows - row + 1;
+        if (max < 1 || blockDone) {
+            close();
+            return 0;
+        }
+        blockRows = 0;
+
+        int[] status = new int[1];
+        int rows = db.export_rows(stmt.pointer, row == 1 || pending, max,
+                                  format, keys, keyEnds, buf, status);
+        row += rows;
+        pending = status[0] == SQLITE_ROW;
+        if (status[0] == SQLITE_DONE || rows == max)
+            close();
+        return rows;
+    }
+
+    /** Returns the length in bytes of a column as a blob, or as UTF-8
+     *  text if utf8 is true, or -1 if it is NULL. See ColumnBytes. */
+    int bytesLength(int col, boolean utf8) throws SQLException {
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return -1;
+        if (cell(c) >= 0) return cellBytes(c).length;
+        return utf8 ? db.column_text_bytes(stmt.pointer, c)
+                    : db.column_bytes(stmt.pointer, c);
+    }
+
+    /** Copies a column as a blob, or as UTF-8 text if utf8 is true, into
+     *  b from off, reading at most len bytes. Returns the length copied,
+     *  or -1 if it is NULL. */
+    int readBytes(int col, boolean utf8, byte[] b, int off, int len)
+            throws SQLException {
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return -1;
+        int length;
+        if (cell(c) < 0) {
+            length = utf8 ? db.column_text(stmt.pointer, c, b, off, len)
+                          : db.column_blob(stmt.pointer, c, b, off, len);
+        } else {
+            byte[] v = cellBytes(c);
+            length = v.length;
+            if (length <= len) System.arraycopy(v, 0, b, off, length);
+        }
+        return checkFits(col, length, len);
+    }
+
+    /** Copies a column as a blob, or as UTF-8 text if utf8 is true, to
+     *  the position of buf, advancing it. Returns the length copied, or
+     *  -1 if it is NULL. */
+    int readBytes(int col, boolean utf8, ByteBuffer buf)
+            throws SQLException {
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return -1;
+        int length;
+        if (cell(c) < 0) {
+            length = utf8 ? db.column_text(stmt.pointer, c, buf)
+                          : db.column_blob(stmt.pointer, c, buf);
+        } else {
+            byte[] v = cellBytes(c);
+            length = v.length;
+            if (length <= buf.remaining()) buf.duplicate().put(v);
+        }
+        checkFits(col, length, buf.remaining());
+        buf.position(buf.position() + length);
+        return length;
+    }
+
+    private static int checkFits(int col, int length, int room)
+            throws SQLException {
+        if (length > room) throw new SQLException("column " + col
+            + " value of " + length + " bytes does not fit in buffer");
+        return length;
     }
 
     public int getType() throws SQLException { return TYPE_FORWARD_ONLY; }
 
-    public int getFetchSize() throws SQLException { return limitRows; }
+    public int getFetchSize() throws SQLException { return fetchSize; }
     public void setFetchSize(int rows) throws SQLException {
         if (0 > rows || (maxRows != 0 && rows > maxRows))
             throw new SQLException("fetch size " + rows
                                    + " out of bounds " + maxRows);
-        limitRows = rows; 
+        fetchSize = rows;
     }
 
     public int getFetchDirection() throws SQLException {
@@ -172,7 +477,7 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
     public int getRow() throws SQLException { return row; }
 
     public boolean wasNull() throws SQLException {
-        return db.column_type(stmt.pointer, markCol(lastCol)) == SQLITE_NULL;
+        return type(markCol(lastCol)) == SQLITE_NULL;
     }
 
 
@@ -189,20 +494,32 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         return getByte(findColumn(col)); }
 
     public byte[] getBytes(int col) throws SQLException {
-        return db.column_blob(stmt.pointer, markCol(col)); }
+        return blobValue(markCol(col)); }
     public byte[] getBytes(String col) throws SQLException {
         return getBytes(findColumn(col)); }
 
+    /** Returns a stream reading the value from SQLite a piece at a time,
+     *  rather than as one byte[]. It can be read until the ResultSet
+     *  moves to another row. */
+    public InputStream getBinaryStream(int col) throws SQLException {
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        if (cell(c) >= 0) return new ByteArrayInputStream(blobValue(c));
+        return new ColumnStream(c);
+    }
+    public InputStream getBinaryStream(String col) throws SQLException {
+        return getBinaryStream(findColumn(col)); }
+
     public Date getDate(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        return new Date(db.column_long(stmt.pointer, markCol(col)));
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        return new Date(longValue(c));
     }
     public Date getDate(int col, Calendar cal) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
         if (cal == null) return getDate(col);
-        cal.setTimeInMillis(db.column_long(stmt.pointer, markCol(col)));
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        cal.setTimeInMillis(longValue(c));
         return new Date(cal.getTime().getTime());
     }
     public Date getDate(String col) throws SQLException {
@@ -211,28 +528,28 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         return getDate(findColumn(col), cal); }
 
     public double getDouble(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return 0;
-        return db.column_double(stmt.pointer, markCol(col));
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return 0;
+        return doubleValue(c);
     }
     public double getDouble(String col) throws SQLException {
         return getDouble(findColumn(col)); }
 
     public float getFloat(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return 0;
-        return (float)db.column_double(stmt.pointer, markCol(col));
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return 0;
+        return (float)doubleValue(c);
     }
     public float getFloat(String col) throws SQLException {
         return getFloat(findColumn(col)); }
 
     public int getInt(int col) throws SQLException {
-        return db.column_int(stmt.pointer, markCol(col)); }
+        return intValue(markCol(col)); }
     public int getInt(String col) throws SQLException {
         return getInt(findColumn(col)); }
 
     public long getLong(int col) throws SQLException {
-        return db.column_long(stmt.pointer, markCol(col)); }
+        return longValue(markCol(col)); }
     public long getLong(String col) throws SQLException {
         return getLong(findColumn(col)); }
 
@@ -242,19 +559,19 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         return getShort(findColumn(col)); }
 
     public String getString(int col) throws SQLException {
-        return db.column_text(stmt.pointer, markCol(col)); }
+        return textValue(markCol(col)); }
     public String getString(String col) throws SQLException {
         return getString(findColumn(col)); }
 
     public Time getTime(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        return new Time(db.column_long(stmt.pointer, markCol(col))); }
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        return new Time(longValue(c)); }
     public Time getTime(int col, Calendar cal) throws SQLException {
         if (cal == null) return getTime(col);
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        cal.setTimeInMillis(db.column_long(stmt.pointer, markCol(col)));
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        cal.setTimeInMillis(longValue(c));
         return new Time(cal.getTime().getTime());
     }
     public Time getTime(String col) throws SQLException {
@@ -263,14 +580,14 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         return getTime(findColumn(col), cal); }
 
     public Timestamp getTimestamp(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        return new Timestamp(db.column_long(stmt.pointer, markCol(col))); }
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        return new Timestamp(longValue(c)); }
     public Timestamp getTimestamp(int col, Calendar cal) throws SQLException {
         if (cal == null) return getTimestamp(col);
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        cal.setTimeInMillis(db.column_long(stmt.pointer, markCol(col)));
+        int c = markCol(col);
+        if (type(c) == SQLITE_NULL) return null;
+        cal.setTimeInMillis(longValue(c));
         return new Timestamp(cal.getTime().getTime());
     }
     public Timestamp getTimestamp(String col) throws SQLException {
@@ -279,7 +596,7 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         return getTimestamp(findColumn(c), ca); }
 
     public Object getObject(int col) throws SQLException {
-        switch (db.column_type(stmt.pointer, checkCol(col))) {
+        switch (type(checkCol(col))) {
             case SQLITE_INTEGER:
                 long val = getLong(col);
                 if (val > (long)Integer.MAX_VALUE
@@ -303,6 +620,38 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
     public SQLWarning getWarnings() throws SQLException { return null; }
     public void clearWarnings() throws SQLException {}
 
+    /** Reads a column of the current row from the statement. */
+    private final class ColumnStream extends InputStream {
+        private final int col, streamRow;
+        private int pos = 0;
+        private final byte[] one = new byte[1];
+
+        ColumnStream(int col) { this.col = col; this.streamRow = row; }
+
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (!open || row != streamRow)
+                throw new IOException("ResultSet has moved past the row");
+            if (len == 0) return 0;
+            try {
+                int n = db.column_blob(stmt.pointer, col, pos, b, off, len);
+                if (n == 0) return -1;
+                pos += n;
+                return n;
+            } catch (SQLException e) {
+                IOException ex = new IOException(e.getMessage());
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+    }
+
+
     // ResultSetMetaData Functions //////////////////////////////////
 
     // we do not need to check the RS is open, only that colsMeta
@@ -325,7 +674,7 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
     public String getColumnName(int col) throws SQLException {
         return db.column_name(stmt.pointer, checkCol(col)); }
     public int getColumnType(int col) throws SQLException {
-        switch (db.column_type(stmt.pointer, checkCol(col))) {
+        switch (type(checkCol(col))) {
             case SQLITE_INTEGER: return Types.INTEGER;
             case SQLITE_FLOAT:   return Types.FLOAT;
             case SQLITE_BLOB:    return Types.BLOB;
@@ -336,7 +685,7 @@ final class RS extends Unused implements ResultSet, ResultSetMetaData, Codes
         }
     }
     public String getColumnTypeName(int col) throws SQLException {
-        switch (db.column_type(stmt.pointer, checkCol(col))) {
+        switch (type(checkCol(col))) {
             case SQLITE_INTEGER: return "integer";
             case SQLITE_FLOAT:   return "float";
             case SQLITE_BLOB:    return "blob";
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.sql.*;
+
+/** Writes the rows of an SQLite ResultSet to a stream as CSV, TSV, JSON
+ *  Lines or a binary format, without creating an object per value.
+ *
+ * <p>Rows are formatted by the native library straight into a direct
+ * buffer, which is written out to the channel each time it fills. Numbers
+ * are written as SQLite converts them to text, and BLOBs as hexadecimal
+ * digits. The formats are:</p>
+ *
+ * <ul>
+ *  <li><tt>CSV</tt>: RFC 4180, lines ended by CRLF. Text containing a
+ *  comma, quote or line break is quoted, as is the empty string, and NULL
+ *  is an empty field.</li>
+ *  <li><tt>TSV</tt>: fields separated by tabs and lines ended by LF.
+ *  Backslash, tab, LF and CR in text are written as <tt>\\</tt>,
+ *  <tt>\t</tt>, <tt>\n</tt> and <tt>\r</tt>, and NULL is <tt>\N</tt>.</li>
+ *  <li><tt>JSON_LINES</tt>: an object per line keyed by column name.
+ *  Infinite numbers are written as null.</li>
+ *  <li><tt>BINARY</tt>: for each value, one byte with its SQLite type
+ *  code, then nothing for NULL, an 8 byte integer or IEEE double, or for
+ *  TEXT (as UTF-8) and BLOB a 4 byte length and the bytes. All numbers
+ *  are big-endian, as read by <tt>DataInputStream</tt>.</li>
+ * </ul>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      ResultSet rs = stat.executeQuery("select * from orders;");
+ *      RowExporter export = new RowExporter(rs, RowExporter.CSV);
+ *      export.setHeader(true);
+ *      export.writeTo(response.getOutputStream());
+ *  </pre>
+ *
+ * <p>Rows written here are consumed from the ResultSet, which is closed
+ * once they run out. Writing is not possible while the ResultSet has rows
+ * fetched ahead for a fetch size that it has not yet returned.</p>
+ */
+public final class RowExporter
+{
+    /** Format: comma separated values. */
+    public static final int CSV = 1;
+
+    /** Format: tab separated values. */
+    public static final int TSV = 2;
+
+    /** Format: a JSON object per line. */
+    public static final int JSON_LINES = 3;
+
+    /** Format: typed big-endian values. */
+    public static final int BINARY = 4;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final RS rs;
+    private final int format;
+    private final String[] names;
+    private byte[] keys = null;    // JSON_LINES text before each value
+    private int[] keyEnds = null;  // end of the text of each column in keys
+    private boolean header = false;
+    private int bufferSize = 64 * 1024;
+
+    /** Creates an exporter of the remaining rows of an SQLite ResultSet. */
+    public RowExporter(ResultSet rs, int format) throws SQLException {
+        if (rs == null || !(rs instanceof RS))
+            throw new SQLException("ResultSet must be from an SQLite db");
+        if (format < CSV || format > BINARY)
+            throw new SQLException("unknown export format: " + format);
+        this.rs = (RS)rs;
+        this.format = format;
+
+        ResultSetMetaData meta = rs.getMetaData();
+        names = new String[meta.getColumnCount()];
+        for (int i=0; i < names.length; i++)
+            names[i] = meta.getColumnName(i + 1);
+
+        if (format == JSON_LINES) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            keyEnds = new int[names.length];
+            for (int i=0; i < names.length; i++) {
+                out.write(i == 0 ? '{' : ',');
+                text(out, JSON_LINES, utf8(names[i]));
+                out.write(':');
+                keyEnds[i] = out.size();
+            }
+            keys = out.toByteArray();
+        }
+    }
+
+    /** Sets whether CSV and TSV output starts with a line of column
+     *  names. The default is false. */
+    public void setHeader(boolean header) { this.header = header; }
+
+    /** Sets the size in bytes of the buffer rows are written to before
+     *  going to the channel. It is made larger if a row does not fit. */
+    public void setBufferSize(int bytes) {
+        if (bytes < 1) throw new IllegalArgumentException();
+        bufferSize = bytes;
+    }
+
+    /** Writes the remaining rows to a stream. Returns the number of rows
+     *  written. */
+    public long writeTo(OutputStream out) throws SQLException, IOException {
+        return writeTo(Channels.newChannel(out));
+    }
+
+    /** Writes the remaining rows to a blocking channel. Returns the number
+     *  of rows written. */
+    public long writeTo(WritableByteChannel out)
+            throws SQLException, IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+        if (header && (format == CSV || format == TSV)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int i=0; i < names.length; i++) {
+                if (i > 0) line.write(format == CSV ? ',' : '\t');
+                text(line, format, utf8(names[i]));
+            }
+            end(line, format);
+            if (line.size() > buf.capacity())
+                buf = ByteBuffer.allocateDirect(line.size());
+            buf.put(line.toByteArray());
+        }
+
+        long total = 0;
+        while (true) {
+            int rows = rs.exportRows(format, keys, keyEnds, buf);
+            total += rows;
+            if (rows == 0 && buf.position() == 0 && rs.isOpen()) {
+                // next row is larger than the buffer
+                buf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                continue;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+            if (!rs.isOpen()) return total;
+        }
+    }
+
+
+    // PORTABLE FORMATTING //////////////////////////////////////////
+    // Used by DB.export_rows() when rows are not written natively.
+
+    /** Appends the current row of a statement to out. */
+    static void row(ByteArrayOutputStream out, int format, DB db, long stmt,
+                    int cols, byte[] keys, int[] keyEnds)
+            throws SQLException {
+        for (int col=0; col < cols; col++) {
+            if (keys != null) {
+                int from = col == 0 ? 0 : keyEnds[col - 1];
+                out.write(keys, from, keyEnds[col] - from);
+            } else if (col > 0 && format != BINARY) {
+                out.write(format == CSV ? ',' : '\t');
+            }
+            cell(out, format, db, stmt, col);
+        }
+        end(out, format);
+    }
+
+    private static void cell(ByteArrayOutputStream out, int format, DB db,
+                             long stmt, int col) throws SQLException {
+        int type = db.column_type(stmt, col);
+        if (format == BINARY) {
+            out.write(type);
+            switch (type) {
+                case Codes.SQLITE_INTEGER:
+                    big(out, db.column_long(stmt, col), 8); break;
+                case Codes.SQLITE_FLOAT:
+                    big(out, Double.doubleToRawLongBits(
+                        db.column_double(stmt, col)), 8); break;
+                case Codes.SQLITE_TEXT:
+                    byte[] t = utf8(db.column_text(stmt, col));
+                    big(out, t.length, 4);
+                    out.write(t, 0, t.length);
+                    break;
+                case Codes.SQLITE_BLOB:
+                    byte[] b = db.column_blob(stmt, col);
+                    if (b == null) b = new byte[0];
+                    big(out, b.length, 4);
+                    out.write(b, 0, b.length);
+                    break;
+            }
+            return;
+        }
+
+        byte[] v;
+        switch (type) {
+            case Codes.SQLITE_NULL:
+                if (format == TSV) ascii(out, "\\N");
+                else if (format == JSON_LINES) ascii(out, "null");
+                return;
+            case Codes.SQLITE_BLOB:
+                v = db.column_blob(stmt, col);
+                if (format == JSON_LINES) out.write('"');
+                for (int i=0; v != null && i < v.length; i++) {
+                    out.write(HEX[(v[i] >> 4) & 15]);
+                    out.write(HEX[v[i] & 15]);
+                }
+                if (format == JSON_LINES) out.write('"');
+                return;
+            case Codes.SQLITE_FLOAT:
+                double d = db.column_double(stmt, col);
+                if (format == JSON_LINES
+                        && (Double.isNaN(d) || Double.isInfinite(d))) {
+                    ascii(out, "null");
+                    return;
+                }
+                // fall through
+            case Codes.SQLITE_INTEGER:
+                ascii(out, db.column_text(stmt, col));
+                return;
+            default:
+                text(out, format, utf8(db.column_text(stmt, col)));
+        }
+    }
+
+    /** Appends UTF-8 text escaped or quoted for a text format. */
+    private static void text(ByteArrayOutputStream out, int format,
+                             byte[] s) {
+        switch (format) {
+            case CSV:
+                boolean quote = s.length == 0;
+                for (int i=0; i < s.length && !quote; i++)
+                    quote = s[i] == ',' || s[i] == '"'
+                        || s[i] == '\r' || s[i] == '\n';
+                if (quote) out.write('"');
+                for (int i=0; i < s.length; i++) {
+                    if (s[i] == '"') out.write('"');
+                    out.write(s[i]);
+                }
+                if (quote) out.write('"');
+                return;
+            case TSV:
+                for (int i=0; i < s.length; i++) {
+                    switch (s[i]) {
+                        case '\\': ascii(out, "\\\\"); break;
+                        case '\t': ascii(out, "\\t"); break;
+                        case '\n': ascii(out, "\\n"); break;
+                        case '\r': ascii(out, "\\r"); break;
+                        default: out.write(s[i]);
+                    }
+                }
+                return;
+            default:
+                out.write('"');
+                for (int i=0; i < s.length; i++) {
+                    switch (s[i]) {
+                        case '"': ascii(out, "\\\""); break;
+                        case '\\': ascii(out, "\\\\"); break;
+                        case '\n': ascii(out, "\\n"); break;
+                        case '\r': ascii(out, "\\r"); break;
+                        case '\t': ascii(out, "\\t"); break;
+                        default:
+                            if (s[i] >= 0 && s[i] < 0x20) {
+                                ascii(out, "\\u00");
+                                out.write(HEX[s[i] >> 4]);
+                                out.write(HEX[s[i] & 15]);
+                            } else out.write(s[i]);
+                    }
+                }
+                out.write('"');
+        }
+    }
+
+    private static void end(ByteArrayOutputStream out, int format) {
+        switch (format) {
+            case CSV: ascii(out, "\r\n"); break;
+            case TSV: out.write('\n'); break;
+            case JSON_LINES: ascii(out, "}\n"); break;
+        }
+    }
+
+    private static void big(ByteArrayOutputStream out, long v, int bytes) {
+        while (bytes-- > 0) out.write((int)(v >> (8 * bytes)));
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String s) {
+        for (int i=0; i < s.length(); i++) out.write(s.charAt(i));
+    }
+
+    private static byte[] utf8(String s) throws SQLException {
+        try { return s.getBytes("UTF-8"); }
+        catch (UnsupportedEncodingException e) {
+            throw new SQLException(e.getMessage()); }
+    }
+}
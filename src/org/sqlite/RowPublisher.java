@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+
+/** Publishes the rows of a query to subscribers as they ask for them.
+ *
+ * <p>The interfaces here follow the Reactive Streams protocol of
+ * <tt>java.util.concurrent.Flow</tt>. Each subscriber gets its own run
+ * of the query on the connection of an AsyncConnection. Asking a
+ * Subscription for n rows queues work on that connection's thread that
+ * steps the statement up to n times, handing each row to
+ * <tt>onNext()</tt> as it is read, so no more rows than were asked for
+ * are read or held in memory. Cancelling, or reading the last row,
+ * closes the statement, which resets it and returns it to the statement
+ * cache.</p>
+ *
+ * <p>Rows are passed as an Object[] of the column values. With
+ * <tt>setFlyweight(true)</tt> they are instead passed as the same Row
+ * each time, which reads the columns of the current row without copying
+ * them, and is only valid until <tt>onNext()</tt> returns.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      RowPublisher rows = new RowPublisher(async, "select * from log;",
+ *                                           null);
+ *      rows.subscribe(new RowPublisher.Subscriber() {
+ *          Subscription s;
+ *          public void onSubscribe(Subscription s) {
+ *              this.s = s;
+ *              s.request(100);
+ *          }
+ *          public void onNext(Object row) { ... }
+ *          ...
+ *      });
+ *  </pre>
+ *
+ * <p>All signals are sent on the connection's thread. A subscriber that
+ * is slow to ask for more keeps the statement open, and with it a read
+ * lock on the database.</p>
+ */
+public final class RowPublisher
+{
+    /** Receives the rows of a query, as
+     *  <tt>java.util.concurrent.Flow.Subscriber</tt>. */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+        void onNext(Object row);
+        void onError(Throwable error);
+        void onComplete();
+    }
+
+    /** Asks for rows, as <tt>java.util.concurrent.Flow.Subscription</tt>. */
+    public interface Subscription {
+        /** Asks for up to n more rows. */
+        void request(long n);
+        /** Stops sending rows and closes the statement. */
+        void cancel();
+    }
+
+    /** Most rows sent by one piece of queued work, so a large request
+     *  does not hold up other work on the connection. */
+    private static final int CHUNK = 1024;
+
+    private final AsyncConnection async;
+    private final String sql;
+    private final Object[] params;
+    private volatile boolean flyweight = false;
+
+    /** Creates a publisher of the rows of a query run on an
+     *  AsyncConnection. */
+    public RowPublisher(AsyncConnection async, String sql, Object[] params) {
+        if (async == null || sql == null) throw new NullPointerException();
+        this.async = async;
+        this.sql = sql;
+        this.params = params == null ? null : (Object[])params.clone();
+    }
+
+    /** Sets whether later subscribers are passed one reused Row rather
+     *  than a new Object[] for each row. */
+    public void setFlyweight(boolean flyweight) { this.flyweight = flyweight; }
+
+    public boolean isFlyweight() { return flyweight; }
+
+    /** Runs the query for a subscriber. */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) throw new NullPointerException();
+        final Sub s = new Sub(subscriber, flyweight);
+        s.schedule(new AsyncConnection.Task() {
+            public Object run(Connection conn) {
+                s.start(conn);
+                return null;
+            }
+        });
+    }
+
+
+    // ROW //////////////////////////////////////////////////////////
+
+    /** The current row of a flyweight subscription. Its values change
+     *  with each row sent, and it cannot be read after the statement is
+     *  closed. */
+    public static final class Row {
+        private final ResultSet rs;
+        private final int cols;
+
+        Row(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            cols = rs.getMetaData().getColumnCount();
+        }
+
+        public int getColumnCount() { return cols; }
+
+        public String getColumnName(int col) throws SQLException {
+            return rs.getMetaData().getColumnName(col); }
+        public Object getObject(int col) throws SQLException {
+            return rs.getObject(col); }
+        public int getInt(int col) throws SQLException {
+            return rs.getInt(col); }
+        public long getLong(int col) throws SQLException {
+            return rs.getLong(col); }
+        public double getDouble(int col) throws SQLException {
+            return rs.getDouble(col); }
+        public String getString(int col) throws SQLException {
+            return rs.getString(col); }
+        public byte[] getBytes(int col) throws SQLException {
+            return rs.getBytes(col); }
+
+        /** Returns true if the last column read was NULL. */
+        public boolean wasNull() throws SQLException { return rs.wasNull(); }
+
+        /** Copies the values of the current row. */
+        public Object[] toArray() throws SQLException {
+            Object[] row = new Object[cols];
+            for (int i=0; i < cols; i++) row[i] = rs.getObject(i + 1);
+            return row;
+        }
+    }
+
+
+    // SUBSCRIPTION /////////////////////////////////////////////////
+
+    private final class Sub implements Subscription {
+        private final Subscriber subscriber;
+        private final boolean flyweight;
+
+        // guarded by this
+        private long demand = 0;
+        private boolean draining = false;
+        private boolean cancelled = false;
+        private Throwable invalid = null;
+
+        // used on the connection's thread only
+        private PreparedStatement prep = null;
+        private ResultSet rs = null;
+        private Row row = null;
+        private volatile boolean finished = false;
+
+        private final AsyncConnection.Task drain =
+                new AsyncConnection.Task() {
+            public Object run(Connection conn) {
+                drain();
+                return null;
+            }
+        };
+
+        Sub(Subscriber subscriber, boolean flyweight) {
+            this.subscriber = subscriber;
+            this.flyweight = flyweight;
+        }
+
+        /** Queues work on the connection, failing the subscription if the
+         *  connection is closed. */
+        void schedule(AsyncConnection.Task task) {
+            async.submit(task).whenDone(new AsyncConnection.Callback() {
+                public void completed(Object value) {}
+                public void failed(Throwable error) {
+                    if (finished) return;
+                    finished = true;
+                    subscriber.onError(error);
+                }
+            });
+        }
+
+        void start(Connection conn) {
+            subscriber.onSubscribe(this);
+            if (finished) return;
+            try {
+                prep = conn.prepareStatement(sql);
+                if (params != null)
+                    for (int i=0; i < params.length; i++)
+                        prep.setObject(i + 1, params[i]);
+                rs = prep.executeQuery();
+                if (flyweight) row = new Row(rs);
+            } catch (SQLException e) {
+                error(e);
+                return;
+            }
+            // rows asked for in onSubscribe() wait for the statement
+            drain();
+        }
+
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) return;
+                if (n <= 0) {
+                    invalid = new IllegalArgumentException(
+                        "non-positive request: " + n);
+                    cancelled = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                if (draining) return;
+                draining = true;
+            }
+            schedule(drain);
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                if (draining) return;
+                draining = true;
+            }
+            schedule(drain); // closes the statement on its thread
+        }
+
+        /** Steps the statement for the rows asked for, up to CHUNK, or
+         *  closes it if the subscription is cancelled. */
+        private void drain() {
+            for (int sent=0; ; sent++) {
+                boolean cancel;
+                Throwable error;
+                synchronized (this) {
+                    cancel = cancelled;
+                    error = invalid;
+                    if (finished || (!cancel && demand == 0)) {
+                        draining = false;
+                        return;
+                    }
+                    if (cancel) draining = false;
+                    else if (sent == CHUNK) break;
+                    else demand--;
+                }
+                if (cancel) {
+                    if (error != null) error(error);
+                    else finish();
+                    return;
+                }
+
+                Object next;
+                try {
+                    if (!rs.next()) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    next = flyweight ? (Object)row : copy();
+                } catch (SQLException e) {
+                    error(e);
+                    return;
+                }
+                try {
+                    subscriber.onNext(next);
+                } catch (RuntimeException e) {
+                    // a subscriber that throws is treated as cancelled
+                    synchronized (this) { cancelled = true; }
+                    finish();
+                    return;
+                }
+            }
+            schedule(drain);
+        }
+
+        private Object[] copy() throws SQLException {
+            int cols = rs.getMetaData().getColumnCount();
+            Object[] values = new Object[cols];
+            for (int i=0; i < cols; i++) values[i] = rs.getObject(i + 1);
+            return values;
+        }
+
+        private void error(Throwable e) {
+            finish();
+            subscriber.onError(e);
+        }
+
+        /** Closes the statement, resetting it for the cache. */
+        private void finish() {
+            finished = true;
+            try {
+                if (rs != null) rs.close();
+            } catch (SQLException e) {}
+            try {
+                if (prep != null) prep.close();
+            } catch (SQLException e) {}
+            rs = null;
+            prep = null;
+        }
+    }
+}
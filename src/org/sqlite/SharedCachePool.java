@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+import java.util.*;
+
+/** Pools reading connections and one writing connection to a database
+ *  file, all sharing one page cache.
+ *
+ * <p>Connections opened in SQLite's shared-cache mode share one cache of
+ * the file's pages, rather than each reading and caching its own copy,
+ * and lock tables within it instead of the whole file. The readers here
+ * are read-only and have <tt>PRAGMA read_uncommitted</tt> set, so they
+ * do not wait on the writer's table locks, and may see rows it has not
+ * committed yet. Writes go through the one writer, which a thread takes
+ * for itself with <tt>getWriter()</tt>.</p>
+ *
+ * <p>The connections are opened with the <tt>shared_cache</tt> property,
+ * which needs the native library. A cache opened for writing is written
+ * through by any connection sharing it, so the readers also deny
+ * statements that write with an authorizer, rather than relying on
+ * being opened read-only.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      SharedCachePool pool = new SharedCachePool("jdbc:sqlite:app.db", 8);
+ *      Connection conn = pool.getReader();
+ *      try {
+ *          ResultSet rs = conn.createStatement().executeQuery(...);
+ *          ...
+ *      } finally {
+ *          conn.close();
+ *      }
+ *  </pre>
+ */
+public final class SharedCachePool
+{
+    private final PooledDataSource writer;
+    private final PooledDataSource readers;
+
+    /** Creates a pool of up to the given number of readers of a
+     *  <tt>jdbc:sqlite:</tt> file. */
+    public SharedCachePool(String url, int readers) throws SQLException {
+        this(url, new Properties(), readers);
+    }
+
+    /** Creates a pool of up to the given number of readers of a
+     *  <tt>jdbc:sqlite:</tt> file, opened with the given connection
+     *  properties. */
+    public SharedCachePool(String url, Properties info, int readers)
+            throws SQLException {
+        Properties props = (Properties)info.clone();
+        props.setProperty("shared_cache", "true");
+        writer = new PooledDataSource(url, props);
+        writer.setMaxConnections(1);
+
+        // the file must exist before it is opened read-only
+        Connection conn = writer.getConnection();
+        try {
+            if (!"native".equals(((Conn)conn).getDriverVersion()))
+                throw new SQLException("shared cache needs the native library");
+        } finally {
+            conn.close();
+        }
+
+        props.setProperty("read_only", "true");
+        this.readers = new PooledDataSource(url, props);
+        this.readers.setMaxConnections(readers);
+        this.readers.setInitSql("pragma read_uncommitted = true;");
+    }
+
+    /** Takes a read-only connection, waiting up to the login timeout if
+     *  all are in use. */
+    public Connection getReader() throws SQLException {
+        return readers.getConnection();
+    }
+
+    /** Takes the writing connection, waiting up to the login timeout if
+     *  another thread has it. */
+    public Connection getWriter() throws SQLException {
+        return writer.getConnection();
+    }
+
+    /** Sets the seconds to wait for a free connection, 0 for no limit. */
+    public void setLoginTimeout(int seconds) {
+        writer.setLoginTimeout(seconds);
+        readers.setLoginTimeout(seconds);
+    }
+
+    /** Closes the idle connections. Connections in use are closed when
+     *  they are returned. */
+    public void close() throws SQLException {
+        try {
+            readers.close();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+import java.util.*;
+
+/** A per-connection cache of prepared statement handles, keyed by SQL.
+ *
+ * <p>When a PreparedStatement is closed its handle is reset and kept
+ * here rather than finalized, so preparing the same SQL again on the
+ * connection does not need to call <tt>sqlite3_prepare_v2()</tt>. Its
+ * parameter count is also remembered. The least recently used SQL is
+ * dropped once the cache is full. A handle prepared before the
+ * connection ran a statement that creates, alters or drops part of the
+ * schema is finalized rather than reused, so its column names are
+ * current. SQL run with a plain Statement is not cached, as it is
+ * rarely run again.</p>
+ *
+ * <p>The size is set with the <tt>statement_cache_size</tt> connection
+ * property, 0 turns the cache off. Hit and miss counts are available with
+ * <tt>StatementCache.of(conn)</tt>.</p>
+ */
+public final class StatementCache
+{
+    /** Number of SQL strings cached when no size is given. */
+    public static final int DEFAULT_SIZE = 32;
+
+    private final DB db;
+    private final int capacity;
+    private final LinkedHashMap entries; // SQL to Entry, in LRU order
+    private long hits = 0;
+    private long misses = 0;
+
+    private static final class Entry {
+        long idle = 0;       // reset statement handle, 0 if none
+        int schema;          // DB.schema when idle was prepared
+        int params = -1;
+    }
+
+    StatementCache(DB db, int capacity) {
+        this.db = db;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap(16, 0.75f, true);
+    }
+
+    /** Returns the statement cache of an SQLite connection, or null if it
+     *  has none. */
+    public static StatementCache of(Connection conn) throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        return ((Conn)conn).db().cache;
+    }
+
+    /** Maximum number of SQL strings cached. */
+    public int capacity() { return capacity; }
+
+    /** Number of SQL strings currently cached. */
+    public int size() {
+        db.lock();
+        try { return entries.size(); } finally { db.unlock(); }
+    }
+
+    /** Number of statements prepared with a cached handle. */
+    public long hits() {
+        db.lock();
+        try { return hits; } finally { db.unlock(); }
+    }
+
+    /** Number of statements that had to be prepared by SQLite. */
+    public long misses() {
+        db.lock();
+        try { return misses; } finally { db.unlock(); }
+    }
+
+
+    // INTERNAL FUNCTIONS ///////////////////////////////////////////
+    // All run holding the DB lock, as eviction finalizes statements.
+
+    /** Returns an idle handle for the SQL, or 0 if there is none. */
+    long take(String sql) throws SQLException {
+        db.lock();
+        try {
+            Entry e = (Entry)entries.get(sql);
+            if (e != null && e.idle != 0) {
+                long pointer = e.idle;
+                e.idle = 0;
+                if (e.schema == db.schema) {
+                    hits++;
+                    return pointer;
+                }
+                db.finalize(pointer);
+            }
+            misses++;
+            if (e == null) {
+                entries.put(sql, new Entry());
+                evict();
+            }
+            return 0;
+        } finally {
+            db.unlock();
+        }
+    }
+
+    /** Takes a statement handle that is no longer used. Returns false if
+     *  the handle could not be kept and must be finalized. */
+    boolean give(String sql, long pointer, int schema)
+            throws SQLException {
+        db.lock();
+        try {
+            Entry e = (Entry)entries.get(sql);
+            if (e == null || e.idle != 0 || schema != db.schema)
+                return false;
+            db.reset(pointer);
+            db.clear_bindings(pointer);
+            e.idle = pointer;
+            e.schema = schema;
+            return true;
+        } finally {
+            db.unlock();
+        }
+    }
+
+    /** Returns the parameter count of a PreparedStatement, -1 if unknown. */
+    int params(String sql) {
+        db.lock();
+        try {
+            Entry e = (Entry)entries.get(sql);
+            return e == null ? -1 : e.params;
+        } finally {
+            db.unlock();
+        }
+    }
+
+    /** Records the parameter count of a cached SQL. */
+    void describe(String sql, int params) {
+        db.lock();
+        try {
+            Entry e = (Entry)entries.get(sql);
+            if (e == null) return;
+            e.params = params;
+        } finally {
+            db.unlock();
+        }
+    }
+
+    /** Finalizes all idle handles and empties the cache. */
+    void clear() throws SQLException {
+        db.lock();
+        try {
+            Iterator i = entries.values().iterator();
+            while (i.hasNext()) {
+                Entry e = (Entry)i.next();
+                if (e.idle != 0) db.finalize(e.idle);
+                i.remove();
+            }
+        } finally {
+            db.unlock();
+        }
+    }
+
+    private void evict() throws SQLException {
+        Iterator i = entries.values().iterator();
+        while (entries.size() > capacity && i.hasNext()) {
+            Entry e = (Entry)i.next();
+            if (e.idle != 0) db.finalize(e.idle);
+            i.remove();
+        }
+    }
+}
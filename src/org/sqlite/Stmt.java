@@ -16,7 +16,7 @@
 package org.sqlite;
 
 import java.sql.*;
-import java.util.ArrayList;
+import java.util.*;
 
 class Stmt extends Unused implements Statement, Codes
 {
@@ -26,6 +26,7 @@ class Stmt extends Unused implements Statement, Codes
 
     long pointer;
     String sql = null;
+    int schema;       // DB.schema when the handle was prepared
 
     int batchPos;
     Object[] batch = null;
@@ -53,7 +54,7 @@ class Stmt extends Unused implements Statement, Codes
 
         boolean rc = false;
         try {
-            rc = db.execute(this, null);
+            rc = db.execute(this);
         } finally {
             resultsWaiting = rc;
         }
@@ -69,7 +70,7 @@ class Stmt extends Unused implements Statement, Codes
         rs.close();
         batch = null;
         batchPos = 0;
-        int resp = db.finalize(this);
+        int resp = db.release(this);
         if (resp != SQLITE_OK && resp != SQLITE_MISUSE)
             db.throwex();
     }
@@ -100,7 +101,7 @@ class Stmt extends Unused implements Statement, Codes
         int changes = 0;
         try {
             db.prepare(this);
-            changes = db.executeUpdate(this, null);
+            changes = db.executeUpdate(this);
         } finally { close(); }
         return changes;
     }
@@ -151,33 +152,98 @@ class Stmt extends Unused implements Statement, Codes
                 batch[i] = null;
     }
 
+    /** Most prepared handles executeBatch() keeps for reuse by later
+     *  entries with the same SQL. */
+    private static final int BATCH_HANDLES = 32;
+
+    /** Runs the batch, keeping the handles of the last BATCH_HANDLES
+     *  distinct SQL strings so repeated entries are not prepared again,
+     *  while a script of distinct statements holds only a few handles
+     *  open at a time. In auto-commit mode the batch runs in a single
+     *  transaction, unless it manages transactions itself or has a
+     *  statement that cannot run inside one, and is rolled back if an
+     *  entry fails, when the BatchUpdateException reports no successful
+     *  entries. */
     public int[] executeBatch() throws SQLException {
-        // TODO: optimise
         close();
         if (batch == null || batchPos == 0) return new int[] {};
 
         int[] changes = new int[batchPos];
+        // sql to prepared pointer, least recently used first
+        LinkedHashMap handles = new LinkedHashMap(16, 0.75f, true);
+        boolean begun = false;
 
-        synchronized (db) { try {
+        db.lock();
+        try {
+            if (!avoidsTransaction())
+                begun = db.beginBatch();
             for (int i=0; i < changes.length; i++) {
                 try {
                     this.sql = (String)batch[i];
-                    db.prepare(this);
-                    changes[i] = db.executeUpdate(this, null);
+                    Long handle = (Long)handles.get(sql);
+                    if (handle == null) {
+                        if (handles.size() == BATCH_HANDLES) {
+                            Iterator eldest = handles.entrySet().iterator();
+                            release((Map.Entry)eldest.next());
+                            eldest.remove();
+                            this.sql = (String)batch[i];
+                        }
+                        pointer = 0;
+                        db.prepare(this);
+                        handles.put(sql, new Long(pointer));
+                    } else {
+                        pointer = handle.longValue();
+                    }
+                    changes[i] = db.executeUpdate(this);
                 } catch (SQLException e) {
+                    if (pointer == 0) handles.remove(sql); // finalized
+                    // a rolled back batch has no successful entries
+                    int[] done = new int[begun ? 0 : i];
+                    System.arraycopy(changes, 0, done, 0, done.length);
                     throw new BatchUpdateException(
-                        "batch entry " + i + ": " + e.getMessage(), changes);
-                } finally {
-                    db.finalize(this);
+                        "batch entry " + i + ": " + e.getMessage(), done);
                 }
             }
-        } finally {
+            db.endBatch(begun);
+            begun = false;
+        } finally { try {
+            if (begun) db.rollbackBatch();
+            Iterator i = handles.entrySet().iterator();
+            while (i.hasNext()) release((Map.Entry)i.next());
+            pointer = 0;
             clearBatch();
+        } finally {
+            db.unlock();
         } }
 
         return changes;
     }
 
+    /** Releases a batch handle, an entry of sql to pointer. */
+    private void release(Map.Entry handle) throws SQLException {
+        this.sql = (String)handle.getKey();
+        pointer = ((Long)handle.getValue()).longValue();
+        db.release(this);
+    }
+
+    /** Returns true if a batched SQL string begins or ends a transaction,
+     *  or may fail inside one, as VACUUM, ATTACH, DETACH and some pragmas
+     *  such as journal_mode do. */
+    private boolean avoidsTransaction() {
+        for (int i=0; i < batchPos; i++) {
+            String word = ((String)batch[i]).trim().toLowerCase();
+            if (word.startsWith("begin") || word.startsWith("commit")
+                    || word.startsWith("end") || word.startsWith("rollback")
+                    || word.startsWith("savepoint")
+                    || word.startsWith("release")
+                    || word.startsWith("vacuum") || word.startsWith("attach")
+                    || word.startsWith("detach")
+                    || word.startsWith("pragma"))
+                return true;
+        }
+        return false;
+    }
+
     public void setCursorName(String name) {}
 
     public SQLWarning getWarnings() throws SQLException { return null; }
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2007 David Crawshaw <david@zentus.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.sqlite;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Runs writes from many threads on one connection, committing them in
+ *  groups.
+ *
+ * <p>Threads writing to a database through their own connections wait on
+ * its file lock, and each auto-commit write syncs the journal. Tasks
+ * submitted here are instead queued for one thread that runs them on one
+ * connection, in the order they were queued, inside a transaction that
+ * is committed after <tt>setBatchSize()</tt> tasks or
+ * <tt>setBatchMicros()</tt> microseconds from the first, whichever comes
+ * first. The Future returned for a task completes once the transaction
+ * it ran in has committed, as durably as <tt>PRAGMA synchronous</tt>
+ * allows.</p>
+ *
+ * <p>Each task runs inside a savepoint, so one that fails is undone on
+ * its own and the rest of its group still commits. If the commit fails,
+ * every task in the group fails with it. If the connection is closed
+ * under the queue, the writing thread stops and fails every task not
+ * yet committed, and <tt>submit()</tt> throws. The queue holds at most
+ * the capacity given, beyond which <tt>submit()</tt> waits.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      WriteQueue writes = new WriteQueue(conn, 1024);
+ *      Future done = writes.submit("insert into log values (?, ?);",
+ *                                  new Object[] { time, msg });
+ *      ...
+ *      done.get(); // committed
+ *      ...
+ *      writes.close();
+ *  </pre>
+ *
+ * <p>The queue takes the connection over until it is closed. It must be
+ * in auto-commit mode to start with, is out of it while the queue runs,
+ * and should not be used by anything but the tasks in between. Tasks
+ * must not commit or roll back themselves. The connection cannot be
+ * opened with <tt>check_thread</tt>, as tasks run on another thread.</p>
+ */
+public final class WriteQueue
+{
+    /** A unit of work run on the queue's connection. */
+    public interface Task {
+        /** Writes with the connection, returning the value of the task's
+         *  Future. */
+        Object run(Connection conn) throws SQLException;
+    }
+
+    private static final Pending STOP = new Pending(null);
+
+    private final Conn conn;
+    private final ArrayBlockingQueue queue;
+    private final Thread writer;
+
+    private volatile int batchSize = 256;
+    private volatile long batchMicros = 1000;
+    private volatile long commits = 0;
+    private volatile Throwable died = null; // why the writer stopped
+    private boolean closed = false;
+
+    /** Starts a queue of up to the given number of tasks, written by a
+     *  new thread to a connection. */
+    public WriteQueue(Connection conn, int capacity) throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (capacity < 1) throw new IllegalArgumentException();
+        this.conn = (Conn)conn;
+        if (!conn.getAutoCommit())
+            throw new SQLException("write queue needs auto-commit mode");
+        if (conn.isReadOnly())
+            throw new SQLException("write queue needs a writable database");
+
+        queue = new ArrayBlockingQueue(capacity);
+        conn.setAutoCommit(false);
+        writer = new Thread("sqlite write queue") {
+            public void run() { write(); }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Sets the most tasks run in one transaction. */
+    public void setBatchSize(int tasks) {
+        if (tasks < 1) throw new IllegalArgumentException();
+        batchSize = tasks;
+    }
+
+    public int getBatchSize() { return batchSize; }
+
+    /** Sets the most microseconds a transaction waits for tasks after its
+     *  first before it is committed. */
+    public void setBatchMicros(long micros) {
+        if (micros < 0) throw new IllegalArgumentException();
+        batchMicros = micros;
+    }
+
+    public long getBatchMicros() { return batchMicros; }
+
+    /** Returns the number of transactions committed so far. */
+    public long getCommits() { return commits; }
+
+    /** Queues a task, waiting for space if the queue is full. Throws an
+     *  SQLException if the queue is closed, or its writing thread has
+     *  stopped on an error, eg. because the connection was closed. */
+    public Future submit(Task task) throws SQLException {
+        if (task == null) throw new NullPointerException();
+        Pending p = new Pending(task);
+        synchronized (this) {
+            if (closed) throw new SQLException("write queue closed");
+            if (died != null) throw stopped();
+            try {
+                queue.put(p);
+            } catch (InterruptedException e) {
+                throw new SQLException("interrupted waiting to queue");
+            }
+        }
+        return p;
+    }
+
+    /** Queues a statement to run with the given parameters. Its Future
+     *  returns the update count as an Integer. */
+    public Future submit(final String sql, final Object[] params)
+            throws SQLException {
+        return submit(new Task() {
+            public Object run(Connection conn) throws SQLException {
+                PreparedStatement prep = conn.prepareStatement(sql);
+                try {
+                    if (params != null)
+                        for (int i=0; i < params.length; i++)
+                            prep.setObject(i + 1, params[i]);
+                    return new Integer(prep.executeUpdate());
+                } finally {
+                    prep.close();
+                }
+            }
+        });
+    }
+
+    /** Runs and commits the tasks already queued, then stops the writing
+     *  thread and returns the connection to auto-commit mode. */
+    public void close() throws SQLException {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            while (died == null) {
+                try {
+                    queue.put(STOP);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (!conn.isClosed()) conn.setAutoCommit(true);
+    }
+
+
+    // WRITING THREAD ///////////////////////////////////////////////
+
+    private void write() {
+        List group = new ArrayList();
+        Pending p = null;
+        try {
+            boolean stop = false;
+            while (!stop) {
+                p = take();
+                if (p == STOP) break;
+                long deadline = System.nanoTime() + batchMicros * 1000;
+                int ran = 0;
+                while (true) {
+                    if (run(p, group)) group.add(p);
+                    if (++ran >= batchSize) break;
+
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    try {
+                        p = (Pending)queue.poll(wait, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        p = null;
+                    }
+                    if (p == null) break;
+                    if (p == STOP) { stop = true; break; }
+                }
+                commit(group);
+                group.clear();
+            }
+        } catch (Throwable t) {
+            // eg. the connection was closed under the queue
+            died = t;
+            if (p != null) p.fail(t);
+            for (int i=0; i < group.size(); i++)
+                ((Pending)group.get(i)).fail(t);
+            failQueued();
+            synchronized (this) {
+                // a submit() waiting for space has now queued its task
+                failQueued();
+            }
+        }
+    }
+
+    /** Fails the tasks left in the queue once the writer has stopped. */
+    private void failQueued() {
+        for (Pending p; (p = (Pending)queue.poll()) != null; )
+            if (p != STOP) p.fail(stopped());
+    }
+
+    private SQLException stopped() {
+        SQLException e = new SQLException("write queue stopped: " + died);
+        e.initCause(died);
+        return e;
+    }
+
+    private Pending take() {
+        while (true) {
+            try {
+                return (Pending)queue.take();
+            } catch (InterruptedException e) {}
+        }
+    }
+
+    /** Runs a task in a savepoint. Returns false if it was cancelled or
+     *  failed, in which case its Future is already complete. Throws an
+     *  SQLException if the connection has been closed. */
+    private boolean run(Pending p, List group) throws SQLException {
+        if (!p.start()) return false;
+        DB db = conn.db();
+        if (db == null) throw new SQLException("connection closed");
+        try {
+            db.exec("savepoint task;");
+        } catch (SQLException e) {
+            p.fail(e);
+            return false;
+        }
+        try {
+            Object value = p.task.run(conn);
+            db.exec("release task;");
+            p.value = value;
+            return true;
+        } catch (Throwable t) {
+            try {
+                db.exec("rollback to task;");
+                db.exec("release task;");
+            } catch (SQLException e) {
+                // SQLite ended the transaction itself, eg. on SQLITE_FULL
+                fail(group, t);
+            }
+            p.fail(t);
+            return false;
+        }
+    }
+
+    /** Commits a group, completing its Futures, or fails them all. */
+    private void commit(List group) {
+        try {
+            conn.commit();
+            commits++;
+            for (int i=0; i < group.size(); i++)
+                ((Pending)group.get(i)).done();
+        } catch (SQLException e) {
+            fail(group, e);
+        }
+    }
+
+    /** Fails the tasks of a group and starts a new transaction. */
+    private void fail(List group, Throwable t) {
+        for (int i=0; i < group.size(); i++)
+            ((Pending)group.get(i)).fail(t);
+        group.clear();
+        try {
+            DB db = conn.db();
+            if (!db.get_autocommit()) db.exec("rollback;");
+            db.exec("begin;");
+        } catch (SQLException e) {}
+    }
+
+    /** The Future of a queued task. */
+    private static final class Pending implements Future {
+        private static final int QUEUED = 0, RUNNING = 1, DONE = 2,
+                                 FAILED = 3, CANCELLED = 4;
+
+        final Task task;
+        Object value = null;
+        private Throwable error = null;
+        private int state = QUEUED;
+
+        Pending(Task task) { this.task = task; }
+
+        synchronized boolean start() {
+            if (state != QUEUED) return false;
+            state = RUNNING;
+            return true;
+        }
+
+        synchronized void done() {
+            if (state > RUNNING) return;
+            state = DONE;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable t) {
+            if (state > RUNNING) return;
+            error = t;
+            state = FAILED;
+            notifyAll();
+        }
+
+        /** Cancels the task if it has not started running. */
+        public synchronized boolean cancel(boolean mayInterrupt) {
+            if (state != QUEUED) return false;
+            state = CANCELLED;
+            notifyAll();
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return state == CANCELLED; }
+        public synchronized boolean isDone() { return state > RUNNING; }
+
+        public synchronized Object get()
+                throws InterruptedException, ExecutionException {
+            while (state <= RUNNING) wait();
+            return result();
+        }
+
+        public synchronized Object get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                       TimeoutException {
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (state <= RUNNING) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) throw new TimeoutException();
+                wait(wait);
+            }
+            return result();
+        }
+
+        private Object result() throws ExecutionException {
+            if (state == CANCELLED) throw new CancellationException();
+            if (state == FAILED) throw new ExecutionException(error);
+            return value;
+        }
+    }
+}
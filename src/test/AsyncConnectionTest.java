@@ -0,0 +1,142 @@
+package test;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.sqlite.AsyncConnection;
+import static org.junit.Assert.*;
+
+/** These tests check running statements through an AsyncConnection. */
+public class AsyncConnectionTest
+{
+    private Connection conn;
+    private AsyncConnection async;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        conn.createStatement().executeUpdate("create table t (n, s);");
+        async = new AsyncConnection(conn);
+    }
+
+    @After public void close() throws Exception {
+        async.close().get();
+        assertTrue(conn.isClosed());
+    }
+
+    /** Records the outcome of a Result and the thread told it. */
+    private static class Recorder implements AsyncConnection.Callback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Object value;
+        Throwable error;
+        Thread thread;
+
+        public void completed(Object value) {
+            this.value = value;
+            thread = Thread.currentThread();
+            latch.countDown();
+        }
+        public void failed(Throwable error) {
+            this.error = error;
+            thread = Thread.currentThread();
+            latch.countDown();
+        }
+        void await() throws InterruptedException {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test public void update() throws Exception {
+        AsyncConnection.Result r = async.executeUpdateAsync(
+            "insert into t values (?, ?);",
+            new Object[] { new Integer(1), "one" });
+        assertEquals(r.get(), new Integer(1));
+        assertTrue(r.isDone());
+    }
+
+    @Test public void query() throws Exception {
+        async.executeUpdateAsync("insert into t values (1, 'one');", null);
+        async.executeUpdateAsync("insert into t values (2, 'two');", null);
+        List rows = (List)async.executeQueryAsync(
+            "select n, s from t where n >= ? order by n;",
+            new Object[] { new Integer(1) }).get();
+        assertEquals(rows.size(), 2);
+        Object[] row = (Object[])rows.get(1);
+        assertEquals(row[0], new Integer(2));
+        assertEquals(row[1], "two");
+    }
+
+    @Test public void handler() throws Exception {
+        async.executeUpdateAsync("insert into t values (3, 'c');", null);
+        Object s = async.executeQueryAsync("select s from t;", null,
+            new AsyncConnection.ResultHandler() {
+                public Object handle(ResultSet rs) throws SQLException {
+                    return rs.getString(1);
+                }
+            }).get();
+        assertEquals(s, "c");
+    }
+
+    @Test public void callbacks() throws Exception {
+        final CountDownLatch hold = new CountDownLatch(1);
+        async.submit(new AsyncConnection.Task() {
+            public Object run(Connection conn) throws SQLException {
+                try { hold.await(); } catch (InterruptedException e) {}
+                return null;
+            }
+        });
+        AsyncConnection.Result r = async.executeUpdateAsync(
+            "insert into t values (1, 'one');", null);
+        Recorder rec = new Recorder();
+        r.whenDone(rec);
+        assertFalse(r.isDone()); // not waiting on the connection
+        hold.countDown();
+        rec.await();
+        assertEquals(rec.value, new Integer(1));
+        assertNotSame(rec.thread, Thread.currentThread());
+
+        Recorder now = new Recorder();
+        r.whenDone(now);
+        now.await();
+        assertSame(now.thread, Thread.currentThread());
+    }
+
+    @Test public void failure() throws Exception {
+        Recorder rec = new Recorder();
+        async.executeQueryAsync("select * from missing;", null)
+            .whenDone(rec);
+        rec.await();
+        assertTrue(rec.error instanceof SQLException);
+        assertEquals(rec.value, null);
+    }
+
+    @Test public void oneThread() throws Exception {
+        final Set threads = Collections.synchronizedSet(new HashSet());
+        AsyncConnection.Task task = new AsyncConnection.Task() {
+            public Object run(Connection conn) {
+                threads.add(Thread.currentThread());
+                return null;
+            }
+        };
+        AsyncConnection.Result last = null;
+        for (int i=0; i < 20; i++) last = async.submit(task);
+        last.get();
+        assertEquals(threads.size(), 1);
+        assertFalse(threads.contains(Thread.currentThread()));
+    }
+
+    @Test public void closed() throws Exception {
+        async.close().get();
+        try {
+            async.executeUpdateAsync("insert into t values (1, 1);", null)
+                .get();
+            fail("ran a statement after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+    }
+}
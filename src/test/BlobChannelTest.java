@@ -0,0 +1,145 @@
+package test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.sql.*;
+import org.junit.*;
+import org.sqlite.BlobChannel;
+import static org.junit.Assert.*;
+
+/** These tests check incremental blob reads and writes. */
+public class BlobChannelTest
+{
+    private Connection conn;
+    private Statement stat;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        stat = conn.createStatement();
+        stat.executeUpdate("create table t (id integer primary key, data);");
+        stat.executeUpdate("insert into t values (1, zeroblob(100000));");
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+    }
+
+    private static byte value(int i) { return (byte)(i * 31 + i / 256); }
+
+    @Test public void streams() throws Exception {
+        BlobChannel blob = BlobChannel.open(conn, "t", "data", 1, true);
+        assertEquals(blob.size(), 100000L);
+        OutputStream out = blob.newOutputStream();
+        byte[] b = new byte[3000];
+        for (int i=0; i < 100000; i += b.length) {
+            int len = Math.min(b.length, 100000 - i);
+            for (int j=0; j < len; j++) b[j] = value(i + j);
+            out.write(b, 0, len);
+        }
+        assertEquals(blob.position(), 100000L);
+        blob.close();
+        assertFalse(blob.isOpen());
+
+        blob = BlobChannel.open(conn, "t", "data", 1, false);
+        InputStream in = blob.newInputStream();
+        int pos = 0;
+        for (int n; (n = in.read(b)) != -1; pos += n)
+            for (int j=0; j < n; j++)
+                assertEquals(b[j], value(pos + j));
+        assertEquals(pos, 100000);
+        blob.close();
+
+        ResultSet rs = stat.executeQuery("select data from t;");
+        assertTrue(rs.next());
+        byte[] all = rs.getBytes(1);
+        assertEquals(all.length, 100000);
+        assertEquals(all[99999], value(99999));
+        rs.close();
+    }
+
+    @Test public void positions() throws Exception {
+        BlobChannel blob = BlobChannel.open(conn, "t", "data", 1, true);
+        blob.position(99998);
+        assertEquals(blob.write(ByteBuffer.wrap(new byte[] { 7, 8 })), 2);
+        try {
+            blob.write(ByteBuffer.wrap(new byte[] { 9 }));
+            fail("blob grew");
+        } catch (IOException e) {}
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        blob.position(99997);
+        assertEquals(blob.read(direct), 3);
+        assertEquals(direct.get(0), (byte)0);
+        assertEquals(direct.get(1), (byte)7);
+        assertEquals(direct.get(2), (byte)8);
+        assertEquals(blob.read(direct), -1);
+        blob.close();
+    }
+
+    @Test public void buffers() throws Exception {
+        byte[] data = new byte[100000];
+        for (int i=0; i < data.length; i++) data[i] = value(i);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+
+        BlobChannel blob = BlobChannel.open(conn, "t", "data", 1, true);
+        assertEquals(blob.write(direct), 100000);
+        assertFalse(direct.hasRemaining());
+        direct.clear();
+        blob.position(0);
+        assertEquals(blob.read(direct), 100000); // whole, not a chunk
+        assertEquals(direct.get(99999), value(99999));
+
+        // a read-only heap buffer has no array to copy from
+        ByteBuffer src = ByteBuffer.wrap(new byte[20000]).asReadOnlyBuffer();
+        blob.position(0);
+        assertEquals(blob.write(src), 20000);
+        direct.clear();
+        blob.position(0);
+        blob.read(direct);
+        assertEquals(direct.get(19999), (byte)0);
+        assertEquals(direct.get(20000), value(20000));
+        blob.close();
+    }
+
+    @Test public void readOnly() throws Exception {
+        BlobChannel blob = BlobChannel.open(conn, "t", "data", 1, false);
+        try {
+            blob.write(ByteBuffer.wrap(new byte[] { 1 }));
+            fail("wrote read-only blob");
+        } catch (IOException e) {}
+        try { blob.close(); } catch (IOException e) {} // the failed write
+        assertFalse(blob.isOpen());
+    }
+
+    @Test(expected= SQLException.class)
+    public void noRow() throws SQLException {
+        BlobChannel.open(conn, "t", "data", 2, false);
+    }
+
+    @Test public void rowDeleted() throws Exception {
+        BlobChannel blob = BlobChannel.open(conn, "t", "data", 1, false);
+        stat.executeUpdate("delete from t;");
+        try {
+            blob.read(ByteBuffer.allocate(10));
+            fail("read deleted row");
+        } catch (IOException e) {}
+        blob.close();
+    }
+
+    @Test public void closedWithConnection() throws Exception {
+        BlobChannel blob = BlobChannel.open(conn, "t", "data", 1, false);
+        conn.close();
+        assertFalse(blob.isOpen());
+        try {
+            blob.read(ByteBuffer.allocate(10));
+            fail("read after close");
+        } catch (ClosedChannelException e) {}
+    }
+}
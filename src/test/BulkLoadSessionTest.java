@@ -0,0 +1,195 @@
+package test;
+
+import java.io.*;
+import java.sql.*;
+import org.junit.*;
+import org.sqlite.BulkLoadSession;
+import static org.junit.Assert.*;
+
+/** These tests check dropping and rebuilding indexes with
+ *  BulkLoadSession. */
+public class BulkLoadSessionTest
+{
+    private Connection conn;
+    private Statement stat;
+    private File tmp;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        tmp = File.createTempFile("bulk", ".db");
+        conn = DriverManager.getConnection("jdbc:sqlite:" + tmp);
+        stat = conn.createStatement();
+        stat.executeUpdate("pragma cache_size = 1500;");
+        stat.executeUpdate("create table t (id integer primary key, "
+                           + "code text unique, n integer, s text);");
+        stat.executeUpdate("create index t_n on t (n);");
+        stat.executeUpdate("create index t_s_n on t (s, n desc);");
+        stat.executeUpdate("create table u (x);");
+        stat.executeUpdate("create index u_x on u (x);");
+        stat.executeUpdate("insert into t values (1, 'a', 10, 'one');");
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+        tmp.delete();
+    }
+
+    private static InputStream input(String s) throws Exception {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    private String indexes() throws SQLException {
+        ResultSet rs = stat.executeQuery("select name, sql from sqlite_master"
+            + " where type = 'index' order by name;");
+        StringBuffer sb = new StringBuffer();
+        while (rs.next())
+            sb.append(rs.getString(1)).append(": ")
+              .append(rs.getString(2)).append('\n');
+        rs.close();
+        return sb.toString();
+    }
+
+    private String pragma(String name) throws SQLException {
+        ResultSet rs = stat.executeQuery("pragma " + name + ";");
+        String value = rs.getString(1);
+        rs.close();
+        return value;
+    }
+
+    private int count() throws SQLException {
+        ResultSet rs = stat.executeQuery("select count(*) from t;");
+        int n = rs.getInt(1);
+        rs.close();
+        return n;
+    }
+
+    @Test public void rebuildsIndexes() throws Exception {
+        String before = indexes();
+        BulkLoadSession session = new BulkLoadSession(conn, "T");
+        session.begin();
+        assertTrue(session.isActive());
+        assertFalse(conn.getAutoCommit());
+        String[] dropped = session.getDroppedIndexes();
+        assertEquals(dropped.length, 2);
+        assertEquals(dropped[0], "t_n");
+        assertEquals(dropped[1], "t_s_n");
+        assertEquals(indexes(), "sqlite_autoindex_t_1: null\n"
+                                + "u_x: CREATE INDEX u_x on u (x)\n");
+        assertEquals(pragma("synchronous"), "0");
+        assertEquals(pragma("cache_size"), "100000");
+
+        StringBuffer in = new StringBuffer();
+        for (int i=2; i <= 5000; i++)
+            in.append(i).append(",c").append(i).append(',').append(i % 97)
+              .append(",s").append(i % 13).append('\n');
+        assertEquals(session.newLoader().load(input(in.toString())), 4999L);
+        session.commit();
+
+        assertFalse(session.isActive());
+        assertTrue(conn.getAutoCommit());
+        assertEquals(indexes(), before);
+        assertEquals(count(), 5000);
+        assertEquals(pragma("integrity_check"), "ok");
+        assertEquals(pragma("synchronous"), "2");
+        assertEquals(pragma("journal_mode"), "delete");
+        assertEquals(pragma("cache_size"), "1500");
+
+        ResultSet rs = stat.executeQuery(
+            "select count(*) from t where n = 5;");
+        assertEquals(rs.getInt(1), 52);
+        rs.close();
+        session.rollback(); // ended, so does nothing
+        assertEquals(count(), 5000);
+    }
+
+    @Test public void rollbackRestores() throws Exception {
+        String before = indexes();
+        BulkLoadSession session = new BulkLoadSession(conn, "t");
+        session.setPragma("cache_size", "5000");
+        session.setPragma("journal_mode", null);
+        session.begin();
+        assertEquals(pragma("cache_size"), "5000");
+        assertEquals(pragma("journal_mode"), "delete");
+        assertEquals(session.newLoader().load(input("2,b,2,x\n")), 1L);
+        try {
+            session.newLoader().load(input("3,c,3,y\n4,d,4\n"));
+            fail("loaded a short line");
+        } catch (SQLException e) {
+            assertEquals(e.getMessage(), "line 2: 3 fields, expected 4");
+        }
+        assertEquals(count(), 2);
+        session.rollback();
+
+        assertFalse(session.isActive());
+        assertTrue(conn.getAutoCommit());
+        assertEquals(indexes(), before);
+        assertEquals(count(), 1);
+        assertEquals(pragma("cache_size"), "1500");
+        assertEquals(pragma("synchronous"), "2");
+        stat.executeUpdate("insert into t values (2, 'b', 2, 'x');");
+    }
+
+    @Test public void uniqueIndexFails() throws Exception {
+        stat.executeUpdate("create unique index t_n_s on t (n, s);");
+        String before = indexes();
+        BulkLoadSession session = new BulkLoadSession(conn, "t");
+        session.begin();
+        assertEquals(session.getDroppedIndexes().length, 3);
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into t values (?, ?, 10, 'one');");
+        prep.setInt(1, 2);
+        prep.setString(2, "b");
+        prep.addBatch();
+        prep.executeBatch();
+        prep.close();
+        try {
+            session.commit();
+            fail("created a unique index over duplicates");
+        } catch (SQLException e) {}
+
+        assertFalse(session.isActive());
+        assertTrue(conn.getAutoCommit());
+        assertEquals(indexes(), before);
+        assertEquals(count(), 1);
+        assertEquals(pragma("journal_mode"), "delete");
+    }
+
+    @Test public void journalOff() throws Exception {
+        BulkLoadSession session = new BulkLoadSession(conn, "t");
+        try {
+            session.setPragma("journal_mode", "off");
+            fail("set a journal_mode that cannot roll back");
+        } catch (IllegalArgumentException e) {}
+
+        stat.executeQuery("pragma journal_mode = off;").close();
+        session.setPragma("journal_mode", null);
+        try {
+            session.begin();
+            fail("began a session on a database without a journal");
+        } catch (SQLException e) {}
+        assertFalse(session.isActive());
+        assertEquals(pragma("synchronous"), "2");
+        assertTrue(indexes().indexOf("t_n:") >= 0);
+    }
+
+    @Test(expected= SQLException.class)
+    public void notAutoCommit() throws Exception {
+        conn.setAutoCommit(false);
+        new BulkLoadSession(conn, "t").begin();
+    }
+
+    @Test public void noSuchTable() throws Exception {
+        BulkLoadSession session = new BulkLoadSession(conn, "nope");
+        try {
+            session.begin();
+            fail("began a session without a table");
+        } catch (SQLException e) {}
+        assertFalse(session.isActive());
+        assertTrue(conn.getAutoCommit());
+        assertEquals(pragma("synchronous"), "2");
+    }
+}
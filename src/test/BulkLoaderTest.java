@@ -0,0 +1,258 @@
+package test;
+
+import java.io.*;
+import java.sql.*;
+import org.junit.*;
+import org.sqlite.BulkLoader;
+import org.sqlite.RowExporter;
+import static org.junit.Assert.*;
+
+/** These tests check loading delimited input with BulkLoader. */
+public class BulkLoaderTest
+{
+    private Connection conn;
+    private Statement stat;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        stat = conn.createStatement();
+        stat.executeUpdate(
+            "create table t (id integer primary key, n bigint, s text);");
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+    }
+
+    private static InputStream input(String s) throws Exception {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    private int count() throws SQLException {
+        ResultSet rs = stat.executeQuery("select count(*) from t;");
+        int n = rs.getInt(1);
+        rs.close();
+        return n;
+    }
+
+    @Test public void csv() throws Exception {
+        BulkLoader loader = new BulkLoader(conn, "t");
+        loader.setHeader(true);
+        assertEquals(loader.load(input(
+            "id,n,s\r\n"
+            + "1,007,plain\r\n"
+            + "2,,\"\"\r\n"
+            + "\r\n"
+            + "3,-12,\"a,\"\"b\"\"\nc\"\r\n"
+            + "4,x1,caf\u00e9\r\n"
+            + "5,99999999999999999999,\"\"\"\"")), 5L);
+
+        ResultSet rs = stat.executeQuery(
+            "select id, n, typeof(n), s, typeof(s) from t order by id;");
+        assertTrue(rs.next());
+        assertEquals(rs.getLong(2), 7L);
+        assertEquals(rs.getString(3), "integer");
+        assertEquals(rs.getString(4), "plain");
+        assertTrue(rs.next());
+        assertEquals(rs.getString(3), "null");
+        assertEquals(rs.getString(4), "");
+        assertEquals(rs.getString(5), "text");
+        assertTrue(rs.next());
+        assertEquals(rs.getLong(2), -12L);
+        assertEquals(rs.getString(4), "a,\"b\"\nc");
+        assertTrue(rs.next());
+        assertEquals(rs.getString(2), "x1");
+        assertEquals(rs.getString(3), "text");
+        assertEquals(rs.getString(4), "caf\u00e9");
+        assertTrue(rs.next());
+        assertEquals(rs.getString(3), "real");
+        assertEquals(rs.getString(4), "\"");
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    @Test public void tsvColumns() throws Exception {
+        BulkLoader loader = new BulkLoader(conn, "t", new String[] {"S", "id"});
+        loader.setFormat(BulkLoader.TSV);
+        assertEquals(loader.load(input(
+            "a\\tb\\\\c\\nd\t1\n"
+            + "\\N\t2\n"
+            + "\t3")), 3L);
+
+        ResultSet rs = stat.executeQuery("select s from t order by id;");
+        assertTrue(rs.next());
+        assertEquals(rs.getString(1), "a\tb\\c\nd");
+        assertTrue(rs.next());
+        assertNull(rs.getString(1));
+        assertTrue(rs.next());
+        assertEquals(rs.getString(1), "");
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    @Test public void exportRoundTrip() throws Exception {
+        stat.executeUpdate("create table src (id integer primary key, "
+                           + "n bigint, s text);");
+        conn.setAutoCommit(false);
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into src values (?, ?, ?);");
+        for (int i=0; i < 20000; i++) {
+            prep.setInt(1, i);
+            if (i % 7 == 0) prep.setNull(2, Types.INTEGER);
+            else prep.setLong(2, i * 1000003L);
+            prep.setString(3, i % 5 == 0 ? "" : "row, \"" + i + "\"\n");
+            prep.addBatch();
+        }
+        prep.executeBatch();
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        for (int format = RowExporter.CSV; format <= RowExporter.TSV;
+                format++) {
+            stat.executeUpdate("delete from t;");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new RowExporter(stat.executeQuery("select * from src;"), format)
+                .writeTo(out);
+            BulkLoader loader = new BulkLoader(conn, "t");
+            loader.setFormat(format);
+            loader.setBatchRows(333);
+            loader.setCommitRows(5000);
+            assertEquals(loader.load(
+                new ByteArrayInputStream(out.toByteArray())), 20000L);
+
+            ResultSet rs = stat.executeQuery("select count(*) from src, t"
+                + " where src.id = t.id and src.n is t.n and src.s = t.s"
+                + " and typeof(src.n) = typeof(t.n);");
+            assertEquals(rs.getInt(1), 20000);
+            rs.close();
+        }
+    }
+
+    @Test public void commitsInParts() throws Exception {
+        StringBuffer in = new StringBuffer();
+        for (int i=1; i <= 100; i++)
+            in.append(i).append(',').append(i).append(i == 57 ? "" : ",x")
+              .append('\n');
+        BulkLoader loader = new BulkLoader(conn, "t");
+        loader.setBatchRows(5);
+        loader.setCommitRows(10);
+        try {
+            loader.load(input(in.toString()));
+            fail("loaded a short line");
+        } catch (SQLException e) {
+            assertEquals(e.getMessage(), "line 57: 2 fields, expected 3");
+        }
+        assertEquals(count(), 50);
+        assertTrue(conn.getAutoCommit());
+        stat.executeUpdate("insert into t values (1000, 1, 'ok');");
+    }
+
+    @Test public void inTransaction() throws Exception {
+        conn.setAutoCommit(false);
+        BulkLoader loader = new BulkLoader(conn, "t");
+        loader.setCommitRows(1);
+        assertEquals(loader.load(input("1,1,a\n2,2,b\n")), 2L);
+        assertEquals(count(), 2);
+        conn.rollback();
+        assertEquals(count(), 0);
+    }
+
+    @Test public void constraintFails() throws Exception {
+        BulkLoader loader = new BulkLoader(conn, "t");
+        try {
+            loader.load(input("1,1,a\n2,2,b\n\n1,3,c\n"));
+            fail("inserted a duplicate key");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("line 4:"));
+        }
+        assertEquals(count(), 0);
+    }
+
+    @Test public void pragmasRestored() throws Exception {
+        stat.executeUpdate("pragma cache_size = 1234;");
+        BulkLoader loader = new BulkLoader(conn, "t");
+        loader.setPragma("cache_size", "-4000");
+        loader.setPragma("synchronous", "OFF");
+        assertEquals(loader.load(input("1,1,a\n")), 1L);
+        try {
+            loader.load(input("2,2,\"b\n"));
+            fail("loaded an unterminated quote");
+        } catch (SQLException e) {
+            assertEquals(e.getMessage(), "line 1: unterminated quote");
+        }
+        ResultSet rs = stat.executeQuery("pragma cache_size;");
+        assertEquals(rs.getInt(1), 1234);
+        rs.close();
+        rs = stat.executeQuery("pragma synchronous;");
+        assertEquals(rs.getInt(1), 2);
+        rs.close();
+        assertEquals(count(), 1);
+    }
+
+    @Test public void sorted() throws Exception {
+        stat.executeUpdate("create table s (k integer, v);");
+        BulkLoader loader = new BulkLoader(conn, "s");
+        loader.setSortColumn("K", 4);
+        assertEquals(loader.load(input(
+            "b,1\n,2\n10,3\na,4\n-5,5\nab,6\na,7\n-5,8\n\u00e9,9\n")), 9L);
+
+        ResultSet rs = stat.executeQuery("select v from s order by rowid;");
+        int[] expected = { 2, 3, 4, 1, 5, 8, 7, 6, 9 };
+        for (int i=0; i < expected.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getInt(1), expected[i]);
+        }
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    @Test public void sortedKeys() throws Exception {
+        int[] keys = new int[10000];
+        java.util.Random random = new java.util.Random(20);
+        for (int i=0; i < keys.length; i++) {
+            int j = random.nextInt(i + 1);
+            keys[i] = keys[j];
+            keys[j] = i;
+        }
+        StringBuffer in = new StringBuffer();
+        for (int i=0; i < keys.length; i++)
+            in.append(keys[i]).append(',').append(i).append(",x\n");
+
+        BulkLoader loader = new BulkLoader(conn, "t");
+        loader.setSortColumn("id", keys.length);
+        loader.setQueueSize(2);
+        assertEquals(loader.load(input(in.toString())), 10000L);
+        ResultSet rs = stat.executeQuery("select count(*) from t"
+            + " where rowid = (select count(*) from t u where u.id <= t.id)"
+            + " - 1 and n = (select n from t u where u.id = t.id);");
+        assertEquals(rs.getInt(1), 10000);
+        rs.close();
+
+        stat.executeUpdate("delete from t;");
+        in.append(keys[17]).append(",0,dup\n");
+        try {
+            loader.load(input(in.toString()));
+            fail("inserted a duplicate key");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage(),
+                       e.getMessage().startsWith("line 10001:"));
+        }
+        assertEquals(count(), 0);
+    }
+
+    @Test(expected= SQLException.class)
+    public void sortColumnNotLoaded() throws Exception {
+        new BulkLoader(conn, "t", new String[] { "id", "s" })
+            .setSortColumn("n", 10);
+    }
+
+    @Test(expected= SQLException.class)
+    public void noSuchColumn() throws Exception {
+        new BulkLoader(conn, "t", new String[] { "id", "nope" });
+    }
+}
@@ -0,0 +1,179 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import org.junit.*;
+import org.sqlite.ColumnBytes;
+import static org.junit.Assert.*;
+
+/** These tests check reading column values into caller buffers. */
+public class ColumnBytesTest
+{
+    private Connection conn;
+    private Statement stat;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        stat = conn.createStatement();
+        stat.executeUpdate("create table t (id, data);");
+        PreparedStatement prep =
+            conn.prepareStatement("insert into t values (?, ?);");
+        for (int i=0; i < 10; i++) {
+            prep.setInt(1, i);
+            prep.setBytes(2, i == 5 ? null : blob(i * 100));
+            prep.executeUpdate();
+        }
+        prep.close();
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+    }
+
+    private static byte[] blob(int len) {
+        byte[] b = new byte[len];
+        for (int i=0; i < len; i++) b[i] = (byte)(i * 7 + len);
+        return b;
+    }
+
+    private static byte[] copy(byte[] b, int off, int len) {
+        byte[] c = new byte[len];
+        System.arraycopy(b, off, c, 0, len);
+        return c;
+    }
+
+    @Test public void intoArray() throws SQLException {
+        ResultSet rs = stat.executeQuery("select id, data from t;");
+        byte[] buf = new byte[1000];
+        while (rs.next()) {
+            int id = rs.getInt(1);
+            if (id == 5) {
+                assertEquals(ColumnBytes.length(rs, 2), -1);
+                assertEquals(ColumnBytes.read(rs, 2, buf, 0), -1);
+                assertTrue(rs.wasNull());
+                continue;
+            }
+            assertEquals(ColumnBytes.length(rs, 2), id * 100);
+            assertEquals(ColumnBytes.read(rs, 2, buf, 100), id * 100);
+            assertFalse(rs.wasNull());
+            assertArrayEq(copy(buf, 100, id * 100), blob(id * 100));
+        }
+        rs.close();
+    }
+
+    @Test public void intoBuffers() throws SQLException {
+        ByteBuffer[] bufs = new ByteBuffer[] {
+            ByteBuffer.allocateDirect(1000), ByteBuffer.allocate(1000) };
+        for (int b=0; b < bufs.length; b++) {
+            ByteBuffer buf = bufs[b];
+            ResultSet rs = stat.executeQuery(
+                "select data from t where id in (1, 2, 5);");
+            assertTrue(rs.next());
+            assertEquals(ColumnBytes.read(rs, 1, buf), 100);
+            assertTrue(rs.next());
+            assertEquals(ColumnBytes.read(rs, 1, buf), 200);
+            assertTrue(rs.next());
+            assertEquals(ColumnBytes.read(rs, 1, buf), -1);
+            assertFalse(rs.next());
+
+            assertEquals(buf.position(), 300);
+            byte[] got = new byte[300];
+            buf.flip();
+            buf.get(got);
+            assertArrayEq(copy(got, 0, 100), blob(100));
+            assertArrayEq(copy(got, 100, 200), blob(200));
+        }
+    }
+
+    @Test public void tooSmall() throws SQLException {
+        ResultSet rs = stat.executeQuery("select data from t where id = 9;");
+        assertTrue(rs.next());
+        ByteBuffer buf = ByteBuffer.allocateDirect(1000);
+        buf.limit(800);
+        try {
+            ColumnBytes.read(rs, 1, buf);
+            fail("read 900 bytes into 800");
+        } catch (SQLException e) {}
+        assertEquals(buf.position(), 0);
+        assertEquals(buf.get(0), (byte)0);
+        try {
+            ColumnBytes.read(rs, 1, new byte[1000], 200);
+            fail("read 900 bytes into 800");
+        } catch (SQLException e) {}
+        rs.close();
+    }
+
+    @Test public void textAndFetchSize() throws Exception {
+        stat.setFetchSize(4);
+        ResultSet rs = stat.executeQuery(
+            "select data, 'caf\u00e9' from t where id < 8;");
+        byte[] buf = new byte[1000];
+        for (int id=0; id < 8; id++) {
+            assertTrue(rs.next());
+            int len = ColumnBytes.read(rs, 1, buf, 0);
+            if (id == 5) { assertEquals(len, -1); continue; }
+            assertArrayEq(copy(buf, 0, len), blob(id * 100));
+            assertEquals(ColumnBytes.length(rs, 2), 5);
+            assertEquals(ColumnBytes.read(rs, 2, buf, 0), 5);
+            assertEquals(new String(buf, 0, 5, "UTF-8"), "caf\u00e9");
+        }
+        assertFalse(rs.next());
+    }
+
+    @Test public void utf8() throws Exception {
+        String text = "Gr\u00f6\u00dfe \u20ac \ud840\udc41";
+        byte[] utf8 = text.getBytes("UTF-8");
+        for (int fetch=0; fetch <= 4; fetch += 4) {
+            stat.setFetchSize(fetch);
+            ResultSet rs = stat.executeQuery(
+                "select '" + text + "', 42, 2.5, null;");
+            assertTrue(rs.next());
+            assertEquals(ColumnBytes.utf8Length(rs, 1), utf8.length);
+            byte[] buf = new byte[100];
+            assertEquals(ColumnBytes.readUtf8(rs, 1, buf, 10), utf8.length);
+            assertArrayEq(copy(buf, 10, utf8.length), utf8);
+            assertEquals(ColumnBytes.utf8Length(rs, 2), 2);
+            assertEquals(ColumnBytes.utf8Length(rs, 3), 3);
+            assertEquals(ColumnBytes.utf8Length(rs, 4), -1);
+            assertTrue(rs.wasNull());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(100);
+            assertEquals(ColumnBytes.readUtf8(rs, 1, direct), utf8.length);
+            assertEquals(ColumnBytes.readUtf8(rs, 2, direct), 2);
+            assertEquals(ColumnBytes.readUtf8(rs, 4, direct), -1);
+            direct.flip();
+            byte[] got = new byte[direct.remaining()];
+            direct.get(got);
+            assertEquals(new String(got, "UTF-8"), text + "42");
+            rs.close();
+        }
+    }
+
+    @Test public void utf8FromUtf16() throws Exception {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:");
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("pragma encoding = 'UTF-16le';");
+        stat.executeUpdate("create table t (c);");
+        stat.executeUpdate("insert into t values ('caf\u00e9');");
+        ResultSet rs = stat.executeQuery("select c from t;");
+        assertTrue(rs.next());
+        byte[] buf = new byte[10];
+        assertEquals(ColumnBytes.readUtf8(rs, 1, buf, 0), 5);
+        assertEquals(new String(buf, 0, 5, "UTF-8"), "caf\u00e9");
+        rs.close();
+        conn.close();
+    }
+
+    private void assertArrayEq(byte[] a, byte[] b) {
+        assertNotNull(a);
+        assertNotNull(b);
+        assertEquals(a.length, b.length);
+        for (int i=0; i < a.length; i++)
+            assertEquals(a[i], b[i]);
+    }
+}
@@ -0,0 +1,109 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import org.junit.*;
+import org.sqlite.ColumnarReader;
+import static org.junit.Assert.*;
+
+/** These tests check reading results into column buffers. */
+public class ColumnarReaderTest
+{
+    private Connection conn;
+    private Statement stat;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        stat = conn.createStatement();
+        stat.executeUpdate("create table t (id, price, name);");
+        conn.setAutoCommit(false);
+        for (int i=0; i < 100; i++)
+            stat.executeUpdate("insert into t values (" + i + ", "
+                + (i % 10 == 0 ? "null" : i + ".5") + ", 'n" + i + "');");
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+    }
+
+    @Test public void longsAndDoubles() throws SQLException {
+        ResultSet rs = stat.executeQuery("select id, price from t;");
+        ColumnarReader reader = new ColumnarReader(rs);
+        ByteBuffer ids = ByteBuffer.allocateDirect(8 * 32);
+        ByteBuffer prices = ByteBuffer.allocateDirect(8 * 32);
+        ByteBuffer idNulls = ByteBuffer.allocateDirect(4);
+        ByteBuffer priceNulls = ByteBuffer.allocateDirect(4);
+        reader.bind(1, ColumnarReader.LONG, ids, idNulls, null);
+        reader.bind(2, ColumnarReader.DOUBLE, prices, priceNulls, null);
+
+        int total = 0;
+        for (int rows; (rows = reader.read(1000)) != 0;) {
+            assertTrue(rows <= 32);
+            assertEquals(ids.remaining(), 8 * rows);
+            for (int i=0; i < rows; i++, total++) {
+                assertEquals(ids.getLong(8 * i), (long)total);
+                boolean isNull = (priceNulls.get(i / 8) & 1 << i % 8) != 0;
+                assertEquals(isNull, total % 10 == 0);
+                assertEquals(prices.getDouble(8 * i),
+                             isNull ? 0 : total + 0.5, 0.0);
+                assertTrue(idNulls.get(i / 8) == 0);
+            }
+        }
+        assertEquals(total, 100);
+        assertTrue(rs.isClosed());
+    }
+
+    @Test public void bytes() throws SQLException {
+        ResultSet rs = stat.executeQuery("select name from t;");
+        ColumnarReader reader = new ColumnarReader(rs);
+        ByteBuffer offsets = ByteBuffer.allocateDirect(4 * 101);
+        ByteBuffer nulls = ByteBuffer.allocateDirect(16);
+        ByteBuffer data = ByteBuffer.allocateDirect(64); // forces short reads
+        reader.bind(1, ColumnarReader.BYTES, offsets, nulls, data);
+
+        int total = 0;
+        for (int rows; (rows = reader.read(100)) != 0;) {
+            for (int i=0; i < rows; i++, total++) {
+                int start = offsets.getInt(4 * i);
+                byte[] b = new byte[offsets.getInt(4 * i + 4) - start];
+                for (int j=0; j < b.length; j++) b[j] = data.get(start + j);
+                assertEquals(new String(b), "n" + total);
+            }
+        }
+        assertEquals(total, 100);
+    }
+
+    @Test public void mixedWithNext() throws SQLException {
+        ResultSet rs = stat.executeQuery("select id from t;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 0);
+
+        ColumnarReader reader = new ColumnarReader(rs);
+        ByteBuffer ids = ByteBuffer.allocateDirect(8 * 10);
+        reader.bind(1, ColumnarReader.LONG, ids, ByteBuffer.allocateDirect(2),
+                    null);
+        assertEquals(reader.read(10), 10);
+        assertEquals(ids.getLong(0), 1L);
+        assertEquals(ids.getLong(72), 10L);
+
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 11);
+        rs.close();
+    }
+
+    @Test(expected= SQLException.class)
+    public void valueTooLarge() throws SQLException {
+        ResultSet rs = stat.executeQuery("select name from t;");
+        ColumnarReader reader = new ColumnarReader(rs);
+        reader.bind(1, ColumnarReader.BYTES, ByteBuffer.allocateDirect(40),
+                    ByteBuffer.allocateDirect(2), ByteBuffer.allocateDirect(1));
+        reader.read(5);
+    }
+}
@@ -1,9 +1,13 @@
 package test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
 import java.sql.*;
+import java.util.Properties;
 import org.junit.*;
 import static org.junit.Assert.*;
+import org.sqlite.StatementCache;
 
 /** These tests check whether access to files is woring correctly and
  *  some Connection.close() cases. */
@@ -51,4 +55,175 @@ public class ConnectionTest
         conn.close();
         prep.clearParameters();
     }
+
+    @Test public void statementCache() throws SQLException {
+        Properties info = new Properties();
+        info.setProperty("statement_cache_size", "2");
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:", info);
+        StatementCache cache = StatementCache.of(conn);
+        assertEquals(cache.capacity(), 2);
+
+        for (int i=0; i < 3; i++) {
+            PreparedStatement prep = conn.prepareStatement("select ?;");
+            prep.setInt(1, i);
+            ResultSet rs = prep.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(rs.getInt(1), i);
+            prep.close();
+        }
+        assertEquals(cache.misses(), 1L);
+        assertEquals(cache.hits(), 2L);
+
+        // two open statements for the same sql cannot share a handle
+        PreparedStatement a = conn.prepareStatement("select 1;");
+        PreparedStatement b = conn.prepareStatement("select 1;");
+        a.close();
+        b.close();
+        assertEquals(cache.misses(), 3L);
+
+        // least recently used sql is dropped
+        conn.prepareStatement("select 2;").close();
+        assertEquals(cache.size(), 2);
+        conn.prepareStatement("select ?;").close();
+        assertEquals(cache.misses(), 5L);
+        conn.close();
+    }
+
+    @Test public void statementCacheAdHoc() throws SQLException {
+        Properties info = new Properties();
+        info.setProperty("statement_cache_size", "2");
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:", info);
+        StatementCache cache = StatementCache.of(conn);
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c);");
+        conn.prepareStatement("select ?;").close();
+
+        // plain statements are not cached, so do not evict the handle
+        for (int i=0; i < 5; i++)
+            stat.executeUpdate("insert into t values (" + i + ");");
+        for (int i=0; i < 5; i++)
+            stat.addBatch("insert into t values (" + i + ");");
+        stat.executeBatch();
+        stat.close();
+        assertEquals(cache.size(), 1);
+        conn.prepareStatement("select ?;").close();
+        assertEquals(cache.hits(), 1L);
+
+        // a handle prepared before a schema change is not reused
+        conn.prepareStatement("select * from t;").close();
+        conn.createStatement().executeUpdate("create index i on t (c);");
+        conn.prepareStatement("select * from t;").close();
+        assertEquals(cache.hits(), 1L);
+        conn.close();
+    }
+
+    @Test public void noStatementCache() throws SQLException {
+        Properties info = new Properties();
+        info.setProperty("statement_cache_size", "0");
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:", info);
+        assertNull(StatementCache.of(conn));
+        conn.prepareStatement("select 1;").close();
+        conn.close();
+    }
+
+    @Test public void threadConfined() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("thread_confined", "true");
+        info.setProperty("check_thread", "true");
+        final Connection conn =
+            DriverManager.getConnection("jdbc:sqlite:", info);
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c);");
+        stat.executeUpdate("insert into t values (1);");
+        final ResultSet rs = stat.executeQuery("select c from t;");
+
+        final Exception[] caught = new Exception[2];
+        Thread other = new Thread() { public void run() {
+            try { conn.prepareStatement("select 1;"); }
+            catch (Exception e) { caught[0] = e; }
+            try { rs.next(); }
+            catch (Exception e) { caught[1] = e; }
+        }};
+        other.start();
+        other.join();
+        assertTrue(caught[0] instanceof SQLException);
+        assertTrue(caught[1] instanceof SQLException);
+
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 1);
+        rs.close();
+        conn.close();
+    }
+
+    /** Runs many threads over a few shared connections. Uses virtual
+     *  threads when the JVM has them, as they park on the connection
+     *  lock rather than pinning a carrier thread. Run with
+     *  -Djdk.tracePinnedThreads, the JVM reports any that pin, which
+     *  fails the test. */
+    @Test public void sharedByThreads() throws Exception {
+        final int conns = 4, threads = 4000, rows = 5;
+        final Connection[] pool = new Connection[conns];
+        for (int i=0; i < conns; i++) {
+            pool[i] = DriverManager.getConnection("jdbc:sqlite:");
+            pool[i].createStatement().executeUpdate("create table t (c);");
+        }
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream traced = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(traced, true));
+        final Exception[] caught = new Exception[1];
+        try {
+            Thread[] started = new Thread[threads];
+            for (int i=0; i < threads; i++) {
+                final Connection conn = pool[i % conns];
+                final int n = i;
+                started[i] = start(new Runnable() { public void run() {
+                    try {
+                        PreparedStatement prep = conn.prepareStatement(
+                            "insert into t values (?);");
+                        for (int j=0; j < rows; j++) {
+                            prep.setInt(1, n);
+                            prep.executeUpdate();
+                        }
+                        prep.close();
+                        ResultSet rs = conn.createStatement().executeQuery(
+                            "select c from t where c = " + n + ";");
+                        int found = 0;
+                        while (rs.next()) found++; // steps the statement
+                        if (found != rows)
+                            throw new Exception("lost rows of thread " + n);
+                        rs.close();
+                    } catch (Exception e) {
+                        synchronized (caught) { caught[0] = e; }
+                    }
+                }});
+            }
+            for (int i=0; i < threads; i++) started[i].join();
+        } finally {
+            System.setOut(out);
+        }
+        if (caught[0] != null) throw caught[0];
+        assertEquals(traced.toString(), ""); // no pinned threads reported
+
+        for (int i=0; i < conns; i++) {
+            ResultSet rs = pool[i].createStatement().executeQuery(
+                "select count(*) from t;");
+            assertTrue(rs.next());
+            assertEquals(rs.getInt(1), threads / conns * rows);
+            rs.close();
+            pool[i].close();
+        }
+    }
+
+    /** Starts a virtual thread if available, otherwise a platform one. */
+    private static Thread start(Runnable r) {
+        try {
+            return (Thread)Thread.class.getMethod("startVirtualThread",
+                new Class[] { Runnable.class }).invoke(null, new Object[] {r});
+        } catch (Exception e) {
+            Thread t = new Thread(r);
+            t.start();
+            return t;
+        }
+    }
 }
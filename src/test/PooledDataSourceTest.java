@@ -0,0 +1,221 @@
+package test;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import javax.sql.*;
+import org.junit.*;
+import org.sqlite.PooledDataSource;
+import org.sqlite.StatementCache;
+import static org.junit.Assert.*;
+
+/** These tests check reusing connections from a PooledDataSource. */
+public class PooledDataSourceTest
+{
+    private File tmp;
+    private PooledDataSource pool;
+
+    @Before public void create() throws Exception {
+        tmp = File.createTempFile("pool", ".db");
+        pool = new PooledDataSource("jdbc:sqlite:" + tmp);
+        Connection conn = pool.getConnection();
+        conn.createStatement().executeUpdate("create table t (n);");
+        conn.close();
+    }
+
+    @After public void close() throws Exception {
+        pool.close();
+        tmp.delete();
+    }
+
+    private static int count(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery(
+            "select count(*) from t;");
+        int n = rs.getInt(1);
+        rs.close();
+        return n;
+    }
+
+    @Test public void reuse() throws Exception {
+        Connection conn = pool.getConnection();
+        conn.createStatement().executeUpdate("pragma cache_size = 777;");
+        PreparedStatement prep = conn.prepareStatement(
+            "select count(*) from t;");
+        prep.executeQuery().close();
+        prep.close();
+        long misses = StatementCache.of(conn).misses();
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(pool.getOpenConnections(), 1);
+        assertEquals(pool.getIdleConnections(), 1);
+
+        Connection again = pool.getConnection();
+        assertNotSame(again, conn);
+        assertEquals(pool.getIdleConnections(), 0);
+        long hits = StatementCache.of(again).hits();
+        again.prepareStatement("select count(*) from t;").close();
+        assertEquals(StatementCache.of(again).hits(), hits + 1);
+        assertEquals(StatementCache.of(again).misses(), misses);
+        ResultSet rs = again.createStatement().executeQuery(
+            "pragma cache_size;");
+        assertEquals(rs.getInt(1), 777);
+        rs.close();
+        again.close();
+        assertEquals(pool.getOpenConnections(), 1);
+    }
+
+    @Test public void closedHandle() throws Exception {
+        Connection conn = pool.getConnection();
+        Statement stat = conn.createStatement();
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into t values (?);");
+        ResultSet rs = stat.executeQuery("select 1 union select 2;");
+        assertTrue(rs.next());
+        conn.close();
+        conn.close();
+
+        Connection next = pool.getConnection();
+        assertFalse(rs.next());
+        try {
+            prep.setInt(1, 1);
+            prep.executeUpdate();
+            fail("ran a statement of a closed connection");
+        } catch (SQLException e) {}
+        try {
+            stat.executeUpdate("insert into t values (2);");
+            fail("ran a statement of a closed connection");
+        } catch (SQLException e) {}
+        assertEquals(count(next), 0);
+        next.close();
+    }
+
+    @Test public void rollsBack() throws Exception {
+        Connection conn = pool.getConnection();
+        conn.setAutoCommit(false);
+        conn.createStatement().executeUpdate("insert into t values (1);");
+        conn.close();
+
+        conn = pool.getConnection();
+        assertTrue(conn.getAutoCommit());
+        assertEquals(count(conn), 0);
+        conn.createStatement().executeUpdate("begin;");
+        conn.createStatement().executeUpdate("insert into t values (1);");
+        conn.close();
+
+        conn = pool.getConnection();
+        assertEquals(count(conn), 0);
+        conn.close();
+        assertEquals(pool.getOpenConnections(), 1);
+    }
+
+    @Test public void boundedWait() throws Exception {
+        pool.close();
+        pool = new PooledDataSource("jdbc:sqlite:" + tmp);
+        pool.setMaxConnections(1);
+        pool.setLoginTimeout(1);
+        Connection conn = pool.getConnection();
+        long start = System.currentTimeMillis();
+        try {
+            pool.getConnection();
+            fail("took more than the maximum connections");
+        } catch (SQLException e) {}
+        assertTrue(System.currentTimeMillis() - start >= 900);
+        try {
+            pool.setMaxConnections(2);
+            fail("resized a pool in use");
+        } catch (SQLException e) {}
+        conn.close();
+        pool.getConnection().close();
+    }
+
+    @Test public void threads() throws Exception {
+        pool.close();
+        pool = new PooledDataSource("jdbc:sqlite:" + tmp);
+        pool.setMaxConnections(2);
+        final List errors = Collections.synchronizedList(new ArrayList());
+        Thread[] threads = new Thread[8];
+        for (int t=0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() { public void run() {
+                try {
+                    for (int i=0; i < 25; i++) {
+                        Connection conn = pool.getConnection();
+                        try {
+                            assertTrue(pool.getOpenConnections() <= 2);
+                            PreparedStatement prep = conn.prepareStatement(
+                                "insert into t values (?);");
+                            prep.setInt(1, id);
+                            prep.executeUpdate();
+                        } finally {
+                            conn.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }};
+            threads[t].start();
+        }
+        for (int t=0; t < threads.length; t++) threads[t].join();
+        if (!errors.isEmpty()) throw (Exception)errors.get(0);
+
+        Connection conn = pool.getConnection();
+        assertEquals(count(conn), 200);
+        conn.close();
+        assertTrue(pool.getOpenConnections() <= 2);
+    }
+
+    @Test public void memory() throws Exception {
+        PooledDataSource mem = new PooledDataSource("jdbc:sqlite:");
+        assertEquals(mem.getMaxConnections(), 1);
+        Connection conn = mem.getConnection();
+        conn.createStatement().executeUpdate("create table m (x);");
+        conn.close();
+        conn = mem.getConnection();
+        conn.createStatement().executeUpdate("insert into m values (1);");
+        conn.close();
+        mem.close();
+        try {
+            mem.getConnection();
+            fail("took a connection from a closed pool");
+        } catch (SQLException e) {}
+    }
+
+    @Test public void pooledConnection() throws Exception {
+        ConnectionPoolDataSource cpds = pool;
+        PooledConnection pc = cpds.getPooledConnection();
+        final int[] events = new int[2];
+        pc.addConnectionEventListener(new ConnectionEventListener() {
+            public void connectionClosed(ConnectionEvent e) { events[0]++; }
+            public void connectionErrorOccurred(ConnectionEvent e) {
+                events[1]++; }
+        });
+
+        Connection first = pc.getConnection();
+        first.setAutoCommit(false);
+        first.createStatement().executeUpdate("insert into t values (2);");
+        Statement left = first.createStatement();
+        ResultSet open = left.executeQuery("select * from t;");
+        Connection second = pc.getConnection();
+        assertTrue(first.isClosed());
+        assertFalse(second.isClosed());
+        assertEquals(count(second), 0); // the old transaction rolled back
+        assertTrue(second.getAutoCommit());
+        assertFalse(open.next()); // closed with the old handle
+        assertEquals(events[0], 0);
+        second.createStatement().executeUpdate("insert into t values (1);");
+        second.close();
+        assertEquals(events[0], 1);
+        assertEquals(events[1], 0);
+        assertEquals(pool.getOpenConnections(), 1);
+
+        pc.close();
+        try {
+            pc.getConnection();
+            fail("got a handle on a closed connection");
+        } catch (SQLException e) {}
+        Connection conn = pool.getConnection();
+        assertEquals(count(conn), 1);
+        conn.close();
+    }
+}
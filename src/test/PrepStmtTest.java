@@ -1,6 +1,9 @@
 package test;
 
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.sql.*;
+import java.util.Properties;
 import java.util.StringTokenizer;
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -302,6 +305,146 @@ public class PrepStmtTest
         rs.close();
     }
 
+    @Test public void utf8Storage() throws SQLException {
+        // characters outside the BMP are stored as 4-byte UTF-8
+        PreparedStatement prep = conn.prepareStatement(
+            "select hex(?), cast(x'F0A08180C3A9' as text);");
+        prep.setString(1, utf01 + "\u00e9");
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(rs.getString(1), "F0A08180C3A9");
+        assertEquals(rs.getString(2), utf01 + "\u00e9");
+        rs.close();
+
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i < 500; i++) buf.append(i % 2 == 0 ? utf01 : "a\0");
+        String big = buf.toString();
+        prep = conn.prepareStatement("select ?;");
+        prep.setString(1, big);
+        rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(rs.getString(1), big);
+        rs.close();
+    }
+
+    @Test public void byteBuffers() throws SQLException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        for (int i=0; i < 16; i++) direct.put(i, (byte)i);
+        direct.position(4).limit(8);
+        ByteBuffer heap = ByteBuffer.wrap(new byte[] { 9, 8, 7 }, 1, 2);
+
+        PreparedStatement prep =
+            conn.prepareStatement("select ?, ?, typeof(?);");
+        prep.setObject(1, direct);
+        prep.setObject(2, heap);
+        prep.setObject(3, ByteBuffer.allocateDirect(0));
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertArrayEq(rs.getBytes(1), new byte[] { 4, 5, 6, 7 });
+        assertArrayEq(rs.getBytes(2), new byte[] { 8, 7 });
+        assertEquals(rs.getString(3), "blob");
+        rs.close();
+        assertEquals(direct.position(), 4);
+
+        stat.executeUpdate("create table t (c);");
+        prep = conn.prepareStatement("insert into t values (?);");
+        for (int i=0; i < 4; i++) {
+            ByteBuffer b = ByteBuffer.allocateDirect(4);
+            b.putInt(0, i);
+            prep.setObject(1, b);
+            prep.addBatch();
+        }
+        prep.executeBatch();
+        rs = stat.executeQuery("select hex(c) from t;");
+        for (int i=0; i < 4; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getString(1), "0000000" + i);
+        }
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    @Test public void reusedByteBuffer() throws SQLException {
+        stat.executeUpdate("create table t (c);");
+        PreparedStatement prep =
+            conn.prepareStatement("insert into t values (?);");
+        ByteBuffer b = ByteBuffer.allocateDirect(4);
+        for (int i=0; i < 4; i++) {
+            b.putInt(0, i);
+            prep.setObject(1, b);
+            prep.addBatch();
+        }
+        b.putInt(0, 9); // batched rows hold copies
+        // a batched copy is of the remaining bytes only
+        ByteBuffer part = ByteBuffer.allocateDirect(8);
+        part.putInt(4, 4).position(4);
+        prep.setObject(1, part);
+        prep.addBatch();
+        part.putInt(4, 9);
+        prep.executeBatch();
+        ResultSet rs = stat.executeQuery("select hex(c) from t;");
+        for (int i=0; i < 5; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getString(1), "0000000" + i);
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        // the bound buffer outlives replacing the parameter
+        prep = conn.prepareStatement("select ? from t;");
+        b.putInt(0, 7);
+        prep.setObject(1, b);
+        rs = prep.executeQuery();
+        prep.setObject(1, ByteBuffer.allocateDirect(1));
+        b = null;
+        for (int i=0; i < 4; i++) {
+            System.gc();
+            assertTrue(rs.next());
+            assertArrayEq(rs.getBytes(1), new byte[] { 0, 0, 0, 7 });
+        }
+        rs.close();
+    }
+
+    @Test public void binaryStreams() throws Exception {
+        byte[] data = new byte[50000];
+        for (int i=0; i < data.length; i++) data[i] = (byte)(i % 251);
+
+        stat.executeUpdate("create table t (c);");
+        PreparedStatement prep =
+            conn.prepareStatement("insert into t values (?);");
+        prep.setBinaryStream(1, new ByteArrayInputStream(data), data.length);
+        prep.executeUpdate();
+        prep.setBinaryStream(1, null, 0);
+        prep.executeUpdate();
+        try {
+            prep.setBinaryStream(1, new ByteArrayInputStream(data), 50001);
+            fail("read past end of stream");
+        } catch (SQLException e) {}
+        try {
+            prep.setBinaryStream(1, new ByteArrayInputStream(data),
+                                 Integer.MAX_VALUE);
+            fail("buffered a stream too long for memory");
+        } catch (SQLException e) {}
+
+        ResultSet rs = stat.executeQuery("select c from t;");
+        assertTrue(rs.next());
+        InputStream in = rs.getBinaryStream(1);
+        byte[] b = new byte[1000];
+        int pos = 0;
+        for (int n; (n = in.read(b)) != -1; pos += n)
+            for (int i=0; i < n; i++)
+                assertEquals(b[i], data[pos + i]);
+        assertEquals(pos, data.length);
+        in = rs.getBinaryStream(1);
+        assertTrue(rs.next());
+        assertNull(rs.getBinaryStream(1));
+        try {
+            in.read();
+            fail("read stream of previous row");
+        } catch (IOException e) {}
+        rs.close();
+    }
+
     @Test public void batch() throws SQLException {
         ResultSet rs;
 
@@ -331,6 +474,141 @@ public class PrepStmtTest
         stat.executeUpdate("drop table test;");
     }
 
+    @Test public void paramTypes() throws SQLException {
+        PreparedStatement prep = conn.prepareStatement(
+            "select typeof(?), typeof(?), typeof(?), typeof(?), typeof(?),"
+            + " typeof(?), ?;");
+        prep.setLong(1, Long.MAX_VALUE);
+        prep.setObject(2, new Float(1.5f));
+        prep.setObject(3, b1);
+        prep.setString(4, null);
+        prep.setObject(5, new Short((short)7));
+        prep.setInt(6, 3);
+        prep.setLong(7, Long.MIN_VALUE);
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(rs.getString(1), "integer");
+        assertEquals(rs.getString(2), "real");
+        assertEquals(rs.getString(3), "blob");
+        assertEquals(rs.getString(4), "null");
+        assertEquals(rs.getString(5), "integer");
+        assertEquals(rs.getString(6), "integer");
+        assertEquals(rs.getLong(7), Long.MIN_VALUE);
+        rs.close();
+
+        // replacing a value with one of another type
+        prep.setString(6, "text");
+        rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(rs.getString(6), "text");
+        rs.close();
+        prep.close();
+    }
+
+    @Test(expected= SQLException.class)
+    public void paramOutOfBounds() throws SQLException {
+        conn.prepareStatement("select ?;").setInt(2, 1);
+    }
+
+    @Test public void batchFailure() throws SQLException {
+        stat.executeUpdate("create table test (c1 unique);");
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into test values (?);");
+        prep.setInt(1, 1); prep.addBatch();
+        prep.setInt(1, 2); prep.addBatch();
+        prep.setInt(1, 1); prep.addBatch();
+        prep.setInt(1, 3); prep.addBatch();
+        try {
+            prep.executeBatch();
+            fail("expected BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            assertArrayEq(e.getUpdateCounts(), new int[] {});
+        }
+
+        // statement is still usable, failed batch was rolled back
+        prep.setInt(1, 4); prep.addBatch();
+        assertArrayEq(prep.executeBatch(), new int[] { 1 });
+        prep.close();
+        assertTrue(conn.getAutoCommit());
+
+        ResultSet rs = stat.executeQuery("select count(*) from test;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 1);
+        rs.close();
+    }
+
+    @Test public void batchInSqlTransaction() throws SQLException {
+        stat.executeUpdate("create table test (c1);");
+        stat.execute("begin;");
+        assertTrue(conn.getAutoCommit());
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into test values (?);");
+        prep.setInt(1, 1); prep.addBatch();
+        prep.setInt(1, 2); prep.addBatch();
+        assertArrayEq(prep.executeBatch(), new int[] { 1, 1 });
+        prep.close();
+        stat.execute("savepoint s;");
+        prep = conn.prepareStatement("insert into test values (?);");
+        prep.setInt(1, 3); prep.addBatch();
+        assertArrayEq(prep.executeBatch(), new int[] { 1 });
+        prep.close();
+        stat.execute("release s;");
+        stat.execute("rollback;");
+
+        ResultSet rs = stat.executeQuery("select count(*) from test;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 0); // ran inside the user's transaction
+        rs.close();
+    }
+
+    @Test public void batchWithoutTransaction() throws SQLException {
+        Properties info = new Properties();
+        info.setProperty("batch_transaction", "false");
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:", info);
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table test (c1 unique);");
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into test values (?);");
+        prep.setInt(1, 1); prep.addBatch();
+        prep.setInt(1, 2); prep.addBatch();
+        prep.setInt(1, 1); prep.addBatch();
+        try {
+            prep.executeBatch();
+            fail("expected BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            assertArrayEq(e.getUpdateCounts(), new int[] { 1, 1 });
+        }
+
+        // each entry committed on its own
+        ResultSet rs = stat.executeQuery("select count(*) from test;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 2);
+        rs.close();
+        conn.close();
+    }
+
+    @Test public void batchInTransaction() throws SQLException {
+        stat.executeUpdate("create table test (c1 unique);");
+        conn.setAutoCommit(false);
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into test values (?);");
+        prep.setInt(1, 1); prep.addBatch();
+        prep.setInt(1, 2); prep.addBatch();
+        prep.setInt(1, 1); prep.addBatch();
+        try {
+            prep.executeBatch();
+            fail("expected BatchUpdateException");
+        } catch (BatchUpdateException e) {}
+
+        // the caller's transaction decides what happens to earlier rows
+        conn.commit();
+        ResultSet rs = stat.executeQuery("select count(*) from test;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 2);
+        rs.close();
+        conn.setAutoCommit(true);
+    }
+
     @Test public void retainKeysInBatch() throws SQLException {
         stat.executeUpdate("create table test (c1, c2);");
         PreparedStatement prep = conn.prepareStatement(
@@ -459,6 +737,62 @@ public class PrepStmtTest
         prep.executeUpdate();
     }
 
+    @Test public void cachedColumns() throws SQLException {
+        stat.executeUpdate("create table t (a, b);");
+        stat.executeUpdate("insert into t values (1, 2);");
+        PreparedStatement prep = conn.prepareStatement("select * from t;");
+        assertEquals(prep.getMetaData().getColumnCount(), 2);
+        prep.executeQuery().close();
+        prep.close();
+
+        stat.executeUpdate("alter table t add column c default 3;");
+        prep = conn.prepareStatement("select * from t;");
+        assertEquals(prep.getMetaData().getColumnCount(), 3);
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(3), 3);
+        assertEquals(rs.getMetaData().getColumnName(3), "c");
+        rs.close();
+        prep.close();
+
+        stat.executeUpdate("drop table t;");
+        stat.executeUpdate("create table t (x, y, z);");
+        stat.executeUpdate("insert into t values (4, 5, 6);");
+        prep = conn.prepareStatement("select * from t;");
+        assertEquals(prep.getMetaData().getColumnName(1), "x");
+        rs = prep.executeQuery();
+        assertEquals(rs.getMetaData().getColumnName(1), "x");
+        assertEquals(rs.getInt("z"), 6);
+        rs.close();
+        prep.close();
+    }
+
+    @Test public void cachedColumnsOtherConnection() throws Exception {
+        File tmp = File.createTempFile("cols", ".db");
+        Connection a = DriverManager.getConnection("jdbc:sqlite:" + tmp);
+        Connection b = DriverManager.getConnection("jdbc:sqlite:" + tmp);
+        a.createStatement().executeUpdate("create table t (p);");
+        a.createStatement().executeUpdate("insert into t values (1);");
+        PreparedStatement prep = a.prepareStatement("select * from t;");
+        prep.executeQuery().close();
+        prep.close();
+
+        b.createStatement().executeUpdate("drop table t;");
+        b.createStatement().executeUpdate("create table t (q, r);");
+        b.createStatement().executeUpdate("insert into t values (2, 3);");
+
+        prep = a.prepareStatement("select * from t;");
+        ResultSet rs = prep.executeQuery();
+        assertEquals(rs.getMetaData().getColumnCount(), 2);
+        assertEquals(rs.getMetaData().getColumnName(1), "q");
+        assertEquals(rs.getInt(2), 3);
+        rs.close();
+        prep.close();
+        a.close();
+        b.close();
+        tmp.delete();
+    }
+
     @Test public void reusingSetValues() throws SQLException {
         PreparedStatement prep = conn.prepareStatement("select ?,?;");
         prep.setInt(1, 9);
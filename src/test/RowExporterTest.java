@@ -0,0 +1,159 @@
+package test;
+
+import java.io.*;
+import java.sql.*;
+import org.junit.*;
+import org.sqlite.RowExporter;
+import static org.junit.Assert.*;
+
+/** These tests check writing result sets with RowExporter. */
+public class RowExporterTest
+{
+    private Connection conn;
+    private Statement stat;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        stat = conn.createStatement();
+        stat.executeUpdate("create table t (id, name, price, data);");
+        stat.executeUpdate(
+            "insert into t values (1, 'plain', 2.5, x'00ff');");
+        stat.executeUpdate(
+            "insert into t values (2, 'a,\"b\"\n\tc\\', null, null);");
+        stat.executeUpdate(
+            "insert into t values (3, '', -1e300 * 1e300, x'');");
+        stat.executeUpdate(
+            "insert into t values (null, 'caf\u00e9', 0.125, 7);");
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+    }
+
+    private String export(String sql, int format, boolean header)
+            throws Exception {
+        ResultSet rs = stat.executeQuery(sql);
+        RowExporter export = new RowExporter(rs, format);
+        export.setHeader(header);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.writeTo(out);
+        assertFalse(rs.next());
+        return out.toString("UTF-8");
+    }
+
+    @Test public void csv() throws Exception {
+        assertEquals(export("select * from t;", RowExporter.CSV, true),
+            "id,name,price,data\r\n"
+            + "1,plain,2.5,00ff\r\n"
+            + "2,\"a,\"\"b\"\"\n\tc\\\",,\r\n"
+            + "3,\"\",-Inf,\r\n"
+            + ",caf\u00e9,0.125,7\r\n");
+    }
+
+    @Test public void tsv() throws Exception {
+        assertEquals(export("select * from t;", RowExporter.TSV, false),
+            "1\tplain\t2.5\t00ff\n"
+            + "2\ta,\"b\"\\n\\tc\\\\\t\\N\t\\N\n"
+            + "3\t\t-Inf\t\n"
+            + "\\N\tcaf\u00e9\t0.125\t7\n");
+    }
+
+    @Test public void jsonLines() throws Exception {
+        assertEquals(export("select id, name as \"n\\\"\"m\", price, data"
+                            + " from t;", RowExporter.JSON_LINES, true),
+            "{\"id\":1,\"n\\\\\\\"m\":\"plain\",\"price\":2.5,"
+                + "\"data\":\"00ff\"}\n"
+            + "{\"id\":2,\"n\\\\\\\"m\":\"a,\\\"b\\\"\\n\\tc\\\\\","
+                + "\"price\":null,\"data\":null}\n"
+            + "{\"id\":3,\"n\\\\\\\"m\":\"\",\"price\":null,\"data\":\"\"}\n"
+            + "{\"id\":null,\"n\\\\\\\"m\":\"caf\u00e9\",\"price\":0.125,"
+                + "\"data\":7}\n");
+    }
+
+    @Test public void binary() throws Exception {
+        ResultSet rs = stat.executeQuery(
+            "select id, name, price, data from t where id = 1;");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(new RowExporter(rs, RowExporter.BINARY)
+            .writeTo(bytes), 1L);
+
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(in.readByte(), (byte)1); // SQLITE_INTEGER
+        assertEquals(in.readLong(), 1L);
+        assertEquals(in.readByte(), (byte)3); // SQLITE_TEXT
+        assertEquals(in.readInt(), 5);
+        byte[] name = new byte[5];
+        in.readFully(name);
+        assertEquals(new String(name, "UTF-8"), "plain");
+        assertEquals(in.readByte(), (byte)2); // SQLITE_FLOAT
+        assertEquals(in.readDouble(), 2.5);
+        assertEquals(in.readByte(), (byte)4); // SQLITE_BLOB
+        assertEquals(in.readInt(), 2);
+        assertEquals(in.readByte(), (byte)0);
+        assertEquals(in.readByte(), (byte)0xff);
+        assertEquals(in.read(), -1);
+
+        rs = stat.executeQuery("select null;");
+        bytes.reset();
+        new RowExporter(rs, RowExporter.BINARY).writeTo(bytes);
+        assertEquals(bytes.size(), 1);
+        assertEquals(bytes.toByteArray()[0], (byte)5); // SQLITE_NULL
+    }
+
+    @Test public void manyRowsSmallBuffer() throws Exception {
+        conn.setAutoCommit(false);
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into t (id, name) values (?, ?);");
+        StringBuffer expected = new StringBuffer();
+        StringBuffer big = new StringBuffer();
+        for (int i=0; i < 5000; i++) {
+            big.append('x');
+            prep.setInt(1, 100 + i);
+            prep.setString(2, i % 1000 == 0 ? big.toString() : "r" + i);
+            prep.executeUpdate();
+            expected.append(100 + i).append('\t')
+                .append(i % 1000 == 0 ? big.toString() : "r" + i)
+                .append('\n');
+        }
+        conn.commit();
+
+        ResultSet rs = stat.executeQuery(
+            "select id, name from t where id >= 100;");
+        RowExporter export = new RowExporter(rs, RowExporter.TSV);
+        export.setBufferSize(64);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(export.writeTo(out), 5000L);
+        assertEquals(out.toString("UTF-8"), expected.toString());
+    }
+
+    @Test public void remainingRows() throws Exception {
+        stat.setMaxRows(3);
+        ResultSet rs = stat.executeQuery("select id from t;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(new RowExporter(rs, RowExporter.CSV).writeTo(out), 2L);
+        assertEquals(out.toString("UTF-8"), "2\r\n3\r\n");
+        assertFalse(rs.next());
+    }
+
+    @Test public void emptyWithHeader() throws Exception {
+        assertEquals(export("select id, name from t where 0;",
+                            RowExporter.CSV, true), "id,name\r\n");
+    }
+
+    @Test(expected= SQLException.class)
+    public void fetchedAhead() throws Exception {
+        stat.setFetchSize(2);
+        ResultSet rs = stat.executeQuery("select id from t;");
+        assertTrue(rs.next());
+        new RowExporter(rs, RowExporter.CSV).writeTo(
+            new ByteArrayOutputStream());
+    }
+}
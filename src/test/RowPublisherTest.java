@@ -0,0 +1,184 @@
+package test;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.sqlite.AsyncConnection;
+import org.sqlite.RowPublisher;
+import static org.junit.Assert.*;
+
+/** These tests check streaming query results with a RowPublisher. */
+public class RowPublisherTest
+{
+    private Connection conn;
+    private AsyncConnection async;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (n integer, s text);");
+        conn.setAutoCommit(false);
+        PreparedStatement prep = conn.prepareStatement(
+            "insert into t values (?, ?);");
+        for (int i=0; i < 5000; i++) {
+            prep.setInt(1, i);
+            prep.setString(2, "row " + i);
+            prep.executeUpdate();
+        }
+        prep.close();
+        conn.setAutoCommit(true);
+        async = new AsyncConnection(conn);
+    }
+
+    @After public void close() throws Exception {
+        async.close().get();
+    }
+
+    /** Waits for the work queued on the connection so far. */
+    private void sync() throws Exception {
+        async.submit(new AsyncConnection.Task() {
+            public Object run(Connection conn) { return null; }
+        }).get();
+    }
+
+    /** Records the signals of a subscription. */
+    private static class Recorder implements RowPublisher.Subscriber {
+        final List rows = Collections.synchronizedList(new ArrayList());
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile RowPublisher.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean complete;
+        final long initial;
+
+        Recorder(long initial) { this.initial = initial; }
+
+        public void onSubscribe(RowPublisher.Subscription s) {
+            subscription = s;
+            if (initial > 0) s.request(initial);
+        }
+        public void onNext(Object row) { rows.add(row); }
+        public void onError(Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+        public void onComplete() {
+            complete = true;
+            done.countDown();
+        }
+        void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test public void backpressure() throws Exception {
+        Recorder r = new Recorder(3);
+        new RowPublisher(async, "select n, s from t order by n;", null)
+            .subscribe(r);
+        sync();
+        assertEquals(r.rows.size(), 3);
+        Object[] row = (Object[])r.rows.get(2);
+        assertEquals(row[0], new Integer(2));
+        assertEquals(row[1], "row 2");
+        assertFalse(r.complete);
+
+        r.subscription.request(10);
+        sync();
+        assertEquals(r.rows.size(), 13);
+
+        r.subscription.request(Long.MAX_VALUE);
+        r.subscription.request(Long.MAX_VALUE);
+        r.await();
+        assertTrue(r.complete);
+        assertEquals(r.rows.size(), 5000);
+    }
+
+    @Test public void cancel() throws Exception {
+        Recorder r = new Recorder(1);
+        new RowPublisher(async, "select n from t where n >= ?;",
+                         new Object[] { new Integer(10) }).subscribe(r);
+        sync();
+        assertEquals(r.rows.size(), 1);
+        assertEquals(((Object[])r.rows.get(0))[0], new Integer(10));
+
+        // an open read would keep the table locked
+        r.subscription.cancel();
+        r.subscription.request(5);
+        async.executeUpdateAsync("drop table t;", null).get();
+        assertEquals(r.rows.size(), 1);
+        assertFalse(r.complete);
+        assertNull(r.error);
+    }
+
+    @Test public void flyweight() throws Exception {
+        final Set seen = new HashSet();
+        final int[] sum = new int[1];
+        Recorder r = new Recorder(Long.MAX_VALUE) {
+            public void onNext(Object row) {
+                seen.add(row);
+                try {
+                    RowPublisher.Row fly = (RowPublisher.Row)row;
+                    assertEquals(fly.getColumnCount(), 2);
+                    assertEquals(fly.getString(2), "row " + fly.getInt(1));
+                    sum[0] += fly.getInt(1);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        RowPublisher pub = new RowPublisher(async, "select n, s from t;",
+                                            null);
+        pub.setFlyweight(true);
+        assertTrue(pub.isFlyweight());
+        pub.subscribe(r);
+        r.await();
+        assertTrue(r.complete);
+        assertEquals(seen.size(), 1);
+        assertEquals(sum[0], 4999 * 5000 / 2);
+    }
+
+    @Test public void oneAtATime() throws Exception {
+        final int[] count = new int[1];
+        Recorder r = new Recorder(1) {
+            public void onNext(Object row) {
+                count[0]++;
+                subscription.request(1);
+            }
+        };
+        new RowPublisher(async, "select n from t;", null).subscribe(r);
+        r.await();
+        assertTrue(r.complete);
+        assertEquals(count[0], 5000);
+    }
+
+    @Test public void badQuery() throws Exception {
+        Recorder r = new Recorder(1);
+        new RowPublisher(async, "select * from missing;", null)
+            .subscribe(r);
+        r.await();
+        assertNotNull(r.subscription);
+        assertTrue(r.error instanceof SQLException);
+    }
+
+    @Test public void badRequest() throws Exception {
+        Recorder r = new Recorder(0);
+        new RowPublisher(async, "select n from t;", null).subscribe(r);
+        sync();
+        r.subscription.request(0);
+        r.await();
+        assertTrue(r.error instanceof IllegalArgumentException);
+        async.executeUpdateAsync("drop table t;", null).get();
+    }
+
+    @Test public void closedConnection() throws Exception {
+        async.close().get();
+        Recorder r = new Recorder(1);
+        new RowPublisher(async, "select n from t;", null).subscribe(r);
+        r.await();
+        assertTrue(r.error instanceof SQLException);
+    }
+}
@@ -0,0 +1,132 @@
+package test;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import org.junit.*;
+import org.sqlite.SharedCachePool;
+import static org.junit.Assert.*;
+
+/** These tests check reading and writing through a SharedCachePool. */
+public class SharedCachePoolTest
+{
+    private File tmp;
+    private SharedCachePool pool;
+
+    @Before public void create() throws Exception {
+        tmp = File.createTempFile("shared", ".db");
+        pool = new SharedCachePool("jdbc:sqlite:" + tmp, 4);
+        Connection conn = pool.getWriter();
+        conn.createStatement().executeUpdate("create table t (n);");
+        conn.createStatement().executeUpdate("insert into t values (1);");
+        conn.close();
+    }
+
+    @After public void close() throws Exception {
+        pool.close();
+        tmp.delete();
+    }
+
+    private static int count(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery(
+            "select count(*) from t;");
+        int n = rs.getInt(1);
+        rs.close();
+        return n;
+    }
+
+    @Test public void readUncommitted() throws Exception {
+        Connection reader = pool.getReader();
+        assertTrue(reader.isReadOnly());
+        ResultSet rs = reader.createStatement().executeQuery(
+            "pragma read_uncommitted;");
+        assertEquals(rs.getInt(1), 1);
+        rs.close();
+        assertEquals(count(reader), 1);
+
+        Connection writer = pool.getWriter();
+        writer.setAutoCommit(false);
+        writer.createStatement().executeUpdate("insert into t values (2);");
+        assertEquals(count(reader), 2); // not blocked by the writer
+        writer.rollback();
+        assertEquals(count(reader), 1);
+        writer.close();
+        reader.close();
+    }
+
+    @Test public void readOnly() throws Exception {
+        Connection reader = pool.getReader();
+        try {
+            reader.createStatement().executeUpdate(
+                "insert into t values (3);");
+            fail("wrote through a reader");
+        } catch (SQLException e) {}
+        Statement stat = reader.createStatement();
+        try {
+            stat.executeUpdate("pragma user_version = 7;");
+            fail("set a pragma through a reader");
+        } catch (SQLException e) {}
+        try {
+            stat.executeUpdate("pragma incremental_vacuum;");
+            fail("vacuumed through a reader");
+        } catch (SQLException e) {}
+        ResultSet rs = stat.executeQuery("pragma user_version;");
+        assertEquals(rs.getInt(1), 0);
+        rs.close();
+        rs = stat.executeQuery("pragma table_info(t);");
+        assertTrue(rs.next());
+        rs.close();
+        stat.close();
+        reader.close();
+        Connection writer = pool.getWriter();
+        assertEquals(count(writer), 1);
+        writer.close();
+    }
+
+    @Test public void oneWriter() throws Exception {
+        pool.setLoginTimeout(1);
+        Connection writer = pool.getWriter();
+        try {
+            pool.getWriter();
+            fail("took a second writer");
+        } catch (SQLException e) {}
+        writer.close();
+        pool.getWriter().close();
+    }
+
+    @Test public void parallelReads() throws Exception {
+        final List errors = Collections.synchronizedList(new ArrayList());
+        Thread[] threads = new Thread[6];
+        for (int t=0; t < threads.length; t++) {
+            threads[t] = new Thread() { public void run() {
+                try {
+                    for (int i=0; i < 50; i++) {
+                        Connection conn = pool.getReader();
+                        try {
+                            assertTrue(count(conn) >= 1);
+                        } finally {
+                            conn.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }};
+            threads[t].start();
+        }
+        Connection writer = pool.getWriter();
+        PreparedStatement prep = writer.prepareStatement(
+            "insert into t values (?);");
+        for (int i=0; i < 100; i++) {
+            prep.setInt(1, i);
+            prep.executeUpdate();
+        }
+        writer.close();
+        for (int t=0; t < threads.length; t++) threads[t].join();
+        if (!errors.isEmpty()) throw (Exception)errors.get(0);
+
+        Connection reader = pool.getReader();
+        assertEquals(count(reader), 101);
+        reader.close();
+    }
+}
@@ -200,6 +200,91 @@ public class StatementTest
         rs.close();
     }
 
+    @Test public void batchRollback() throws SQLException {
+        stat.executeUpdate("create table t1 (c1);");
+        stat.addBatch("insert into t1 values (1);");
+        stat.addBatch("insert into t1 values (1);");
+        stat.addBatch("insert into nosuchtable values (1);");
+        try {
+            stat.executeBatch();
+            fail("batch entry should fail");
+        } catch (BatchUpdateException e) {
+            // the entries that ran were rolled back with the batch
+            assertArrayEq(new int[] {}, e.getUpdateCounts());
+        }
+
+        // batch ran in one transaction in auto-commit mode
+        ResultSet rs = stat.executeQuery("select count(*) from t1;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 0);
+        rs.close();
+
+        // batches controlling their own transaction are left to do so
+        stat.addBatch("begin;");
+        stat.addBatch("insert into t1 values (2);");
+        stat.addBatch("commit;");
+        stat.executeBatch();
+        rs = stat.executeQuery("select count(*) from t1;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 1);
+        rs.close();
+    }
+
+    @Test public void batchDistinct() throws SQLException {
+        // a script of distinct statements, with one repeated throughout,
+        // is run with only a few handles prepared at a time
+        stat.executeUpdate("create table t1 (c1);");
+        stat.executeUpdate("create table t2 (c1);");
+        for (int i=0; i < 1000; i++) {
+            stat.addBatch("insert into t1 values (" + i + ");");
+            if (i % 10 == 0) stat.addBatch("insert into t2 values (0);");
+        }
+        int[] counts = stat.executeBatch();
+        assertEquals(counts.length, 1100);
+        for (int i=0; i < counts.length; i++) assertEquals(counts[i], 1);
+        ResultSet rs = stat.executeQuery(
+            "select count(*), sum(c1) from t1;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 1000);
+        assertEquals(rs.getInt(2), 999 * 1000 / 2);
+        rs.close();
+        rs = stat.executeQuery("select count(*) from t2;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 100);
+        rs.close();
+    }
+
+    @Test public void batchInSqlTransaction() throws SQLException {
+        // a transaction begun through SQL leaves auto-commit on
+        stat.executeUpdate("create table t1 (c1);");
+        stat.execute("begin;");
+        assertTrue(conn.getAutoCommit());
+        stat.addBatch("insert into t1 values (1);");
+        stat.addBatch("insert into t1 values (2);");
+        assertArrayEq(stat.executeBatch(), new int[] { 1, 1 });
+        stat.execute("rollback;");
+        ResultSet rs = stat.executeQuery("select count(*) from t1;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 0); // ran inside the user's transaction
+        rs.close();
+    }
+
+    @Test public void batchOutsideTransaction() throws SQLException {
+        // statements SQLite refuses inside a transaction run unwrapped
+        stat.executeUpdate("create table t1 (c1);");
+        stat.addBatch("insert into t1 values (1);");
+        stat.addBatch("attach database ':memory:' as aux;");
+        stat.addBatch("create table aux.t2 (c2);");
+        stat.addBatch("detach database aux;");
+        stat.addBatch("pragma synchronous = off;");
+        stat.addBatch("vacuum;");
+        stat.executeBatch();
+        ResultSet rs = stat.executeQuery("select count(*) from t1;");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), 1);
+        rs.close();
+    }
+
     @Test public void closeOnFalseNext() throws SQLException {
         stat.executeUpdate("create table t1 (c1);");
         conn.createStatement().executeQuery("select * from t1;").next();
@@ -258,6 +343,83 @@ public class StatementTest
         rs.close();
     }
 
+    @Test public void fetchSize() throws Exception {
+        stat.executeUpdate("create table t1 (c1, c2);");
+        conn.setAutoCommit(false);
+        for (int i=0; i < 10; i++)
+            stat.executeUpdate("insert into t1 values ("+i+", "
+                + (i % 3 == 0 ? "null" : "'s"+i+"'") + ");");
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        stat.setFetchSize(4);
+        assertEquals(stat.getFetchSize(), 4);
+        ResultSet rs = stat.executeQuery("select * from t1 order by c1;");
+        for (int i=0; i < 10; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getInt(1), i);
+            assertEquals(rs.getString(2), i % 3 == 0 ? null : "s"+i);
+            assertEquals(rs.wasNull(), i % 3 == 0);
+            assertEquals(rs.getObject(1), new Integer(i));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        // a block holds the same values as the row it was read from
+        stat.executeUpdate("create table t2 (r real, b blob);");
+        stat.executeUpdate("insert into t2 values (1e20, x'');");
+        stat.executeUpdate("insert into t2 values (0.12345678901234567,"
+                           + " x'00');");
+        stat.executeUpdate("insert into t2 values (-2.5, zeroblob(0));");
+        String[][] text = new String[2][];
+        Object[][] bytes = new Object[2][];
+        for (int size=0; size < 2; size++) {
+            stat.setFetchSize(size * 4);
+            rs = stat.executeQuery("select r, b from t2;");
+            text[size] = new String[6];
+            bytes[size] = new Object[6];
+            for (int i=0; i < 3; i++) {
+                assertTrue(rs.next());
+                text[size][i * 2] = rs.getString(1);
+                text[size][i * 2 + 1] = rs.getString(2);
+                bytes[size][i * 2] = rs.getBytes(1);
+                bytes[size][i * 2 + 1] = rs.getBytes(2);
+            }
+            rs.close();
+        }
+        assertEquals(text[1][0], "1.0e+20");
+        for (int i=0; i < 6; i++) {
+            assertEquals(text[1][i], text[0][i]);
+            if (bytes[0][i] == null) assertNull(bytes[1][i]);
+            else assertEquals(new String((byte[])bytes[1][i], "UTF-8"),
+                              new String((byte[])bytes[0][i], "UTF-8"));
+        }
+        stat.setFetchSize(4);
+
+        // change fetch size part way through a result set
+        rs = stat.executeQuery("select c1 from t1 order by c1;");
+        for (int i=0; i < 3; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getInt(1), i);
+        }
+        rs.setFetchSize(0);
+        for (int i=3; i < 10; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getLong(1), (long)i);
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        stat.setMaxRows(6);
+        rs = stat.executeQuery("select c1 from t1 order by c1;");
+        for (int i=0; i < 6; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getDouble(1), (double)i, 0.0);
+        }
+        assertFalse(rs.next());
+        rs.close();
+    }
+
     @Test public void nullDate() throws SQLException {
         ResultSet rs = stat.executeQuery("select null;");
         assertTrue(rs.next());
@@ -267,6 +429,42 @@ public class StatementTest
         rs.close();
     }
 
+    @Test public void mixedRow() throws SQLException {
+        ResultSet rs = stat.executeQuery(
+            "select 9000000000, 2.75, '12', null, x'41';");
+        assertTrue(rs.next());
+        assertEquals(rs.getLong(1), 9000000000L);
+        assertEquals(rs.getObject(1), new Long(9000000000L));
+        assertEquals(rs.getInt(2), 2);
+        assertEquals(rs.getDouble(2), 2.75);
+        assertEquals(rs.getString(2), "2.75");
+        assertEquals(rs.getInt(3), 12);
+        assertEquals(rs.getString(3), "12");
+        assertEquals(rs.getInt(4), 0);
+        assertTrue(rs.wasNull());
+        assertNull(rs.getString(4));
+        assertTrue(rs.wasNull());
+        assertEquals(rs.getString(5), "A");
+        assertFalse(rs.wasNull());
+        assertFalse(rs.next());
+        rs.close();
+
+        stat.executeUpdate("create table t (c);");
+        stat.executeUpdate("insert into t values (1);");
+        stat.executeUpdate("insert into t values ('two');");
+        stat.executeUpdate("insert into t values (null);");
+        rs = stat.executeQuery("select c from t;");
+        assertTrue(rs.next());
+        assertEquals(rs.getObject(1), new Integer(1));
+        assertTrue(rs.next());
+        assertEquals(rs.getObject(1), "two");
+        assertEquals(rs.getInt(1), 0);
+        assertTrue(rs.next());
+        assertNull(rs.getObject(1));
+        assertFalse(rs.next());
+        rs.close();
+    }
+
     @Test(expected= SQLException.class)
     public void ambiguousColumnNaming() throws SQLException {
         stat.executeUpdate("create table t1 (c1 int);");
@@ -0,0 +1,171 @@
+package test;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.sqlite.WriteQueue;
+import static org.junit.Assert.*;
+
+/** These tests check writing through a WriteQueue from many threads. */
+public class WriteQueueTest
+{
+    private File tmp;
+    private Connection conn;
+    private WriteQueue writes;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void create() throws Exception {
+        tmp = File.createTempFile("writes", ".db");
+        conn = DriverManager.getConnection("jdbc:sqlite:" + tmp);
+        conn.createStatement().executeUpdate(
+            "create table t (n integer primary key);");
+        writes = new WriteQueue(conn, 64);
+    }
+
+    @After public void close() throws Exception {
+        writes.close();
+        conn.close();
+        tmp.delete();
+    }
+
+    private int count() throws SQLException {
+        Connection other = DriverManager.getConnection("jdbc:sqlite:" + tmp);
+        ResultSet rs = other.createStatement().executeQuery(
+            "select count(*) from t;");
+        int n = rs.getInt(1);
+        rs.close();
+        other.close();
+        return n;
+    }
+
+    private Future insert(int n) throws SQLException {
+        return writes.submit("insert into t values (?);",
+                             new Object[] { new Integer(n) });
+    }
+
+    @Test public void committed() throws Exception {
+        assertFalse(conn.getAutoCommit());
+        Future f = insert(1);
+        assertEquals(f.get(), new Integer(1));
+        assertTrue(f.isDone());
+        assertEquals(count(), 1); // visible to another connection
+        assertEquals(writes.getCommits(), 1L);
+    }
+
+    @Test public void grouped() throws Exception {
+        writes.setBatchMicros(1000000);
+        writes.setBatchSize(10);
+        Future[] f = new Future[25];
+        for (int i=0; i < f.length; i++) f[i] = insert(i);
+        for (int i=0; i < f.length; i++) f[i].get();
+        assertEquals(count(), 25);
+        assertEquals(writes.getCommits(), 3L);
+    }
+
+    @Test public void failedTask() throws Exception {
+        writes.setBatchMicros(1000000);
+        writes.setBatchSize(3);
+        Future a = insert(1);
+        Future b = insert(1);
+        Future c = insert(2);
+        assertEquals(a.get(), new Integer(1));
+        assertEquals(c.get(), new Integer(1));
+        try {
+            b.get();
+            fail("inserted a duplicate key");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(count(), 2);
+        assertEquals(writes.getCommits(), 1L);
+    }
+
+    @Test public void task() throws Exception {
+        Future f = writes.submit(new WriteQueue.Task() {
+            public Object run(Connection conn) throws SQLException {
+                Statement stat = conn.createStatement();
+                stat.executeUpdate("insert into t values (5);");
+                stat.executeUpdate("insert into t values (6);");
+                ResultSet rs = stat.executeQuery("select sum(n) from t;");
+                Object sum = new Integer(rs.getInt(1));
+                rs.close();
+                stat.close();
+                return sum;
+            }
+        });
+        assertEquals(f.get(), new Integer(11));
+    }
+
+    @Test public void threads() throws Exception {
+        final List errors = Collections.synchronizedList(new ArrayList());
+        Thread[] threads = new Thread[8];
+        for (int t=0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() { public void run() {
+                try {
+                    for (int i=0; i < 100; i++)
+                        insert(id * 100 + i).get();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }};
+            threads[t].start();
+        }
+        for (int t=0; t < threads.length; t++) threads[t].join();
+        if (!errors.isEmpty()) throw (Exception)errors.get(0);
+        assertEquals(count(), 800);
+        assertTrue(writes.getCommits() <= 800);
+    }
+
+    @Test public void closeCommits() throws Exception {
+        writes.setBatchMicros(10000000);
+        Future f = insert(1);
+        writes.close();
+        assertTrue(f.isDone());
+        assertTrue(conn.getAutoCommit());
+        assertEquals(count(), 1);
+        try {
+            insert(2);
+            fail("queued a task after close");
+        } catch (SQLException e) {}
+    }
+
+    @Test public void connectionClosed() throws Exception {
+        conn.close();
+        List queued = new ArrayList();
+        try {
+            for (int i=0; i < 1000; i++) queued.add(insert(i));
+            fail("queued tasks after the writer stopped");
+        } catch (SQLException e) {}
+        assertTrue(queued.size() > 0);
+        for (int i=0; i < queued.size(); i++) {
+            try {
+                ((Future)queued.get(i)).get(10, TimeUnit.SECONDS);
+                fail("wrote to a closed connection");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+        }
+        try {
+            insert(1000);
+            fail("queued a task after the writer stopped");
+        } catch (SQLException e) {}
+        writes.close();
+    }
+
+    @Test(expected= SQLException.class)
+    public void needsAutoCommit() throws Exception {
+        Connection other = DriverManager.getConnection("jdbc:sqlite:");
+        other.setAutoCommit(false);
+        try {
+            new WriteQueue(other, 1);
+        } finally {
+            other.close();
+        }
+    }
+}